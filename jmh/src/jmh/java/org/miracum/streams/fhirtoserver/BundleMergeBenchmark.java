@@ -0,0 +1,50 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Measures merging a batch of bundles into a single one as done before sending a batch. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BundleMergeBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int bundleCount;
+
+  @Param({"1", "10", "100"})
+  public int entriesPerBundle;
+
+  private List<Bundle> bundles;
+  private FhirBundleMerger merger;
+
+  @Setup
+  public void setUp() {
+    bundles = MockData.bundles(bundleCount, 2, entriesPerBundle);
+
+    var fhirPath = new FhirPathExpressionCache(new FhirPathR4(MockData.FHIR_CONTEXT));
+    merger =
+        new FhirBundleMerger(
+            new EntryKeyExtractors(List.of(new DirectAccessEntryKeyExtractorFactory()), fhirPath));
+  }
+
+  @Benchmark
+  public Bundle merge() {
+    return merger.merge(bundles);
+  }
+
+  @Benchmark
+  public FhirBundleMerger.MergeResult mergeSeparatingDeletes() {
+    return merger.mergeSeperateDeleteBundles(bundles, "request.url.toString()");
+  }
+}
@@ -0,0 +1,55 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares splitting a merged bundle into fixed-size partitions with the reference-aware
+ * partitioning that keeps entries referencing each other together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BundlePartitionBenchmark {
+
+  @Param({"1000", "10000"})
+  public int entryCount;
+
+  @Param({"20", "100", "500"})
+  public int partitionSize;
+
+  private Bundle bundle;
+  private FhirBundleMerger merger;
+  private ReferenceAwarePartitioner referenceAwarePartitioner;
+
+  @Setup
+  public void setUp() {
+    bundle = MockData.bundle(entryCount);
+
+    var fhirPath = new FhirPathExpressionCache(new FhirPathR4(MockData.FHIR_CONTEXT));
+    merger =
+        new FhirBundleMerger(
+            new EntryKeyExtractors(List.of(new DirectAccessEntryKeyExtractorFactory()), fhirPath));
+    referenceAwarePartitioner = new ReferenceAwarePartitioner(MockData.FHIR_CONTEXT);
+  }
+
+  @Benchmark
+  public List<Bundle> partition() {
+    return merger.partitionBundle(bundle, partitionSize);
+  }
+
+  @Benchmark
+  public List<Bundle> partitionReferenceAware() {
+    return referenceAwarePartitioner.partitionBundle(bundle, partitionSize);
+  }
+}
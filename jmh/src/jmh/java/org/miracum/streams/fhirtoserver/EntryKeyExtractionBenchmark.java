@@ -0,0 +1,55 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares merging bundles using the direct accessor for the default entry uniqueness expression
+ * with evaluating the same expression through the FHIRPath engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EntryKeyExtractionBenchmark {
+
+  @Param({"100", "1000"})
+  public int bundleCount;
+
+  @Param({"request.url.toString()", "fullUrl.toString()"})
+  public String expression;
+
+  private List<Bundle> bundles;
+  private FhirBundleMerger directAccessMerger;
+  private FhirBundleMerger fhirPathMerger;
+
+  @Setup
+  public void setUp() {
+    bundles = MockData.bundles(bundleCount, 2);
+
+    var fhirPath = new FhirPathExpressionCache(new FhirPathR4(MockData.FHIR_CONTEXT));
+    directAccessMerger =
+        new FhirBundleMerger(
+            new EntryKeyExtractors(List.of(new DirectAccessEntryKeyExtractorFactory()), fhirPath));
+    fhirPathMerger = new FhirBundleMerger(new EntryKeyExtractors(List.of(), fhirPath));
+  }
+
+  @Benchmark
+  public Bundle mergeWithDirectAccess() {
+    return directAccessMerger.merge(bundles, expression);
+  }
+
+  @Benchmark
+  public Bundle mergeWithFhirPath() {
+    return fhirPathMerger.merge(bundles, expression);
+  }
+}
@@ -0,0 +1,97 @@
+package org.miracum.streams.fhirtoserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Generates benchmark input from the bundles in {@code hack/mock-data.ndjson}. The file contains
+ * one {@code key:bundle} pair per line as produced by kcat.
+ */
+final class MockData {
+  static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+
+  private MockData() {}
+
+  static List<Bundle> templates() {
+    var path = Path.of(System.getProperty("benchmark.mockDataPath", "../hack/mock-data.ndjson"));
+    var parser = FHIR_CONTEXT.newJsonParser();
+    try {
+      return Files.readAllLines(path).stream()
+          .filter(line -> !line.isBlank())
+          .map(line -> line.substring(line.indexOf('{')))
+          .map(json -> parser.parseResource(Bundle.class, json))
+          .toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Creates {@code bundleCount} bundles by copying the mock data bundles over and over. The ids of
+   * the contained resources are rewritten so that every {@code distinctKeyRatio}-th copy refers
+   * to a new set of resources, the rest are updates to already seen ones as is typical for real
+   * topics.
+   */
+  static List<Bundle> bundles(int bundleCount, int distinctKeyRatio) {
+    var templates = templates();
+    var bundles = new ArrayList<Bundle>(bundleCount);
+    for (int i = 0; i < bundleCount; i++) {
+      var bundle = templates.get(i % templates.size()).copy();
+      var suffix = "-" + (i / Math.max(1, distinctKeyRatio));
+      for (var entry : bundle.getEntry()) {
+        rewriteIds(entry, suffix);
+      }
+      bundles.add(bundle);
+    }
+    return bundles;
+  }
+
+  /**
+   * Creates {@code bundleCount} bundles of {@code entriesPerBundle} entries each by cycling through
+   * the entries of all mock data bundles. Like {@link #bundles(int, int)}, only every {@code
+   * distinctKeyRatio}-th bundle refers to a new set of resources.
+   */
+  static List<Bundle> bundles(int bundleCount, int distinctKeyRatio, int entriesPerBundle) {
+    var templateEntries =
+        templates().stream().flatMap(bundle -> bundle.getEntry().stream()).toList();
+    var bundles = new ArrayList<Bundle>(bundleCount);
+    for (int i = 0; i < bundleCount; i++) {
+      var bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+      for (int j = 0; j < entriesPerBundle; j++) {
+        var entry = templateEntries.get(j % templateEntries.size()).copy();
+        // entries repeat within a bundle once all template entries are used up, so the suffix
+        // includes the round to keep them distinct
+        var suffix = "-" + (i / Math.max(1, distinctKeyRatio)) + "-" + (j / templateEntries.size());
+        rewriteIds(entry, suffix);
+        bundle.addEntry(entry);
+      }
+      bundles.add(bundle);
+    }
+    return bundles;
+  }
+
+  /** Creates a single bundle of {@code entryCount} distinct entries. */
+  static Bundle bundle(int entryCount) {
+    return bundles(1, 1, entryCount).get(0);
+  }
+
+  private static void rewriteIds(Bundle.BundleEntryComponent entry, String suffix) {
+    var request = entry.getRequest();
+    if (request.hasUrl()) {
+      request.setUrl(request.getUrl() + suffix);
+    }
+    if (entry.hasFullUrl()) {
+      entry.setFullUrl(entry.getFullUrl() + suffix);
+    }
+    if (entry.hasResource() && entry.getResource().hasIdElement()) {
+      var resource = entry.getResource();
+      resource.setId(resource.getIdElement().getIdPart() + suffix);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package org.miracum.streams.fhirtoserver;
+
+import ca.uhn.fhir.util.BundleUtil;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures encoding resources as NDJSON the way {@link S3BundleStore} writes them to an object,
+ * including compression but without the upload itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NdjsonEncodingBenchmark {
+
+  @Param({"100", "10000"})
+  public int resourceCount;
+
+  @Param({"NONE", "GZIP", "ZSTD"})
+  public S3Compression compression;
+
+  private List<IBaseResource> resources;
+
+  @Setup
+  public void setUp() {
+    resources = BundleUtil.toListOfResources(MockData.FHIR_CONTEXT, MockData.bundle(resourceCount));
+  }
+
+  @Benchmark
+  public void encode() throws IOException {
+    try (var out = compression.wrap(OutputStream.nullOutputStream())) {
+      S3BundleStore.writeNdjson(MockData.FHIR_CONTEXT.newJsonParser(), resources, out);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Measures evaluating the FHIRPath filter expression against each incoming bundle. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ResourceFilterBenchmark {
+
+  @Param({"100"})
+  public int bundleCount;
+
+  @Param({"1", "10", "100"})
+  public int entriesPerBundle;
+
+  @Param({
+    "Bundle.entry.resource.where(resourceType = 'Patient').exists()",
+    "Bundle.entry.resource.where(meta.source.startsWith('#p')).exists()"
+  })
+  public String expression;
+
+  private List<Bundle> bundles;
+  private FhirPathResourceFilter filter;
+
+  @Setup
+  public void setUp() {
+    bundles = MockData.bundles(bundleCount, 1, entriesPerBundle);
+    filter =
+        new FhirPathResourceFilter(
+            new FhirPathExpressionCache(new FhirPathR4(MockData.FHIR_CONTEXT)));
+  }
+
+  @Benchmark
+  public void matches(Blackhole blackhole) {
+    for (var bundle : bundles) {
+      blackhole.consume(filter.matches(bundle, expression));
+    }
+  }
+}
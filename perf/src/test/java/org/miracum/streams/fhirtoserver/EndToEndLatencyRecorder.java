@@ -0,0 +1,74 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Records the time from producing each bundle to Kafka until its resources first arrive at the
+ * mock server. Bundles are identified by the number embedded in the ids of their resources, e.g.
+ * {@code Patient/perf-42-0}, which is found by scanning the received request bodies.
+ */
+final class EndToEndLatencyRecorder {
+  private static final Pattern BUNDLE_NUMBER = Pattern.compile("perf-(\\d+)-");
+
+  private final AtomicLongArray sentAtNanos;
+  private final AtomicLongArray latencyNanos;
+  private final CountDownLatch pending;
+
+  EndToEndLatencyRecorder(int numBundles) {
+    this.sentAtNanos = new AtomicLongArray(numBundles);
+    this.latencyNanos = new AtomicLongArray(numBundles);
+    this.pending = new CountDownLatch(numBundles);
+  }
+
+  void sent(int bundleNumber) {
+    sentAtNanos.set(bundleNumber, System.nanoTime());
+  }
+
+  /** Records every bundle mentioned in the body that wasn't received before. */
+  void received(CharSequence body) {
+    var receivedAt = System.nanoTime();
+    var matcher = BUNDLE_NUMBER.matcher(body);
+    while (matcher.find()) {
+      var bundleNumber = Integer.parseInt(matcher.group(1));
+      if (bundleNumber >= latencyNanos.length()) {
+        continue;
+      }
+      // bundles may be received more than once after a retry, only the first time counts
+      var latency = Math.max(1, receivedAt - sentAtNanos.get(bundleNumber));
+      if (latencyNanos.compareAndSet(bundleNumber, 0, latency)) {
+        pending.countDown();
+      }
+    }
+  }
+
+  boolean awaitAll(Duration timeout) throws InterruptedException {
+    return pending.await(timeout.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  long numReceived() {
+    return latencyNanos.length() - pending.getCount();
+  }
+
+  /** The given percentile, between 0 and 1, of the latencies of all received bundles. */
+  Duration percentile(double percentile) {
+    var latencies = new long[latencyNanos.length()];
+    var count = 0;
+    for (int i = 0; i < latencies.length; i++) {
+      var latency = latencyNanos.get(i);
+      if (latency > 0) {
+        latencies[count++] = latency;
+      }
+    }
+    if (count == 0) {
+      return Duration.ZERO;
+    }
+    Arrays.sort(latencies, 0, count);
+    var index = (int) Math.ceil(percentile * count) - 1;
+    return Duration.ofNanos(latencies[Math.clamp(index, 0, count - 1)]);
+  }
+}
@@ -0,0 +1,264 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.kafka.test.EmbeddedKafkaKraftBroker;
+
+/**
+ * Measures the throughput, end-to-end latency and heap usage of the application for each {@link
+ * PerfMode} against an embedded Kafka broker and the in-process {@link MockFhirServer}, so it
+ * runs offline on a single machine. Every mode consumes its own topic holding the same bundles.
+ *
+ * <p>Configured via system properties, which {@code ./gradlew :perf:perfTest} passes on from the
+ * matching {@code -P} project properties:
+ *
+ * <ul>
+ *   <li>{@code perf.bundles}: the number of bundles to produce per mode
+ *   <li>{@code perf.entriesPerBundle}: the number of entries per bundle
+ *   <li>{@code perf.modes}: comma-separated modes to run, all by default
+ *   <li>{@code perf.latency}: the latency of every mock server response, e.g. {@code 20ms}
+ *   <li>{@code perf.errorRate}: the fraction of transactions failing with a 500
+ *   <li>{@code perf.responseSize}: the size of transaction responses in bytes
+ *   <li>{@code perf.timeout}: how long to wait for all bundles to arrive per mode
+ * </ul>
+ */
+class FhirToServerPerfTest {
+  private static final int NUM_BUNDLES = Integer.getInteger("perf.bundles", 10_000);
+  private static final int ENTRIES_PER_BUNDLE = Integer.getInteger("perf.entriesPerBundle", 5);
+  private static final Duration LATENCY = duration(System.getProperty("perf.latency", "10ms"));
+  private static final double ERROR_RATE =
+      Double.parseDouble(System.getProperty("perf.errorRate", "0"));
+  private static final int RESPONSE_SIZE = Integer.getInteger("perf.responseSize", 1024);
+  private static final Duration TIMEOUT = duration(System.getProperty("perf.timeout", "10m"));
+  private static final String MODES = System.getProperty("perf.modes", "");
+
+  private static final FhirContext fhirContext = FhirContext.forR4();
+
+  private static final List<String> results = new ArrayList<>();
+
+  private static EmbeddedKafkaKraftBroker kafka;
+  private static List<String> bundles;
+
+  @BeforeAll
+  static void setUp() {
+    kafka = new EmbeddedKafkaKraftBroker(1, 4);
+    kafka.afterPropertiesSet();
+
+    var parser = fhirContext.newJsonParser();
+    bundles = new ArrayList<>(NUM_BUNDLES);
+    for (int i = 0; i < NUM_BUNDLES; i++) {
+      bundles.add(parser.encodeResourceToString(bundle(i)));
+    }
+  }
+
+  @AfterAll
+  static void tearDown() {
+    if (kafka != null) {
+      kafka.destroy();
+    }
+
+    System.out.printf(
+        "%nbundles=%d entriesPerBundle=%d latency=%s errorRate=%s responseSize=%d%n",
+        NUM_BUNDLES,
+        ENTRIES_PER_BUNDLE,
+        LATENCY,
+        ERROR_RATE,
+        RESPONSE_SIZE);
+    System.out.printf(
+        "%-12s %12s %10s %10s %14s %10s%n",
+        "mode",
+        "records/s",
+        "p50 ms",
+        "p99 ms",
+        "peak heap MiB",
+        "requests");
+    results.forEach(System.out::println);
+  }
+
+  @ParameterizedTest(name = "{0}")
+  @EnumSource(PerfMode.class)
+  void measureThroughput(PerfMode mode) throws Exception {
+    var modeName = mode.name().toLowerCase(Locale.ROOT);
+    var selectedModes = Arrays.asList(MODES.toLowerCase(Locale.ROOT).split(","));
+    Assumptions.assumeTrue(
+        MODES.isBlank() || selectedModes.contains(modeName), "mode not selected via perf.modes");
+
+    var topic = "fhir-msg-" + modeName;
+    kafka.addTopics(topic);
+
+    var recorder = new EndToEndLatencyRecorder(NUM_BUNDLES);
+    try (var server = new MockFhirServer(LATENCY, ERROR_RATE, RESPONSE_SIZE, recorder);
+        var app =
+            new SpringApplicationBuilder(FhirToServerApplication.class)
+                .properties(properties(mode, topic, server))
+                .run()) {
+      var heap = new PeakHeapSampler();
+      heap.start();
+
+      var startTime = System.nanoTime();
+      produce(topic, recorder);
+      var completed = recorder.awaitAll(TIMEOUT);
+      var elapsedNanos = System.nanoTime() - startTime;
+
+      heap.stop();
+
+      assertThat(completed)
+          .as("all bundles should arrive within %s, got %d", TIMEOUT, recorder.numReceived())
+          .isTrue();
+
+      var recordsPerSecond = NUM_BUNDLES / (elapsedNanos / 1e9);
+      results.add(
+          String.format(
+              Locale.ROOT,
+              "%-12s %12.1f %10d %10d %14d %10d",
+              modeName,
+              recordsPerSecond,
+              recorder.percentile(0.5).toMillis(),
+              recorder.percentile(0.99).toMillis(),
+              heap.peakBytes() / (1024 * 1024),
+              server.numRequests()));
+    }
+  }
+
+  private static Map<String, Object> properties(
+      PerfMode mode, String topic, MockFhirServer server) {
+    var binding = "spring.cloud.stream.bindings." + mode.function() + "-in-0.";
+    var properties = new HashMap<String, Object>();
+    // the default `dev` profile points at locally running services
+    properties.put("spring.profiles.active", "perf");
+    properties.put("server.port", "0");
+    properties.put("spring.kafka.bootstrapServers", kafka.getBrokersAsString());
+    properties.put("spring.kafka.consumer.properties.fetch.max.wait.ms", "500");
+    properties.put("spring.cloud.function.definition", mode.function());
+    properties.put(binding + "destination", topic);
+    properties.put(binding + "group", "perf-" + topic);
+    properties.put("fhir.url", server.fhirUrl());
+    properties.put("s3.endpoint-url", server.baseUrl());
+    properties.put("logging.level.org.miracum", "warn");
+    properties.putAll(mode.properties());
+    return properties;
+  }
+
+  private static void produce(String topic, EndToEndLatencyRecorder recorder) {
+    var producerProps =
+        Map.<String, Object>of(
+            ProducerConfig.BOOTSTRAP_SERVERS_CONFIG,
+            kafka.getBrokersAsString(),
+            ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG,
+            StringSerializer.class.getName(),
+            ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
+            StringSerializer.class.getName(),
+            ProducerConfig.LINGER_MS_CONFIG,
+            5);
+
+    try (var producer = new KafkaProducer<String, String>(producerProps)) {
+      for (int i = 0; i < bundles.size(); i++) {
+        recorder.sent(i);
+        producer.send(new ProducerRecord<>(topic, "perf-" + i, bundles.get(i)));
+      }
+      producer.flush();
+    }
+  }
+
+  /** A transaction of a patient and observations about it, identified by {@code number}. */
+  private static Bundle bundle(int number) {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+
+    var patient = new Patient();
+    patient.setId("perf-" + number + "-0");
+    patient.addName().setFamily("Family " + number).addGiven("Given");
+    addPut(bundle, patient);
+
+    for (int i = 1; i < ENTRIES_PER_BUNDLE; i++) {
+      var observation =
+          new Observation()
+              .setStatus(ObservationStatus.FINAL)
+              .setSubject(new Reference("Patient/" + patient.getIdPart()))
+              .setValue(new Quantity(i).setUnit("mg"));
+      observation.setId("perf-" + number + "-" + i);
+      observation.getCode().addCoding().setSystem("http://loinc.org").setCode("2345-7");
+      addPut(bundle, observation);
+    }
+    return bundle;
+  }
+
+  private static void addPut(Bundle bundle, Resource resource) {
+    var url = resource.fhirType() + "/" + resource.getIdPart();
+    bundle
+        .addEntry()
+        .setFullUrl(url)
+        .setResource(resource)
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl(url);
+  }
+
+  /** Parses durations like {@code 10ms}, {@code 5s} or {@code 10m}. */
+  private static Duration duration(String value) {
+    return DurationStyle.detectAndParse(value);
+  }
+
+  /** Samples the used heap in the background to report its peak while a mode is running. */
+  private static final class PeakHeapSampler {
+    private final AtomicLong peakBytes = new AtomicLong();
+    private Thread thread;
+
+    void start() {
+      var memory = ManagementFactory.getMemoryMXBean();
+      thread =
+          Thread.ofVirtual()
+              .name("peak-heap-sampler")
+              .start(
+                  () -> {
+                    while (!Thread.currentThread().isInterrupted()) {
+                      peakBytes.accumulateAndGet(
+                          memory.getHeapMemoryUsage().getUsed(), Math::max);
+                      try {
+                        Thread.sleep(100);
+                      } catch (InterruptedException e) {
+                        return;
+                      }
+                    }
+                  });
+    }
+
+    void stop() throws InterruptedException {
+      thread.interrupt();
+      thread.join();
+    }
+
+    long peakBytes() {
+      return peakBytes.get();
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package org.miracum.streams.fhirtoserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for a FHIR server and an S3 bucket. Transactions are answered after a fixed
+ * latency, either with an error at the configured rate or with a transaction-response padded to
+ * the configured size. S3 uploads, including multipart ones, are accepted and discarded. The
+ * bodies of all requests are passed to the {@link EndToEndLatencyRecorder}.
+ */
+final class MockFhirServer implements AutoCloseable {
+  static final String BUCKET_NAME = "perf";
+
+  private static final String CAPABILITY_STATEMENT =
+      """
+      {"resourceType":"CapabilityStatement","status":"active","date":"2024-01-01",\
+      "kind":"instance","fhirVersion":"4.0.1","format":["json"]}""";
+
+  private static final String SERVER_ERROR =
+      """
+      {"resourceType":"OperationOutcome","issue":[{"severity":"error","code":"transient",\
+      "diagnostics":"Injected error"}]}""";
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Duration latency;
+  private final double errorRate;
+  private final byte[] transactionResponse;
+  private final EndToEndLatencyRecorder recorder;
+  private final AtomicLong numRequests = new AtomicLong();
+  private final AtomicLong numInjectedErrors = new AtomicLong();
+
+  MockFhirServer(
+      Duration latency, double errorRate, int responseSize, EndToEndLatencyRecorder recorder)
+      throws IOException {
+    this.latency = latency;
+    this.errorRate = errorRate;
+    this.transactionResponse = transactionResponse(responseSize);
+    this.recorder = recorder;
+
+    this.executor = Executors.newVirtualThreadPerTaskExecutor();
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/fhir", this::handleFhir);
+    server.createContext("/" + BUCKET_NAME, this::handleS3);
+    server.start();
+  }
+
+  String baseUrl() {
+    return String.format("http://localhost:%d", server.getAddress().getPort());
+  }
+
+  String fhirUrl() {
+    return baseUrl() + "/fhir";
+  }
+
+  long numRequests() {
+    return numRequests.get();
+  }
+
+  long numInjectedErrors() {
+    return numInjectedErrors.get();
+  }
+
+  private void handleFhir(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if ("GET".equals(exchange.getRequestMethod())
+          && exchange.getRequestURI().getPath().endsWith("/metadata")) {
+        respond(exchange, 200, CAPABILITY_STATEMENT.getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+
+      var body = readBody(exchange);
+      numRequests.incrementAndGet();
+      sleep(latency);
+
+      if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+        numInjectedErrors.incrementAndGet();
+        respond(exchange, 500, SERVER_ERROR.getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+
+      recorder.received(body);
+      respond(exchange, 200, transactionResponse);
+    }
+  }
+
+  /** Implements just enough of the S3 API for single and multipart uploads. */
+  private void handleS3(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      var method = exchange.getRequestMethod();
+      var query = exchange.getRequestURI().getQuery();
+      query = query == null ? "" : query;
+
+      var body = readBody(exchange);
+      numRequests.incrementAndGet();
+      sleep(latency);
+
+      if ("POST".equals(method) && query.contains("uploads")) {
+        respondXml(
+            exchange,
+            "<InitiateMultipartUploadResult><Bucket>%s</Bucket><UploadId>%s</UploadId>"
+                    .formatted(BUCKET_NAME, UUID.randomUUID())
+                + "</InitiateMultipartUploadResult>");
+      } else if ("POST".equals(method) && query.contains("uploadId")) {
+        respondXml(
+            exchange,
+            "<CompleteMultipartUploadResult><Bucket>%s</Bucket><ETag>\"etag\"</ETag>"
+                    .formatted(BUCKET_NAME)
+                + "</CompleteMultipartUploadResult>");
+      } else if ("PUT".equals(method)) {
+        recorder.received(body);
+        exchange.getResponseHeaders().add("ETag", "\"etag\"");
+        respond(exchange, 200, new byte[0]);
+      } else {
+        respond(exchange, 204, null);
+      }
+    }
+  }
+
+  private static String readBody(HttpExchange exchange) throws IOException {
+    InputStream in = exchange.getRequestBody();
+    if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      in = new GZIPInputStream(in);
+    }
+    return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+  }
+
+  private static void respondXml(HttpExchange exchange, String xml) throws IOException {
+    exchange.getResponseHeaders().add("Content-Type", "application/xml");
+    respond(exchange, 200, xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    if (exchange.getResponseHeaders().getFirst("Content-Type") == null) {
+      exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+    }
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    if (body.length > 0) {
+      exchange.getResponseBody().write(body);
+    }
+  }
+
+  /** A transaction-response bundle padded with a link to be roughly {@code size} bytes large. */
+  private static byte[] transactionResponse(int size) {
+    var prefix =
+        "{\"resourceType\":\"Bundle\",\"type\":\"transaction-response\","
+            + "\"link\":[{\"relation\":\"padding\",\"url\":\"http://localhost/";
+    var suffix = "\"}]}";
+    var padding = Math.max(0, size - prefix.length() - suffix.length());
+    return (prefix + "x".repeat(padding) + suffix).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void sleep(Duration duration) {
+    if (duration.isZero()) {
+      return;
+    }
+    try {
+      Thread.sleep(duration);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.close();
+  }
+}
@@ -0,0 +1,51 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.Map;
+
+/** The ways of running the application measured by the perf harness. */
+enum PerfMode {
+  /** Every record is sent as its own transaction. */
+  SINGLE("sinkSingle", Map.of()),
+  /** Records are consumed in batches, but each bundle is still sent on its own. */
+  BATCH("sinkBatch", Map.of()),
+  /** All bundles of a batch are merged into a single transaction. */
+  MERGED("sinkBatch", Map.of("fhir.merge-batches-into-single-bundle.enabled", "true")),
+  /** Merged bundles are split into partitions which are sent concurrently. */
+  PARTITIONED(
+      "sinkBatch",
+      Map.of(
+          "fhir.merge-batches-into-single-bundle.enabled",
+          "true",
+          "fhir.merge-batches-into-single-bundle.bundle-max-size",
+          "100",
+          "fhir.merge-batches-into-single-bundle.partition-send-concurrency",
+          "4")),
+  /** Batches are stored as NDJSON objects in the mock server's S3 bucket. */
+  S3(
+      "sinkBatch",
+      Map.of(
+          "s3.enabled",
+          "true",
+          "s3.bucket-name",
+          MockFhirServer.BUCKET_NAME,
+          "s3.access-key",
+          "perf",
+          "s3.secret-key",
+          "perf"));
+
+  private final String function;
+  private final Map<String, String> properties;
+
+  PerfMode(String function, Map<String, String> properties) {
+    this.function = function;
+    this.properties = properties;
+  }
+
+  String function() {
+    return function;
+  }
+
+  Map<String, String> properties() {
+    return properties;
+  }
+}
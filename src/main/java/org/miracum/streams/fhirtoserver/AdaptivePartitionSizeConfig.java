@@ -0,0 +1,19 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.merge-batches-into-single-bundle.adaptive-partition-size")
+@Validated
+public record AdaptivePartitionSizeConfig(
+    boolean enabled,
+    @Min(1) int minSize,
+    @Min(1) int maxSize,
+    @Min(1) int increaseStep,
+    @DecimalMin("0.1") @DecimalMax("0.9") double decreaseFactor,
+    @NotNull Duration targetDuration) {}
@@ -0,0 +1,111 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the maximum size of the partitions a merged bundle is split into based on how the server
+ * copes with them, using an additive-increase/multiplicative-decrease controller.
+ *
+ * <p>After every successful transaction, the time it took per entry is folded into a moving
+ * average. If a transaction of the current partition size is predicted to take longer than the
+ * target duration, the size is decreased multiplicatively, otherwise it is increased by a fixed
+ * step. Timeouts, server errors and "payload too large" responses decrease it as well.
+ */
+public class AdaptivePartitionSizer {
+  private static final Logger LOG = LoggerFactory.getLogger(AdaptivePartitionSizer.class);
+
+  // weight of the latest observation in the moving average of the per-entry latency
+  private static final double SMOOTHING = 0.2;
+
+  private final AdaptivePartitionSizeConfig config;
+  private final double targetNanos;
+
+  private int currentSize;
+  private double averageNanosPerEntry = Double.NaN;
+
+  /**
+   * @param config the bounds and tuning of the controller
+   * @param initialSize the partition size to start with. Clamped to the configured bounds.
+   */
+  public AdaptivePartitionSizer(AdaptivePartitionSizeConfig config, int initialSize) {
+    if (config.minSize() > config.maxSize()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The minimum partition size %d must not exceed the maximum of %d",
+              config.minSize(), config.maxSize()));
+    }
+
+    this.config = config;
+    this.targetNanos = config.targetDuration().toNanos();
+    this.currentSize = Math.clamp(initialSize, config.minSize(), config.maxSize());
+
+    Gauge.builder(
+            "fhirtoserver.fhir.batch.partition.size", this, AdaptivePartitionSizer::currentSize)
+        .register(Metrics.globalRegistry);
+  }
+
+  /** The maximum number of entries the next partitions should contain. */
+  public synchronized int currentSize() {
+    return currentSize;
+  }
+
+  /**
+   * Records a successfully sent transaction.
+   *
+   * @param entries the number of entries in the transaction bundle
+   * @param durationNanos how long sending it took
+   */
+  public synchronized void onSuccess(int entries, long durationNanos) {
+    if (entries == 0) {
+      return;
+    }
+
+    var nanosPerEntry = (double) durationNanos / entries;
+    averageNanosPerEntry =
+        Double.isNaN(averageNanosPerEntry)
+            ? nanosPerEntry
+            : SMOOTHING * nanosPerEntry + (1 - SMOOTHING) * averageNanosPerEntry;
+
+    if (averageNanosPerEntry * currentSize > targetNanos) {
+      decrease("slow");
+    } else if (entries >= currentSize) {
+      // only grow if partitions are actually filled, otherwise the size isn't the limiting factor
+      resize(currentSize + config.increaseStep(), "fast");
+    }
+  }
+
+  /**
+   * Records a failed attempt at sending a transaction. Only errors that indicate the server is
+   * overloaded or the transaction was too large shrink the partition size.
+   */
+  public synchronized void onFailure(Throwable error) {
+    if (FhirServerErrors.indicatesOverload(error)) {
+      decrease(error.getClass().getSimpleName());
+    }
+  }
+
+  private void decrease(String reason) {
+    resize((int) (currentSize * config.decreaseFactor()), reason);
+  }
+
+  private void resize(int newSize, String reason) {
+    var bounded = Math.clamp(newSize, config.minSize(), config.maxSize());
+    if (bounded != currentSize) {
+      LOG.debug(
+          "Changing partition size from {} to {} due to {}. {}",
+          kv("previousSize", currentSize),
+          kv("newSize", bounded),
+          kv("reason", reason),
+          kv(
+              "averageMillisPerEntry",
+              TimeUnit.NANOSECONDS.toMillis((long) averageNanosPerEntry)));
+      currentSize = bounded;
+    }
+  }
+}
@@ -0,0 +1,252 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.MessageHeaders;
+
+/**
+ * Buffers the bundles of consecutive batches until a target entry count, a target size or a
+ * linger deadline is reached and then hands all of them to the flusher at once. The batches are
+ * only acknowledged once the flush succeeded.
+ *
+ * <p>State is kept per consumer thread, so each container thread only ever flushes and
+ * acknowledges the records of the partitions assigned to it. If a flush fails, the consumer is
+ * rewound to the first buffered offset of each partition and the re-delivered batches are
+ * flushed one by one, without lingering, until the failed offsets have been passed. This way a
+ * failing batch is handled by the container's error handler (and sent to the dead letter topic)
+ * exactly as without lingering.
+ */
+public class BatchAccumulator {
+  private static final Logger LOG = LoggerFactory.getLogger(BatchAccumulator.class);
+
+  private static final String FLUSHES_COUNTER_NAME = "fhirtoserver.fhir.batch.linger.flushes.total";
+
+  private static final AtomicInteger pendingEntriesGauge =
+      Metrics.globalRegistry.gauge(
+          "fhirtoserver.fhir.batch.linger.pending.entries", new AtomicInteger(0));
+
+  private static final Counter flushFailedCounter =
+      Metrics.globalRegistry.counter(
+          "fhirtoserver.processing.errors.total", "kind", "linger-flush-failed");
+
+  private static final class Pending {
+    private final List<Bundle> bundles = new ArrayList<>();
+    private final List<Acknowledgment> acknowledgments = new ArrayList<>();
+    private final Map<TopicPartition, Long> firstOffsets = new HashMap<>();
+    private final Map<TopicPartition, Long> lastOffsets = new HashMap<>();
+    private int entries;
+    private long bytes;
+    private long startedAtNanos;
+  }
+
+  private final BatchLingerConfig config;
+  private final FhirContext fhirContext;
+  private final java.util.function.Consumer<List<Bundle>> flusher;
+
+  private final ThreadLocal<Pending> pending = ThreadLocal.withInitial(Pending::new);
+  private final ThreadLocal<Map<TopicPartition, Long>> replayUntil =
+      ThreadLocal.withInitial(HashMap::new);
+
+  /**
+   * @param config the linger limits
+   * @param fhirContext used to estimate the encoded size of the buffered bundles
+   * @param flusher merges and sends the given bundles. Must throw if sending failed.
+   */
+  public BatchAccumulator(
+      BatchLingerConfig config,
+      FhirContext fhirContext,
+      java.util.function.Consumer<List<Bundle>> flusher) {
+    this.config = config;
+    this.fhirContext = fhirContext;
+    this.flusher = flusher;
+  }
+
+  /**
+   * Adds the bundles of a received batch and flushes if any of the limits has been reached.
+   *
+   * @param bundles the bundles in the batch
+   * @param headers the headers of the batch message, used to acknowledge and rewind it
+   */
+  public void add(List<Bundle> bundles, MessageHeaders headers) {
+    var offsets = OffsetRange.of(headers);
+    var acknowledgment = headers.get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
+
+    if (isReplaying(offsets)) {
+      LOG.debug("Re-sending batch received after a failed flush without lingering");
+      flusher.accept(bundles);
+      if (acknowledgment != null) {
+        acknowledgment.acknowledge();
+      }
+      var until = replayUntil.get();
+      offsets.forEach(
+          (partition, range) -> {
+            if (until.containsKey(partition) && range.last() >= until.get(partition)) {
+              until.remove(partition);
+            }
+          });
+      return;
+    }
+
+    var state = pending.get();
+    if (state.bundles.isEmpty()) {
+      if (bundles.isEmpty()) {
+        // nothing to send and nothing buffered that would need to be sent first
+        if (acknowledgment != null) {
+          acknowledgment.acknowledge();
+        }
+        return;
+      }
+      state.startedAtNanos = System.nanoTime();
+    }
+
+    var entries = 0;
+    for (var bundle : bundles) {
+      entries += bundle.getEntry().size();
+      if (config.maxBytes().isPresent()) {
+        state.bytes += encodedSize(bundle);
+      }
+    }
+    state.bundles.addAll(bundles);
+    state.entries += entries;
+    pendingEntriesGauge.addAndGet(entries);
+    if (acknowledgment != null) {
+      state.acknowledgments.add(acknowledgment);
+    }
+    offsets.forEach(
+        (partition, range) -> {
+          state.firstOffsets.putIfAbsent(partition, range.first());
+          state.lastOffsets.put(partition, range.last());
+        });
+
+    Consumer<?, ?> consumer = headers.get(KafkaHeaders.CONSUMER, Consumer.class);
+
+    if (state.entries >= config.maxEntries()) {
+      flush("entries", consumer);
+    } else if (config.maxBytes().isPresent()
+        && state.bytes >= config.maxBytes().get().toBytes()) {
+      flush("bytes", consumer);
+    } else {
+      flushIfDue(consumer);
+    }
+  }
+
+  /**
+   * Flushes the buffer of the calling consumer thread if its linger deadline has passed. Meant to
+   * be called periodically from the consumer thread, even if no new records arrive.
+   *
+   * @param consumer the consumer of the calling thread, used to rewind if the flush fails
+   */
+  public void flushIfDue(@Nullable Consumer<?, ?> consumer) {
+    var state = pending.get();
+    if (!state.bundles.isEmpty()
+        && System.nanoTime() - state.startedAtNanos >= config.maxWait().toNanos()) {
+      flush("deadline", consumer);
+    }
+  }
+
+  private void flush(String reason, @Nullable Consumer<?, ?> consumer) {
+    var state = pending.get();
+    pending.remove();
+    pendingEntriesGauge.addAndGet(-state.entries);
+
+    LOG.debug(
+        "Flushing lingered batches with {} and {} due to {}",
+        kv("numBundles", state.bundles.size()),
+        kv("numEntries", state.entries),
+        kv("reason", reason));
+    Metrics.globalRegistry.counter(FLUSHES_COUNTER_NAME, "reason", reason).increment();
+
+    try {
+      flusher.accept(state.bundles);
+    } catch (RuntimeException e) {
+      flushFailedCounter.increment();
+      if (consumer == null || state.firstOffsets.isEmpty()) {
+        throw e;
+      }
+
+      LOG.error(
+          "Failed to send lingered batches. Rewinding to re-send them one by one. {}",
+          kv("offsets", state.firstOffsets),
+          e);
+      state.firstOffsets.forEach(
+          (partition, offset) -> {
+            try {
+              consumer.seek(partition, offset);
+            } catch (IllegalStateException ise) {
+              // the partition has been revoked in the meantime. Its new owner re-reads the
+              // uncommitted records anyway.
+              LOG.warn("Failed to rewind {}", kv("partition", partition), ise);
+            }
+          });
+      state.lastOffsets.forEach(
+          (partition, offset) -> replayUntil.get().merge(partition, offset, Math::max));
+      return;
+    }
+
+    state.acknowledgments.forEach(Acknowledgment::acknowledge);
+  }
+
+  private boolean isReplaying(Map<TopicPartition, OffsetRange> offsets) {
+    var until = replayUntil.get();
+    if (until.isEmpty()) {
+      return false;
+    }
+    return offsets.entrySet().stream()
+        .anyMatch(
+            e -> until.containsKey(e.getKey()) && e.getValue().first() <= until.get(e.getKey()));
+  }
+
+  private long encodedSize(Bundle bundle) {
+    var counter = new CountingWriter();
+    try {
+      fhirContext.newJsonParser().encodeResourceToWriter(bundle, counter);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return counter.count;
+  }
+
+  /** Counts the characters written without keeping them, as an estimate of the encoded size. */
+  private static final class CountingWriter extends Writer {
+    private long count;
+
+    @Override
+    public void write(char[] buffer, int offset, int length) {
+      count += length;
+    }
+
+    @Override
+    public void write(int c) {
+      count++;
+    }
+
+    @Override
+    public void write(String value, int offset, int length) {
+      count += length;
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,17 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.time.Duration;
+import java.util.Optional;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.merge-batches-into-single-bundle.linger")
+@Validated
+public record BatchLingerConfig(
+    boolean enabled,
+    @Min(1) int maxEntries,
+    Optional<DataSize> maxBytes,
+    @NotNull Duration maxWait) {}
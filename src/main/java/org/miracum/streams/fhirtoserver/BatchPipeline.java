@@ -0,0 +1,374 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.MessageHeaders;
+
+/**
+ * Merges and sends consecutive batches in overlapping stages: while the consumer thread polls and
+ * deserializes a batch, the previous one is merged on the merge stage and the one before that is
+ * sent on the send stage. The stages are connected by bounded queues, so the consumer thread is
+ * blocked once they are full. Batches are acknowledged in the order they were received once they
+ * have been sent, which requires manual acknowledgement.
+ *
+ * <p>Like for the {@link BatchAccumulator}, stages are kept per consumer thread. If merging or
+ * sending a batch fails, all batches behind it are dropped without being acknowledged and the next
+ * call from the consumer thread rewinds the consumer to the first unacknowledged offset of each
+ * partition. The re-delivered batches are then merged and sent on the consumer thread, without
+ * pipelining, until the failed offsets have been passed. This way a failing batch is handled by
+ * the container's error handler exactly as without pipelining.
+ */
+public class BatchPipeline implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(BatchPipeline.class);
+
+  private static final String QUEUE_DEPTH_GAUGE_NAME =
+      "fhirtoserver.fhir.batch.pipeline.queue.depth";
+  private static final String WAIT_TIMER_NAME = "fhirtoserver.fhir.batch.pipeline.wait.duration";
+
+  private static final AtomicInteger mergeQueueDepth =
+      Metrics.globalRegistry.gauge(
+          QUEUE_DEPTH_GAUGE_NAME, Tags.of("stage", "merge"), new AtomicInteger(0));
+  private static final AtomicInteger sendQueueDepth =
+      Metrics.globalRegistry.gauge(
+          QUEUE_DEPTH_GAUGE_NAME, Tags.of("stage", "send"), new AtomicInteger(0));
+
+  private static final Timer mergeWaitTimer =
+      Metrics.globalRegistry.timer(WAIT_TIMER_NAME, "stage", "merge");
+  private static final Timer sendWaitTimer =
+      Metrics.globalRegistry.timer(WAIT_TIMER_NAME, "stage", "send");
+
+  private static final Counter pipelineFailedCounter =
+      Metrics.globalRegistry.counter(
+          "fhirtoserver.processing.errors.total", "kind", "pipeline-batch-failed");
+
+  private record Batch(
+      List<Bundle> bundles,
+      Map<TopicPartition, OffsetRange> offsets,
+      @Nullable Acknowledgment acknowledgment,
+      long enqueuedAtNanos) {}
+
+  private record MergedBatch(Bundle bundle, Batch batch, long enqueuedAtNanos) {}
+
+  private final int queueCapacity;
+  private final Function<List<Bundle>, Bundle> merger;
+  private final java.util.function.Consumer<Bundle> sender;
+
+  private final List<Stages> allStages = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<Stages> stages = ThreadLocal.withInitial(this::startStages);
+
+  /**
+   * @param queueCapacity the number of batches that may wait in front of each stage
+   * @param merger merges the bundles of a batch into a single one
+   * @param sender sends a merged bundle. Must throw if sending failed.
+   */
+  public BatchPipeline(
+      int queueCapacity,
+      Function<List<Bundle>, Bundle> merger,
+      java.util.function.Consumer<Bundle> sender) {
+    this.queueCapacity = queueCapacity;
+    this.merger = merger;
+    this.sender = sender;
+  }
+
+  /**
+   * Hands the bundles of a received batch to the merge stage, blocking while its queue is full.
+   * The batch is acknowledged by the send stage.
+   *
+   * @param bundles the bundles in the batch
+   * @param headers the headers of the batch message, used to acknowledge and rewind it
+   */
+  public void submit(List<Bundle> bundles, MessageHeaders headers) {
+    stages.get().submit(bundles, headers);
+  }
+
+  /**
+   * Rewinds the consumer if a batch failed while no new records arrived. Meant to be called
+   * periodically from the consumer thread.
+   *
+   * @param consumer the consumer of the calling thread
+   */
+  public void rewindIfFailed(@Nullable Consumer<?, ?> consumer) {
+    var current = stages.get();
+    if (current.failure != null) {
+      current.rewind(consumer, Map.of());
+    }
+  }
+
+  private Stages startStages() {
+    var started = new Stages();
+    allStages.add(started);
+    return started;
+  }
+
+  /**
+   * Stops all stages. Batches that haven't been sent yet aren't acknowledged and are re-delivered
+   * after a restart.
+   */
+  @Override
+  public void close() {
+    for (var started : allStages) {
+      started.close();
+    }
+  }
+
+  /** The stages and state belonging to a single consumer thread. */
+  private final class Stages {
+    private final BlockingQueue<Batch> mergeQueue = new ArrayBlockingQueue<>(queueCapacity);
+    private final BlockingQueue<MergedBatch> sendQueue = new ArrayBlockingQueue<>(queueCapacity);
+
+    // batches that have been submitted but not acknowledged yet, in the order they were received
+    private final Queue<Batch> unacknowledged = new ConcurrentLinkedQueue<>();
+    // the number of submitted batches that haven't been acknowledged or dropped yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object drainedLock = new Object();
+    private volatile RuntimeException failure;
+
+    // only accessed by the consumer thread
+    private final Map<TopicPartition, Long> replayUntil = new HashMap<>();
+
+    private final Thread mergeStage;
+    private final Thread sendStage;
+
+    Stages() {
+      var name = Thread.currentThread().getName();
+      mergeStage = Thread.ofVirtual().name(name + "-merge").start(this::runMergeStage);
+      sendStage = Thread.ofVirtual().name(name + "-send").start(this::runSendStage);
+    }
+
+    void submit(List<Bundle> bundles, MessageHeaders headers) {
+      var offsets = OffsetRange.of(headers);
+      var acknowledgment = headers.get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
+
+      if (failure != null) {
+        // the batch is re-delivered after rewinding, since it comes after the failed one
+        rewind(headers.get(KafkaHeaders.CONSUMER, Consumer.class), offsets);
+        return;
+      }
+
+      if (isReplaying(offsets)) {
+        LOG.debug("Re-sending batch received after a failed pipelined batch without pipelining");
+        // batches of other partitions still in the pipeline must not be acknowledged after it
+        awaitDrained();
+        sender.accept(merger.apply(bundles));
+        if (acknowledgment != null) {
+          acknowledgment.acknowledge();
+        }
+        offsets.forEach(
+            (partition, range) -> {
+              if (replayUntil.containsKey(partition)
+                  && range.last() >= replayUntil.get(partition)) {
+                replayUntil.remove(partition);
+              }
+            });
+        return;
+      }
+
+      var batch = new Batch(bundles, offsets, acknowledgment, System.nanoTime());
+      unacknowledged.add(batch);
+      inFlight.incrementAndGet();
+      mergeQueueDepth.incrementAndGet();
+      try {
+        mergeQueue.put(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        mergeQueueDepth.decrementAndGet();
+        unacknowledged.remove(batch);
+        completed();
+        throw new IllegalStateException("Interrupted while submitting batch to the pipeline", e);
+      }
+    }
+
+    private void runMergeStage() {
+      while (true) {
+        Batch batch;
+        try {
+          batch = mergeQueue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        mergeQueueDepth.decrementAndGet();
+        mergeWaitTimer.record(System.nanoTime() - batch.enqueuedAtNanos(), TimeUnit.NANOSECONDS);
+
+        if (failure != null) {
+          completed();
+          continue;
+        }
+
+        Bundle merged;
+        try {
+          merged = merger.apply(batch.bundles());
+        } catch (RuntimeException e) {
+          fail(batch, e);
+          continue;
+        }
+
+        sendQueueDepth.incrementAndGet();
+        try {
+          sendQueue.put(new MergedBatch(merged, batch, System.nanoTime()));
+        } catch (InterruptedException e) {
+          sendQueueDepth.decrementAndGet();
+          return;
+        }
+      }
+    }
+
+    private void runSendStage() {
+      while (true) {
+        MergedBatch merged;
+        try {
+          merged = sendQueue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        sendQueueDepth.decrementAndGet();
+        sendWaitTimer.record(System.nanoTime() - merged.enqueuedAtNanos(), TimeUnit.NANOSECONDS);
+
+        if (failure != null) {
+          completed();
+          continue;
+        }
+
+        try {
+          sender.accept(merged.bundle());
+        } catch (RuntimeException e) {
+          fail(merged.batch(), e);
+          continue;
+        }
+
+        // the send stage handles batches in the order they were submitted, so acknowledgements
+        // are in order as well
+        if (merged.batch().acknowledgment() != null) {
+          merged.batch().acknowledgment().acknowledge();
+        }
+        unacknowledged.remove(merged.batch());
+        completed();
+      }
+    }
+
+    private void fail(Batch batch, RuntimeException e) {
+      pipelineFailedCounter.increment();
+      LOG.error(
+          "Failed to process pipelined batch. Dropping the batches behind it. {}",
+          kv("offsets", batch.offsets()),
+          e);
+      if (failure == null) {
+        failure = e;
+      }
+      completed();
+    }
+
+    private void completed() {
+      synchronized (drainedLock) {
+        if (inFlight.decrementAndGet() == 0) {
+          drainedLock.notifyAll();
+        }
+      }
+    }
+
+    private void awaitDrained() {
+      synchronized (drainedLock) {
+        while (inFlight.get() > 0) {
+          try {
+            drainedLock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the pipeline", e);
+          }
+        }
+      }
+    }
+
+    /**
+     * Waits for the stages to drop all remaining batches and seeks the consumer back to the first
+     * unacknowledged offset of each partition, including the offsets of the current batch.
+     */
+    void rewind(@Nullable Consumer<?, ?> consumer, Map<TopicPartition, OffsetRange> offsets) {
+      awaitDrained();
+
+      var error = failure;
+      var firstOffsets = new HashMap<TopicPartition, Long>();
+      var lastOffsets = new HashMap<TopicPartition, Long>();
+      for (var batch : unacknowledged) {
+        batch
+            .offsets()
+            .forEach(
+                (partition, range) -> {
+                  firstOffsets.merge(partition, range.first(), Math::min);
+                  lastOffsets.merge(partition, range.last(), Math::max);
+                });
+      }
+      offsets.forEach(
+          (partition, range) -> {
+            firstOffsets.merge(partition, range.first(), Math::min);
+            lastOffsets.merge(partition, range.last(), Math::max);
+          });
+      unacknowledged.clear();
+      failure = null;
+
+      if (consumer == null || firstOffsets.isEmpty()) {
+        throw error;
+      }
+
+      LOG.warn(
+          "Rewinding to re-send the unacknowledged batches one by one. {}",
+          kv("offsets", firstOffsets));
+      firstOffsets.forEach(
+          (partition, offset) -> {
+            try {
+              consumer.seek(partition, offset);
+            } catch (IllegalStateException ise) {
+              // the partition has been revoked in the meantime. Its new owner re-reads the
+              // uncommitted records anyway.
+              LOG.warn("Failed to rewind {}", kv("partition", partition), ise);
+            }
+          });
+      lastOffsets.forEach((partition, offset) -> replayUntil.merge(partition, offset, Math::max));
+    }
+
+    private boolean isReplaying(Map<TopicPartition, OffsetRange> offsets) {
+      if (replayUntil.isEmpty()) {
+        return false;
+      }
+      return offsets.entrySet().stream()
+          .anyMatch(
+              e ->
+                  replayUntil.containsKey(e.getKey())
+                      && e.getValue().first() <= replayUntil.get(e.getKey()));
+    }
+
+    void close() {
+      mergeStage.interrupt();
+      sendStage.interrupt();
+      try {
+        mergeStage.join();
+        sendStage.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
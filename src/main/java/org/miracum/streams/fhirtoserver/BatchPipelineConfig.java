@@ -0,0 +1,9 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.merge-batches-into-single-bundle.pipeline")
+@Validated
+public record BatchPipelineConfig(boolean enabled, @Min(1) int queueCapacity) {}
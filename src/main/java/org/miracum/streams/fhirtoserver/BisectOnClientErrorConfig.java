@@ -0,0 +1,9 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.bisect-on-client-error")
+@Validated
+public record BisectOnClientErrorConfig(boolean enabled, @Min(0) int maxDepth) {}
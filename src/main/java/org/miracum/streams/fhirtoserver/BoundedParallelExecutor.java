@@ -0,0 +1,115 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.MDC;
+
+/**
+ * Runs a list of tasks on virtual threads while never allowing more than {@code maxConcurrency}
+ * of them to be in flight at the same time.
+ */
+public class BoundedParallelExecutor {
+  private final int maxConcurrency;
+  private final AtomicInteger inFlight;
+
+  /**
+   * @param maxConcurrency the maximum number of tasks running at once. Values below 2 run all
+   *     tasks sequentially on the calling thread.
+   * @param inFlight incremented whenever a task starts and decremented once it completes. Useful
+   *     to back a gauge.
+   */
+  public BoundedParallelExecutor(int maxConcurrency, AtomicInteger inFlight) {
+    this.maxConcurrency = maxConcurrency;
+    this.inFlight = inFlight;
+  }
+
+  public int maxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Runs all given tasks and returns only once every one of them has completed successfully. As
+   * soon as a task fails, no further tasks are started, the ones still running are cancelled and
+   * the exception of the first failed task is rethrown unwrapped so callers (and retry policies)
+   * see the same exception types as if the tasks had been run sequentially. The tasks run with the
+   * caller's MDC.
+   *
+   * @param tasks the tasks to run
+   * @throws Exception the exception thrown by the first failing task
+   */
+  public void invokeAll(List<? extends Callable<?>> tasks) throws Exception {
+    if (maxConcurrency < 2 || tasks.size() < 2) {
+      for (var task : tasks) {
+        inFlight.incrementAndGet();
+        try {
+          task.call();
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+      return;
+    }
+
+    // the tasks are run on other threads, so they need to inherit the caller's logging context
+    var mdc = MDC.getCopyOfContextMap();
+    var futures = new ArrayList<Future<Object>>(tasks.size());
+    var remainingTasks = tasks.iterator();
+    var running = 0;
+    Throwable failure = null;
+
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      // yields the tasks in the order they complete, so a failure is seen as soon as it happens
+      // rather than after all tasks submitted before the failed one have completed.
+      var completionService = new ExecutorCompletionService<Object>(executor);
+      try {
+        while (failure == null && (remainingTasks.hasNext() || running > 0)) {
+          if (remainingTasks.hasNext() && running < maxConcurrency) {
+            var task = remainingTasks.next();
+            futures.add(completionService.submit(() -> callWithMdc(task, mdc)));
+            running++;
+            continue;
+          }
+
+          var completed = completionService.take();
+          running--;
+          try {
+            completed.get();
+          } catch (ExecutionException e) {
+            failure = e.getCause();
+          }
+        }
+      } finally {
+        // a no-op for the completed ones
+        for (var future : futures) {
+          future.cancel(true);
+        }
+      }
+    }
+
+    if (failure instanceof Exception exception) {
+      throw exception;
+    } else if (failure instanceof Error error) {
+      throw error;
+    }
+  }
+
+  private Object callWithMdc(Callable<?> task, Map<String, String> mdc) throws Exception {
+    if (mdc != null) {
+      MDC.setContextMap(mdc);
+    }
+    inFlight.incrementAndGet();
+    try {
+      return task.call();
+    } finally {
+      inFlight.decrementAndGet();
+      MDC.clear();
+    }
+  }
+}
@@ -0,0 +1,505 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+/**
+ * A durable FIFO queue of byte records stored in an append-only log of memory-mapped segment files
+ * on local disk.
+ *
+ * <p>Each record is stored as a 16 byte header (payload length, append timestamp, CRC32C of the
+ * payload) followed by the payload. The length is written last and the record is forced to disk
+ * before {@link #append(byte[])} returns. A record torn by a crash is detected by its checksum and
+ * discarded on recovery. The read position is persisted in a checkpoint file whenever a record is
+ * committed and segments are deleted once all their records have been committed.
+ *
+ * <p>Records that can't be processed may be moved to a separate file in the {@code quarantine}
+ * subdirectory, which doesn't count towards the maximum size, for manual inspection.
+ */
+public class BundleSpool implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(BundleSpool.class);
+
+  static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+  private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("segment-(\\d{20})\\.log");
+  private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+  private static final String QUARANTINE_DIRECTORY_NAME = "quarantine";
+
+  /**
+   * A record read from the spool. Pass it to {@link #commit(SpoolRecord)} once processed.
+   *
+   * @param onSent the callback passed to {@link #append(byte[], Consumer)}, or {@code null} if
+   *     there is none or the record was recovered from a previous run
+   */
+  public record SpoolRecord(
+      byte[] payload,
+      long appendedAtMillis,
+      long segmentId,
+      int nextOffset,
+      @Nullable Consumer<List<BundleEntryComponent>> onSent) {}
+
+  private record RecordKey(long segmentId, int nextOffset) {}
+
+  private static final class Segment {
+    private final long id;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+
+    private Segment(long id, Path path, MappedByteBuffer buffer) {
+      this.id = id;
+      this.path = path;
+      this.buffer = buffer;
+    }
+  }
+
+  private final Path directory;
+  private final int segmentSize;
+  private final long maxSizeBytes;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  // all segments that still contain uncommitted records, oldest first. The last one is appended to.
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private long nextSegmentId;
+  private int readOffset;
+  private long pendingRecords;
+  private long sizeBytes;
+  private boolean closed;
+  // callbacks of uncommitted records appended by this run. They are not persisted.
+  private final Map<RecordKey, Consumer<List<BundleEntryComponent>>> onSentCallbacks =
+      new HashMap<>();
+
+  /**
+   * Opens the spool in the given directory, recovering any records left from a previous run.
+   *
+   * @param directory where to store the segment and checkpoint files
+   * @param segmentSize size of each segment file. Records larger than this get a segment of their
+   *     own.
+   * @param maxSizeBytes the maximum disk space used by all segments combined
+   */
+  public BundleSpool(Path directory, int segmentSize, long maxSizeBytes) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSizeBytes = maxSizeBytes;
+
+    Files.createDirectories(directory);
+    recover();
+
+    Gauge.builder("fhirtoserver.spool.records.pending", this, BundleSpool::pendingRecords)
+        .register(Metrics.globalRegistry);
+    Gauge.builder("fhirtoserver.spool.size.bytes", this, BundleSpool::sizeBytes)
+        .register(Metrics.globalRegistry);
+    Gauge.builder(
+            "fhirtoserver.spool.oldest.record.age.seconds",
+            this,
+            BundleSpool::oldestRecordAgeSeconds)
+        .register(Metrics.globalRegistry);
+  }
+
+  /**
+   * Durably appends a record. Blocks while the spool has reached its maximum size until enough
+   * records have been committed to free up a segment.
+   */
+  public void append(byte[] payload) throws IOException, InterruptedException {
+    append(payload, null);
+  }
+
+  /**
+   * Durably appends a record with a callback to run once it has been sent, which is handed out
+   * with the record by {@link #peek(Duration)}. The callback receives the entries the server
+   * rejected. It is only kept in memory, so it is lost if the record is recovered after a restart.
+   */
+  public void append(byte[] payload, @Nullable Consumer<List<BundleEntryComponent>> onSent)
+      throws IOException, InterruptedException {
+    var recordSize = HEADER_SIZE + payload.length;
+
+    lock.lock();
+    try {
+      ensureOpen();
+
+      var segment = segments.peekLast();
+      if (segment == null || segment.buffer.capacity() - segment.writePosition < recordSize) {
+        var newSegmentSize = Math.max(segmentSize, recordSize);
+        dropCommittedSegments(true);
+        while (sizeBytes + newSegmentSize > maxSizeBytes && !segments.isEmpty()) {
+          LOG.warn(
+              "Spool is full, waiting for records to be drained. {}",
+              kv("spoolSizeBytes", sizeBytes));
+          notFull.await();
+          ensureOpen();
+          dropCommittedSegments(true);
+        }
+        segment = createSegment(newSegmentSize);
+      }
+
+      var crc = new CRC32C();
+      crc.update(payload);
+
+      var buffer = segment.buffer;
+      var position = segment.writePosition;
+      buffer.putLong(position + Integer.BYTES, System.currentTimeMillis());
+      buffer.putInt(position + Integer.BYTES + Long.BYTES, (int) crc.getValue());
+      buffer.put(position + HEADER_SIZE, payload);
+      // written last so a partially written record is never read as a complete one
+      buffer.putInt(position, payload.length);
+      buffer.force(position, recordSize);
+
+      segment.writePosition += recordSize;
+      if (onSent != null) {
+        onSentCallbacks.put(new RecordKey(segment.id, segment.writePosition), onSent);
+      }
+      pendingRecords++;
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the oldest uncommitted record without removing it, waiting up to the given timeout for
+   * one to become available.
+   */
+  public Optional<SpoolRecord> peek(Duration timeout) throws InterruptedException {
+    var remainingNanos = timeout.toNanos();
+
+    lock.lock();
+    try {
+      while (!closed) {
+        var record = readHead();
+        if (record.isPresent() || remainingNanos <= 0) {
+          return record;
+        }
+        remainingNanos = notEmpty.awaitNanos(remainingNanos);
+      }
+      return Optional.empty();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Marks the given record, previously returned by {@link #peek(Duration)}, as processed. */
+  public void commit(SpoolRecord record) throws IOException {
+    lock.lock();
+    try {
+      ensureOpen();
+
+      var head = segments.peekFirst();
+      if (head == null || head.id != record.segmentId() || readOffset >= record.nextOffset()) {
+        return;
+      }
+
+      readOffset = record.nextOffset();
+      onSentCallbacks.remove(new RecordKey(record.segmentId(), record.nextOffset()));
+      pendingRecords--;
+      writeCheckpoint(head.id, readOffset);
+      dropCommittedSegments(false);
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Durably writes the payload of the given record, previously returned by {@link
+   * #peek(Duration)}, to its own file in the quarantine subdirectory and commits it.
+   *
+   * @return the file the payload was written to
+   */
+  public Path quarantine(SpoolRecord record) throws IOException {
+    lock.lock();
+    try {
+      ensureOpen();
+
+      var quarantineDirectory = directory.resolve(QUARANTINE_DIRECTORY_NAME);
+      Files.createDirectories(quarantineDirectory);
+      // named after the record's position so quarantining it again after a crash is idempotent
+      var file =
+          quarantineDirectory.resolve(
+              String.format("record-%020d-%010d.json", record.segmentId(), record.nextOffset()));
+      var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+      try (var channel =
+          FileChannel.open(
+              tempFile,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+        channel.write(ByteBuffer.wrap(record.payload()));
+        channel.force(true);
+      }
+      Files.move(
+          tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+      commit(record);
+      return file;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long pendingRecords() {
+    lock.lock();
+    try {
+      return pendingRecords;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long sizeBytes() {
+    lock.lock();
+    try {
+      return sizeBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The time since the oldest uncommitted record was appended or 0 if there is none. */
+  public double oldestRecordAgeSeconds() {
+    lock.lock();
+    try {
+      if (closed) {
+        return 0;
+      }
+      return readHead()
+          .map(r -> (System.currentTimeMillis() - r.appendedAtMillis()) / 1000.0)
+          .orElse(0.0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      for (var segment : segments) {
+        segment.buffer.force();
+      }
+      segments.clear();
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Optional<SpoolRecord> readHead() {
+    var head = segments.peekFirst();
+    if (head == null || readOffset >= head.writePosition) {
+      return Optional.empty();
+    }
+
+    var length = head.buffer.getInt(readOffset);
+    var payload = new byte[length];
+    head.buffer.get(readOffset + HEADER_SIZE, payload);
+    var appendedAt = head.buffer.getLong(readOffset + Integer.BYTES);
+    var nextOffset = readOffset + HEADER_SIZE + length;
+    return Optional.of(
+        new SpoolRecord(
+            payload,
+            appendedAt,
+            head.id,
+            nextOffset,
+            onSentCallbacks.get(new RecordKey(head.id, nextOffset))));
+  }
+
+  /**
+   * Deletes segments from the head whose records have all been committed.
+   *
+   * @param includingLast whether the segment currently appended to may be deleted as well. Only
+   *     safe right before a new segment is created.
+   */
+  private void dropCommittedSegments(boolean includingLast) throws IOException {
+    var dropped = false;
+    while (!segments.isEmpty()
+        && (segments.size() > 1 || includingLast)
+        && readOffset >= segments.peekFirst().writePosition) {
+      var segment = segments.removeFirst();
+      Files.deleteIfExists(segment.path);
+      sizeBytes -= segment.buffer.capacity();
+      readOffset = 0;
+      dropped = true;
+      LOG.debug("Deleted drained spool segment {}", kv("segment", segment.path.getFileName()));
+    }
+
+    if (dropped && !segments.isEmpty()) {
+      writeCheckpoint(segments.peekFirst().id, 0);
+    }
+  }
+
+  private void recover() throws IOException {
+    long checkpointSegmentId = -1;
+    var checkpointOffset = 0;
+
+    var checkpointFile = directory.resolve(CHECKPOINT_FILE_NAME);
+    if (Files.exists(checkpointFile)) {
+      var checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointFile));
+      checkpointSegmentId = checkpoint.getLong();
+      checkpointOffset = checkpoint.getInt();
+    }
+    nextSegmentId = checkpointSegmentId + 1;
+
+    try (var files = Files.list(directory)) {
+      var segmentFiles =
+          files
+              .filter(path -> SEGMENT_FILE_NAME.matcher(path.getFileName().toString()).matches())
+              .sorted()
+              .toList();
+
+      for (var path : segmentFiles) {
+        var matcher = SEGMENT_FILE_NAME.matcher(path.getFileName().toString());
+        matcher.matches();
+        var id = Long.parseLong(matcher.group(1));
+        nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+        if (id < checkpointSegmentId) {
+          // fully committed before the last shutdown but not yet deleted
+          Files.delete(path);
+          continue;
+        }
+
+        var segment = openSegment(id, path);
+        segments.addLast(segment);
+        sizeBytes += segment.buffer.capacity();
+      }
+    }
+
+    var head = segments.peekFirst();
+    if (head != null && head.id == checkpointSegmentId) {
+      readOffset = Math.min(checkpointOffset, head.writePosition);
+    }
+    dropCommittedSegments(false);
+
+    for (var segment : segments) {
+      var offset = segment == segments.peekFirst() ? readOffset : 0;
+      while (offset < segment.writePosition) {
+        offset += HEADER_SIZE + segment.buffer.getInt(offset);
+        pendingRecords++;
+      }
+    }
+
+    LOG.info(
+        "Opened spool with {} in {}",
+        kv("pendingRecords", pendingRecords),
+        kv("numSegments", segments.size()));
+  }
+
+  /** Maps an existing segment and determines up to where it contains valid records. */
+  private static Segment openSegment(long id, Path path) throws IOException {
+    MappedByteBuffer buffer;
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      buffer = channel.map(MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    var offset = 0;
+    while (offset + HEADER_SIZE <= buffer.capacity()) {
+      var length = buffer.getInt(offset);
+      if (length <= 0 || length > buffer.capacity() - offset - HEADER_SIZE) {
+        break;
+      }
+
+      var crc = new CRC32C();
+      crc.update(buffer.slice(offset + HEADER_SIZE, length));
+      if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES + Long.BYTES)) {
+        LOG.warn(
+            "Discarding torn record at the end of spool segment {}",
+            kv("segment", path.getFileName()));
+        break;
+      }
+
+      offset += HEADER_SIZE + length;
+    }
+
+    if (offset + Integer.BYTES <= buffer.capacity()) {
+      // make sure whatever follows the last valid record is never read as one
+      buffer.putInt(offset, 0);
+      buffer.force();
+    }
+
+    var segment = new Segment(id, path, buffer);
+    segment.writePosition = offset;
+    return segment;
+  }
+
+  private Segment createSegment(int size) throws IOException {
+    var id = nextSegmentId++;
+    var path = directory.resolve(String.format("segment-%020d.log", id));
+    MappedByteBuffer buffer;
+    try (var channel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+      buffer = channel.map(MapMode.READ_WRITE, 0, size);
+    }
+
+    var segment = new Segment(id, path, buffer);
+    if (segments.isEmpty()) {
+      readOffset = 0;
+      writeCheckpoint(id, 0);
+    }
+    segments.addLast(segment);
+    sizeBytes += size;
+    LOG.debug("Created spool segment {}", kv("segment", path.getFileName()));
+    return segment;
+  }
+
+  private void writeCheckpoint(long segmentId, int offset) throws IOException {
+    var content = ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(segmentId).putInt(offset);
+    var tempFile = directory.resolve(CHECKPOINT_FILE_NAME + ".tmp");
+    try (var channel =
+        FileChannel.open(
+            tempFile,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(content.flip());
+      channel.force(true);
+    }
+    Files.move(
+        tempFile,
+        directory.resolve(CHECKPOINT_FILE_NAME),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Spool in " + directory + " has been closed");
+    }
+  }
+}
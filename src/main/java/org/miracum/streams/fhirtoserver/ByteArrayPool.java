@@ -0,0 +1,33 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of equally sized byte arrays. Arrays are created on demand and up to {@code
+ * maxRetained} of them are kept for reuse once released, so repeatedly filling large buffers
+ * doesn't keep allocating new ones.
+ */
+public class ByteArrayPool {
+  private final int bufferSize;
+  private final ArrayBlockingQueue<byte[]> retained;
+
+  public ByteArrayPool(int bufferSize, int maxRetained) {
+    this.bufferSize = bufferSize;
+    this.retained = new ArrayBlockingQueue<>(Math.max(1, maxRetained));
+  }
+
+  public int bufferSize() {
+    return bufferSize;
+  }
+
+  public byte[] acquire() {
+    var buffer = retained.poll();
+    return buffer != null ? buffer : new byte[bufferSize];
+  }
+
+  public void release(byte[] buffer) {
+    if (buffer.length == bufferSize) {
+      retained.offer(buffer);
+    }
+  }
+}
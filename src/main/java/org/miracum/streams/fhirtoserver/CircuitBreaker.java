@@ -0,0 +1,211 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import java.time.Duration;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to a server that keeps failing. After {@code failureThreshold}
+ * consecutive failures the circuit opens for {@code openDuration}: callers of {@link
+ * #awaitPermission()} block and callers of {@link #acquirePermission()} get a {@link
+ * CircuitOpenException} instead of sending requests that are bound to fail. Afterwards a single
+ * trial request is let through: the circuit closes if it succeeds and opens again otherwise.
+ */
+public class CircuitBreaker {
+  private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  /** How long to wait before trying again while the trial request is in flight. */
+  private static final Duration TRIAL_RETRY_DELAY = Duration.ofSeconds(1);
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final Duration openDuration;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition stateChanged = lock.newCondition();
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAtNanos;
+  private boolean trialInFlight;
+
+  /** Thrown by {@link #acquirePermission()} while requests are not permitted. */
+  public static class CircuitOpenException extends RuntimeException {
+    private final Duration retryDelay;
+
+    CircuitOpenException(Duration retryDelay) {
+      super("Circuit is open, retry in " + retryDelay);
+      this.retryDelay = retryDelay;
+    }
+
+    /** How long to wait before trying again. */
+    public Duration retryDelay() {
+      return retryDelay;
+    }
+  }
+
+  public CircuitBreaker(int failureThreshold, Duration openDuration) {
+    this.failureThreshold = failureThreshold;
+    this.openDuration = openDuration;
+
+    for (var s : State.values()) {
+      Gauge.builder("fhirtoserver.fhir.client.circuit.state", this, cb -> cb.state() == s ? 1 : 0)
+          .tag("state", s.name().toLowerCase())
+          .register(Metrics.globalRegistry);
+    }
+  }
+
+  public State state() {
+    lock.lock();
+    try {
+      return state;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Blocks while the circuit is open or a trial request is in flight. */
+  public void awaitPermission() throws InterruptedException {
+    lock.lock();
+    try {
+      while (true) {
+        switch (state) {
+          case CLOSED -> {
+            return;
+          }
+          case OPEN -> {
+            var remainingNanos = remainingOpenNanos();
+            if (remainingNanos <= 0) {
+              transitionTo(State.HALF_OPEN);
+            } else {
+              stateChanged.awaitNanos(remainingNanos);
+            }
+          }
+          case HALF_OPEN -> {
+            if (!trialInFlight) {
+              trialInFlight = true;
+              return;
+            }
+            stateChanged.await();
+          }
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes the permission to send a request without blocking, e.g. on a Kafka consumer thread that
+   * has to keep polling.
+   *
+   * @throws CircuitOpenException while the circuit is open or a trial request is in flight
+   */
+  public void acquirePermission() {
+    lock.lock();
+    try {
+      if (state == State.OPEN && remainingOpenNanos() <= 0) {
+        transitionTo(State.HALF_OPEN);
+      }
+      if (state == State.CLOSED) {
+        return;
+      }
+      if (state == State.HALF_OPEN && !trialInFlight) {
+        trialInFlight = true;
+        return;
+      }
+      throw new CircuitOpenException(retryDelayLocked());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** How long requests are not permitted for, zero if a request may be sent right away. */
+  public Duration retryDelay() {
+    lock.lock();
+    try {
+      return retryDelayLocked();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Duration retryDelayLocked() {
+    return switch (state) {
+      case CLOSED -> Duration.ZERO;
+      case OPEN -> Duration.ofNanos(Math.max(0, remainingOpenNanos()));
+      case HALF_OPEN -> trialInFlight ? TRIAL_RETRY_DELAY : Duration.ZERO;
+    };
+  }
+
+  private long remainingOpenNanos() {
+    return openedAtNanos + openDuration.toNanos() - System.nanoTime();
+  }
+
+  /** Records a request the server handled, even if it rejected its content. */
+  public void onSuccess() {
+    lock.lock();
+    try {
+      consecutiveFailures = 0;
+      if (state == State.HALF_OPEN) {
+        trialInFlight = false;
+        transitionTo(State.CLOSED);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Records a request that failed because the server is unavailable or overloaded. */
+  public void onFailure() {
+    lock.lock();
+    try {
+      consecutiveFailures++;
+      if (state == State.HALF_OPEN
+          || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+        trialInFlight = false;
+        openedAtNanos = System.nanoTime();
+        transitionTo(State.OPEN);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Releases the permission without a result, e.g. if the request was never sent. */
+  public void onIgnore() {
+    lock.lock();
+    try {
+      if (state == State.HALF_OPEN && trialInFlight) {
+        trialInFlight = false;
+        stateChanged.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void transitionTo(State newState) {
+    if (newState == State.OPEN) {
+      LOG.warn(
+          "Opening circuit after {}. Pausing requests for {}.",
+          kv("consecutiveFailures", consecutiveFailures),
+          kv("openDuration", openDuration));
+    } else {
+      LOG.info("Circuit changed from {} to {}", kv("from", state), kv("to", newState));
+    }
+    state = newState;
+    stateChanged.signalAll();
+  }
+}
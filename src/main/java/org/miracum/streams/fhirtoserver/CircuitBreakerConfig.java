@@ -0,0 +1,12 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.circuit-breaker")
+@Validated
+public record CircuitBreakerConfig(
+    boolean enabled, @Min(1) int failureThreshold, @NotNull Duration openDuration) {}
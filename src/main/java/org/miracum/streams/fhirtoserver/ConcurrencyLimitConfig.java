@@ -0,0 +1,10 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.concurrency-limit")
+@Validated
+public record ConcurrencyLimitConfig(
+    boolean enabled, @Min(1) int initialLimit, @Min(1) int minLimit, @Min(1) int maxLimit) {}
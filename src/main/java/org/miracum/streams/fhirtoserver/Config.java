@@ -5,14 +5,23 @@ import ca.uhn.fhir.fhirpath.IFhirPath;
 import ca.uhn.fhir.okhttp.client.OkHttpRestfulClientFactory;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+import io.micrometer.core.instrument.config.MeterFilter;
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
+import org.apache.logging.log4j.util.Strings;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.stream.config.ListenerContainerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.listener.AbstractMessageListenerContainer;
+import org.springframework.kafka.listener.ContainerProperties.AckMode;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
@@ -25,16 +34,29 @@ public class Config {
   int timeout;
 
   @Bean
-  FhirContext fhirContext() {
+  FhirContext fhirContext(FhirHttpConfig httpConfig) {
     var fhirContext = FhirContext.forR4();
 
-    var httpClient =
+    var httpClientBuilder =
         new OkHttpClient.Builder()
             .callTimeout(Duration.ofSeconds(timeout))
             .connectTimeout(Duration.ofSeconds(timeout))
             .readTimeout(Duration.ofSeconds(timeout))
             .writeTimeout(Duration.ofSeconds(timeout))
-            .build();
+            .connectionPool(
+                new ConnectionPool(
+                    httpConfig.maxIdleConnections(),
+                    httpConfig.keepAlive().toMillis(),
+                    TimeUnit.MILLISECONDS))
+            .protocols(httpConfig.protocol().protocols())
+            .eventListener(new HttpMetricsEventListener())
+            .addInterceptor(new RetryAfterInterceptor());
+
+    if (httpConfig.gzipRequestBodies()) {
+      httpClientBuilder.addInterceptor(new GzipRequestInterceptor());
+    }
+
+    var httpClient = httpClientBuilder.build();
 
     var okHttpFactory = new OkHttpRestfulClientFactory(fhirContext);
     okHttpFactory.setHttpClient(httpClient);
@@ -70,6 +92,136 @@ public class Config {
     return new FhirPathR4(ctx);
   }
 
+  @Bean
+  FhirPathExpressionCache fhirPathExpressionCache(
+      IFhirPath fhirPath,
+      @Value("${fhir.filter.expression}") String filterExpression,
+      FhirBundleMergerConfig mergerConfig) {
+    var cache = new FhirPathExpressionCache(fhirPath);
+
+    // parse all configured expressions at startup so invalid ones fail fast
+    if (Strings.isNotBlank(filterExpression)) {
+      cache.precompile(filterExpression);
+    }
+    cache.precompile(mergerConfig.entryUniquenessFhirpathExpression());
+
+    return cache;
+  }
+
+  /**
+   * Lingering batches are acknowledged manually once they were sent and flushed on idle events if
+   * their deadline passes while no new records arrive.
+   */
+  @Bean
+  @ConditionalOnProperty(
+      prefix = "fhir.merge-batches-into-single-bundle.linger",
+      name = "enabled",
+      havingValue = "true")
+  ListenerContainerCustomizer<AbstractMessageListenerContainer<?, ?>> lingerContainerCustomizer(
+      BatchLingerConfig config) {
+    return (container, destinationName, group) -> {
+      var properties = container.getContainerProperties();
+      properties.setAckMode(AckMode.MANUAL);
+      properties.setIdleEventInterval(Math.max(100, config.maxWait().toMillis() / 2));
+    };
+  }
+
+  /**
+   * Pipelined batches are acknowledged manually once they were sent. Idle events let a failed
+   * batch be rewound even if no new records arrive.
+   */
+  @Bean
+  @ConditionalOnProperty(
+      prefix = "fhir.merge-batches-into-single-bundle.pipeline",
+      name = "enabled",
+      havingValue = "true")
+  ListenerContainerCustomizer<AbstractMessageListenerContainer<?, ?>>
+      pipelineContainerCustomizer() {
+    return (container, destinationName, group) -> {
+      var properties = container.getContainerProperties();
+      properties.setAckMode(AckMode.MANUAL);
+      properties.setIdleEventInterval(1000L);
+    };
+  }
+
+  /**
+   * While the circuit is open, records are negatively acknowledged so the container pauses the
+   * consumer instead of blocking it, which requires manual acknowledgement. Lingering and
+   * pipelining containers already use it.
+   */
+  @Bean
+  @ConditionalOnExpression(
+      "${fhir.circuit-breaker.enabled:false}"
+          + " && !${fhir.merge-batches-into-single-bundle.linger.enabled:false}"
+          + " && !${fhir.merge-batches-into-single-bundle.pipeline.enabled:false}")
+  ListenerContainerCustomizer<AbstractMessageListenerContainer<?, ?>>
+      circuitBreakerContainerCustomizer() {
+    return (container, destinationName, group) ->
+        container.getContainerProperties().setAckMode(AckMode.MANUAL);
+  }
+
+  @Bean
+  @ConditionalOnProperty(
+      prefix = "fhir.merge-batches-into-single-bundle.adaptive-partition-size",
+      name = "enabled",
+      havingValue = "true")
+  AdaptivePartitionSizer adaptivePartitionSizer(
+      AdaptivePartitionSizeConfig config, FhirBundleMergerConfig mergerConfig) {
+    // start from the static size if one is configured, it's likely been tuned for the server
+    return new AdaptivePartitionSizer(
+        config, mergerConfig.bundleMaxSize().orElse(config.minSize()));
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "fhir.concurrency-limit", name = "enabled", havingValue = "true")
+  GradientConcurrencyLimiter concurrencyLimiter(ConcurrencyLimitConfig config) {
+    return new GradientConcurrencyLimiter(
+        config.initialLimit(), config.minLimit(), config.maxLimit());
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "fhir.circuit-breaker", name = "enabled", havingValue = "true")
+  CircuitBreaker circuitBreaker(CircuitBreakerConfig config) {
+    return new CircuitBreaker(config.failureThreshold(), config.openDuration());
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "fhir.rate-limit", name = "enabled", havingValue = "true")
+  TransactionRateLimiter transactionRateLimiter(RateLimitConfig config) {
+    return new TransactionRateLimiter(
+        config.transactionsPerSecond().orElse(null), config.entriesPerSecond().orElse(null));
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "fhir.spool", name = "enabled", havingValue = "true")
+  BundleSpool bundleSpool(SpoolConfig config) throws IOException {
+    return new BundleSpool(
+        config.directory(),
+        Math.toIntExact(config.segmentSize().toBytes()),
+        config.maxSize().toBytes());
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "fhir.dedup", name = "enabled", havingValue = "true")
+  ResourceDedupCache resourceDedupCache(FhirContext fhirContext, DedupCacheConfig config) {
+    return new ResourceDedupCache(
+        fhirContext,
+        config.maxEntries(),
+        config.snapshotFile().orElse(null),
+        config.snapshotInterval());
+  }
+
+  @Bean
+  @ConditionalOnProperty(prefix = "fhir.slimming", name = "enabled", havingValue = "true")
+  PayloadSlimmer payloadSlimmer(FhirContext fhirContext, PayloadSlimmingConfig config) {
+    return new PayloadSlimmer(fhirContext, config.elements(), config.bytesSavedSampleInterval());
+  }
+
+  @Bean
+  MeterFilter timerDistributionFilter(ProcessingMetricsConfig config) {
+    return ProcessingMetrics.timerDistributionFilter(config.timers());
+  }
+
   @Bean
   @ConditionalOnProperty(prefix = "s3", name = "enabled", havingValue = "true")
   S3Client s3Client(S3Config config) throws URISyntaxException {
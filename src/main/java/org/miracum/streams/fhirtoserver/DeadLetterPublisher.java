@@ -0,0 +1,85 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.nio.charset.StandardCharsets;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeType;
+
+/**
+ * Publishes single bundle entries rejected by the FHIR server to the dead letter topic, together
+ * with the server's response. Used when bisecting failed transactions so that only the offending
+ * entries end up in the dead letter topic instead of the whole bundle.
+ */
+@Service
+@ConditionalOnProperty(
+    prefix = "fhir.bisect-on-client-error",
+    name = "enabled",
+    havingValue = "true")
+public class DeadLetterPublisher {
+  private static final Logger LOG = LoggerFactory.getLogger(DeadLetterPublisher.class);
+
+  static final String BINDING_NAME = "deadLetter-out-0";
+
+  static final String EXCEPTION_MESSAGE_HEADER = "x-exception-message";
+  static final String STATUS_CODE_HEADER = "x-fhir-status-code";
+  static final String OPERATION_OUTCOME_HEADER = "x-fhir-operation-outcome";
+
+  private static final Counter deadLetteredEntriesCounter =
+      Metrics.globalRegistry.counter(
+          "fhirtoserver.processing.errors.total", "kind", "entry-dead-lettered");
+
+  private final StreamBridge streamBridge;
+  private final FhirContext fhirContext;
+
+  public DeadLetterPublisher(StreamBridge streamBridge, FhirContext fhirContext) {
+    this.streamBridge = streamBridge;
+    this.fhirContext = fhirContext;
+  }
+
+  /**
+   * Publishes the entry as a single-entry bundle of the given type.
+   *
+   * @throws IllegalStateException if the entry could not be published
+   */
+  public void publish(
+      BundleEntryComponent entry, Bundle.BundleType bundleType, BaseServerResponseException error) {
+    var bundle = new Bundle().setType(bundleType);
+    bundle.getEntry().add(entry);
+
+    var parser = fhirContext.newJsonParser();
+    var payload = parser.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+
+    var message =
+        MessageBuilder.withPayload(payload)
+            .setHeader(MessageHeaders.CONTENT_TYPE, MimeType.valueOf("application/fhir+json"))
+            .setHeader(EXCEPTION_MESSAGE_HEADER, String.valueOf(error.getMessage()))
+            .setHeader(STATUS_CODE_HEADER, String.valueOf(error.getStatusCode()));
+    if (error.getOperationOutcome() != null) {
+      message.setHeader(
+          OPERATION_OUTCOME_HEADER, parser.encodeResourceToString(error.getOperationOutcome()));
+    }
+
+    if (!streamBridge.send(BINDING_NAME, message.build())) {
+      throw new IllegalStateException("Failed to publish rejected entry to the dead letter topic");
+    }
+
+    deadLetteredEntriesCounter.increment();
+    LOG.warn(
+        "Sent entry rejected by the server to the dead letter topic {} {}",
+        kv("requestUrl", entry.getRequest().getUrl()),
+        kv("statusCode", error.getStatusCode()));
+  }
+}
@@ -0,0 +1,17 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.dedup")
+@Validated
+public record DedupCacheConfig(
+    boolean enabled,
+    @Min(1) long maxEntries,
+    Optional<Path> snapshotFile,
+    @NotNull Duration snapshotInterval) {}
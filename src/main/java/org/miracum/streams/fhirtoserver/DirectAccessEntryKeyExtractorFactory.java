@@ -0,0 +1,56 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.Map;
+import java.util.Optional;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+/**
+ * Compiles the most commonly used entry uniqueness expressions into plain getter calls, avoiding
+ * both the FHIRPath interpreter and the allocation of intermediate FHIR datatypes per entry.
+ */
+@Component
+@Order(0)
+public class DirectAccessEntryKeyExtractorFactory implements EntryKeyExtractorFactory {
+
+  private static final Map<String, EntryKeyExtractor> EXTRACTORS =
+      Map.of(
+          "request.url.toString()",
+          entry -> nonEmpty(entry.getRequest().getUrl()),
+          "fullUrl.toString()",
+          entry -> nonEmpty(entry.getFullUrl()),
+          "resource.id.toString()",
+          DirectAccessEntryKeyExtractorFactory::resourceId,
+          "resource.type().name+'/'+resource.id.toString()",
+          DirectAccessEntryKeyExtractorFactory::resourceTypeAndId);
+
+  @Override
+  public Optional<EntryKeyExtractor> compile(String fhirPathExpression) {
+    return Optional.ofNullable(EXTRACTORS.get(normalize(fhirPathExpression)));
+  }
+
+  private static String normalize(String expression) {
+    return expression.replaceAll("\\s", "");
+  }
+
+  private static Optional<String> resourceId(BundleEntryComponent entry) {
+    if (!entry.hasResource() || !entry.getResource().hasIdElement()) {
+      return Optional.empty();
+    }
+    return nonEmpty(entry.getResource().getIdElement().getValue());
+  }
+
+  // like FHIRPath, this uses the full id value, which the parser sets to the fullUrl, e.g. for
+  // urn:uuid entries, instead of just the id part
+  private static Optional<String> resourceTypeAndId(BundleEntryComponent entry) {
+    return resourceId(entry).map(id -> entry.getResource().fhirType() + "/" + id);
+  }
+
+  private static Optional<String> nonEmpty(String value) {
+    if (value == null || value.isEmpty()) {
+      return Optional.empty();
+    }
+    return Optional.of(value);
+  }
+}
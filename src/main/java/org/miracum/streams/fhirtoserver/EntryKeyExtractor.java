@@ -0,0 +1,15 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.Optional;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+
+/** Computes the identity of a bundle entry used to de-duplicate entries when merging bundles. */
+@FunctionalInterface
+public interface EntryKeyExtractor {
+
+  /**
+   * @param entry the bundle entry
+   * @return the identity of the entry or empty if it has none
+   */
+  Optional<String> extractKey(BundleEntryComponent entry);
+}
@@ -0,0 +1,19 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.Optional;
+
+/**
+ * Extension point to replace the evaluation of an entry uniqueness FHIRPath expression with a
+ * specialized implementation. Every bean implementing this interface is asked in order to compile
+ * the configured expression. If none of them recognises it, the expression is evaluated using the
+ * FHIRPath engine.
+ */
+public interface EntryKeyExtractorFactory {
+
+  /**
+   * @param fhirPathExpression the entry uniqueness FHIRPath expression
+   * @return an extractor producing the same result as evaluating the expression or empty if this
+   *     factory doesn't support the expression
+   */
+  Optional<EntryKeyExtractor> compile(String fhirPathExpression);
+}
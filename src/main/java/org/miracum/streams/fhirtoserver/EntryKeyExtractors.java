@@ -0,0 +1,56 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Resolves entry uniqueness expressions to {@link EntryKeyExtractor}s using the registered {@link
+ * EntryKeyExtractorFactory} beans and falls back to evaluating the expression via FHIRPath.
+ */
+@Service
+public class EntryKeyExtractors {
+  private static final Logger LOG = LoggerFactory.getLogger(EntryKeyExtractors.class);
+
+  private final List<EntryKeyExtractorFactory> factories;
+  private final FhirPathExpressionCache fhirPath;
+  private final ConcurrentHashMap<String, EntryKeyExtractor> extractors =
+      new ConcurrentHashMap<>();
+
+  public EntryKeyExtractors(
+      List<EntryKeyExtractorFactory> factories, FhirPathExpressionCache fhirPath) {
+    this.factories = factories;
+    this.fhirPath = fhirPath;
+  }
+
+  public EntryKeyExtractor forExpression(String fhirPathExpression) {
+    return extractors.computeIfAbsent(fhirPathExpression, this::compile);
+  }
+
+  private EntryKeyExtractor compile(String fhirPathExpression) {
+    for (var factory : factories) {
+      var extractor = factory.compile(fhirPathExpression);
+      if (extractor.isPresent()) {
+        LOG.info(
+            "Using {} to compute entry keys for {}",
+            kv("keyExtractorFactory", factory.getClass().getSimpleName()),
+            kv("fhirPathExpression", fhirPathExpression));
+        return extractor.get();
+      }
+    }
+
+    LOG.info(
+        "Using FHIRPath to compute entry keys for {}",
+        kv("fhirPathExpression", fhirPathExpression));
+    return entry ->
+        fhirPath
+            .evaluateFirst(entry, fhirPathExpression, StringType.class)
+            .map(PrimitiveType::asStringValue);
+  }
+}
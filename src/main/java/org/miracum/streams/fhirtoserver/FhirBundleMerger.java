@@ -2,14 +2,12 @@ package org.miracum.streams.fhirtoserver;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
-import ca.uhn.fhir.fhirpath.IFhirPath;
 import com.google.common.collect.Lists;
 import java.util.HashMap;
 import java.util.List;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
-import org.hl7.fhir.r4.model.StringType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
@@ -17,12 +15,12 @@ import org.springframework.stereotype.Service;
 @Service
 public class FhirBundleMerger {
   private static final Logger LOG = LoggerFactory.getLogger(FhirBundleMerger.class);
-  private final IFhirPath fhirPath;
+  private final EntryKeyExtractors keyExtractors;
 
   public record MergeResult(Bundle bundle, Bundle deletBundle) {}
 
-  public FhirBundleMerger(IFhirPath fhirPath) {
-    this.fhirPath = fhirPath;
+  public FhirBundleMerger(EntryKeyExtractors keyExtractors) {
+    this.keyExtractors = keyExtractors;
   }
 
   public Bundle merge(List<Bundle> bundles) {
@@ -42,13 +40,13 @@ public class FhirBundleMerger {
     // oldest bundle, the last entry is the most recent. We only care about
     // the most recent unique resource when merging bundles. We use a
     // dictionary to automatically replace older entries with newer ones.
+    var keyExtractor = keyExtractors.forExpression(fhirPathExpression);
     var setOfUniqueBundleEntries = new HashMap<String, BundleEntryComponent>();
     var setOfUniqueDeleteBundleEntries = new HashMap<String, BundleEntryComponent>();
 
     for (var bundle : bundles) {
       for (var entryComponent : bundle.getEntry()) {
-        var entryIdentifier =
-            fhirPath.evaluateFirst(entryComponent, fhirPathExpression, StringType.class);
+        var entryIdentifier = keyExtractor.extractKey(entryComponent);
         if (entryIdentifier.isEmpty()) {
           LOG.warn(
               "Expression '{}' didn't evaluate to any result for the entry component in bundle {}. "
@@ -57,10 +55,9 @@ public class FhirBundleMerger {
               kv("bundleId", bundle.getIdElement().toVersionless()));
         } else {
           if (entryComponent.getRequest().getMethod() == HTTPVerb.DELETE) {
-            setOfUniqueDeleteBundleEntries.put(
-                entryIdentifier.get().asStringValue(), entryComponent);
+            setOfUniqueDeleteBundleEntries.put(entryIdentifier.get(), entryComponent);
           } else {
-            setOfUniqueBundleEntries.put(entryIdentifier.get().asStringValue(), entryComponent);
+            setOfUniqueBundleEntries.put(entryIdentifier.get(), entryComponent);
           }
         }
       }
@@ -10,4 +10,6 @@ import org.springframework.validation.annotation.Validated;
 public record FhirBundleMergerConfig(
     boolean enabled,
     @NotEmpty String entryUniquenessFhirpathExpression,
-    Optional<Integer> bundleMaxSize) {}
+    Optional<Integer> bundleMaxSize,
+    int partitionSendConcurrency,
+    boolean referenceAwarePartitioning) {}
@@ -0,0 +1,15 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.time.Duration;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.http")
+@Validated
+public record FhirHttpConfig(
+    boolean gzipRequestBodies,
+    @Min(1) int maxIdleConnections,
+    @NotNull Duration keepAlive,
+    @NotNull FhirHttpProtocol protocol) {}
@@ -0,0 +1,25 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.List;
+import okhttp3.Protocol;
+
+/** The HTTP protocol versions used to connect to the FHIR server. */
+public enum FhirHttpProtocol {
+  /** Always use HTTP/1.1. */
+  HTTP_1_1(List.of(Protocol.HTTP_1_1)),
+  /** Prefer HTTP/2 if the server offers it via ALPN during the TLS handshake. */
+  HTTP_2(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1)),
+  /** Use cleartext HTTP/2 without negotiating it first. The server must support it. */
+  H2_PRIOR_KNOWLEDGE(List.of(Protocol.H2_PRIOR_KNOWLEDGE));
+
+  private final List<Protocol> protocols;
+
+  FhirHttpProtocol(List<Protocol> protocols) {
+    this.protocols = protocols;
+  }
+
+  /** The protocols to configure the OkHttp client with. */
+  public List<Protocol> protocols() {
+    return protocols;
+  }
+}
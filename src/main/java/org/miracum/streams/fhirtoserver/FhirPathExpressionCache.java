@@ -0,0 +1,88 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.fhirpath.IFhirPath.IParsedExpression;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses FHIRPath expressions once and evaluates the parsed form afterwards. Shared between the
+ * resource filter and the bundle merger so each configured expression is only parsed a single
+ * time over the lifetime of the application.
+ */
+public class FhirPathExpressionCache {
+  private static final Logger LOG = LoggerFactory.getLogger(FhirPathExpressionCache.class);
+
+  private static final String CACHE_REQUESTS_COUNTER_NAME =
+      "fhirtoserver.fhirpath.parse.cache.requests.total";
+
+  private static final Counter cacheHitCounter =
+      Metrics.globalRegistry.counter(CACHE_REQUESTS_COUNTER_NAME, "result", "hit");
+
+  private static final Counter cacheMissCounter =
+      Metrics.globalRegistry.counter(CACHE_REQUESTS_COUNTER_NAME, "result", "miss");
+
+  private static final Timer evaluationDurationTimer =
+      Metrics.globalRegistry.timer("fhirtoserver.fhirpath.evaluation.duration");
+
+  private final IFhirPath fhirPath;
+  private final ConcurrentHashMap<String, IParsedExpression> parsedExpressions =
+      new ConcurrentHashMap<>();
+
+  public FhirPathExpressionCache(IFhirPath fhirPath) {
+    this.fhirPath = fhirPath;
+  }
+
+  /**
+   * Parses the given expression and adds it to the cache.
+   *
+   * @param expression the FHIRPath expression
+   * @throws IllegalArgumentException if the expression is not valid FHIRPath
+   */
+  public void precompile(String expression) {
+    parsedExpressions.computeIfAbsent(expression, this::parse);
+    LOG.info("Pre-compiled FHIRPath expression {}", kv("expression", expression));
+  }
+
+  /**
+   * Evaluates the given expression against the input and returns the first result. Parses and
+   * caches the expression on first use if it wasn't pre-compiled.
+   *
+   * @param input the element to evaluate the expression against
+   * @param expression the FHIRPath expression
+   * @param returnType the expected type of the result
+   * @return the first result of the evaluation, or empty if there is none
+   * @param <T> the expected type of the result
+   */
+  public <T extends IBase> Optional<T> evaluateFirst(
+      IBase input, String expression, Class<T> returnType) {
+    var parsed = parsedExpressions.get(expression);
+    if (parsed == null) {
+      cacheMissCounter.increment();
+      parsed = parsedExpressions.computeIfAbsent(expression, this::parse);
+    } else {
+      cacheHitCounter.increment();
+    }
+
+    var parsedExpression = parsed;
+    return evaluationDurationTimer.record(
+        () -> fhirPath.evaluateFirst(input, parsedExpression, returnType));
+  }
+
+  private IParsedExpression parse(String expression) {
+    try {
+      return fhirPath.parse(expression);
+    } catch (Exception e) {
+      throw new IllegalArgumentException(
+          String.format("Failed to parse FHIRPath expression '%s'", expression), e);
+    }
+  }
+}
@@ -1,6 +1,5 @@
 package org.miracum.streams.fhirtoserver;
 
-import ca.uhn.fhir.fhirpath.IFhirPath;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.PrimitiveType;
@@ -8,9 +7,9 @@ import org.springframework.stereotype.Service;
 
 @Service
 public class FhirPathResourceFilter {
-  private final IFhirPath fhirPath;
+  private final FhirPathExpressionCache fhirPath;
 
-  public FhirPathResourceFilter(IFhirPath fhirPath) {
+  public FhirPathResourceFilter(FhirPathExpressionCache fhirPath) {
     this.fhirPath = fhirPath;
   }
 
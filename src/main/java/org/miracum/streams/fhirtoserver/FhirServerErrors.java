@@ -0,0 +1,80 @@
+package org.miracum.streams.fhirtoserver;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+
+/** Classifies errors returned by the FHIR client. */
+final class FhirServerErrors {
+  // client errors that are caused by the request as a whole rather than by any of its entries
+  private static final Set<Integer> REQUEST_LEVEL_CLIENT_ERRORS =
+      Set.of(401, 403, 407, 408, 413, 429);
+
+  private FhirServerErrors() {}
+
+  /**
+   * Whether the error indicates that the server is unreachable, overloaded or rejected the request
+   * because it was too large, as opposed to rejecting its content. Errors caused by interrupting
+   * the sending thread, e.g. because its task was cancelled, say nothing about the server and never
+   * indicate overload.
+   */
+  static boolean indicatesOverload(Throwable error) {
+    if (Thread.currentThread().isInterrupted()) {
+      return false;
+    }
+    for (var cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof PayloadTooLargeException
+          || cause instanceof FhirClientConnectionException
+          || cause instanceof SocketTimeoutException) {
+        return true;
+      }
+      if (cause instanceof BaseServerResponseException response
+          && (response.getStatusCode() >= 500 || response.getStatusCode() == 429)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the delay the server asked for via {@code Retry-After} if it throttled the request. */
+  static Optional<Duration> retryAfter(Throwable error) {
+    for (var cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof RetryAfterInterceptor.ThrottledException throttled) {
+        return throttled.retryAfter();
+      }
+    }
+    return Optional.empty();
+  }
+
+  /** Returns the exception thrown instead of sending the request if the circuit is open. */
+  static Optional<CircuitBreaker.CircuitOpenException> circuitOpen(Throwable error) {
+    for (var cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof CircuitBreaker.CircuitOpenException open) {
+        return Optional.of(open);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the server's response if the error indicates that the server rejected the content of
+   * the transaction, e.g. because of a version conflict or a resource failing validation. Such a
+   * rejection is caused by one or more of the transaction's entries, so retrying the same
+   * transaction won't succeed.
+   */
+  static Optional<BaseServerResponseException> rejectedContent(Throwable error) {
+    for (var cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof BaseServerResponseException response
+          && response.getStatusCode() >= 400
+          && response.getStatusCode() < 500
+          && !REQUEST_LEVEL_CLIENT_ERRORS.contains(response.getStatusCode())) {
+        return Optional.of(response);
+      }
+    }
+    return Optional.empty();
+  }
+}
@@ -0,0 +1,190 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of concurrent requests to the server to a limit that is continuously derived
+ * from the observed latency, following the gradient algorithm of Netflix' concurrency-limits.
+ *
+ * <p>A long-term average of the latency serves as the baseline of a healthy server. Whenever the
+ * latency of a request exceeds the baseline, the server is assumed to be queueing requests and
+ * the limit is decreased proportionally; otherwise it grows by a small queue allowance. Requests
+ * that fail because the server is overloaded shrink the limit multiplicatively. Callers over the
+ * limit block until a request completes.
+ */
+public class GradientConcurrencyLimiter {
+  private static final Logger LOG = LoggerFactory.getLogger(GradientConcurrencyLimiter.class);
+
+  // how much higher than the baseline the latency may get before the limit is decreased
+  private static final double TOLERANCE = 1.5;
+  private static final double SMOOTHING = 0.2;
+  private static final double BACKOFF_RATIO = 0.9;
+  private static final int LONG_WINDOW = 600;
+  private static final int WARMUP_WINDOW = 10;
+
+  private static final Counter rejectionsCounter =
+      Metrics.globalRegistry.counter("fhirtoserver.fhir.client.concurrency.rejections.total");
+
+  /** Held while a request is in flight. Exactly one of its methods must be called once done. */
+  public interface Permit {
+    /**
+     * @param latencyNanos the latency of the request. Should be normalized if the cost of
+     *     requests differs, e.g. by the number of entries in a transaction.
+     */
+    void onSuccess(long latencyNanos);
+
+    /** The request failed because the server is overloaded. */
+    void onDropped();
+
+    /** The request failed for another reason and says nothing about the server's load. */
+    void onIgnore();
+  }
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition belowLimit = lock.newCondition();
+
+  private double limit;
+  private int inFlight;
+  private double longLatencyNanos = Double.NaN;
+  private int samples;
+
+  public GradientConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = Math.clamp(initialLimit, minLimit, maxLimit);
+
+    Gauge.builder("fhirtoserver.fhir.client.concurrency.limit", this, l -> l.limit())
+        .register(Metrics.globalRegistry);
+    Gauge.builder("fhirtoserver.fhir.client.concurrency.in.flight", this, l -> l.inFlight())
+        .register(Metrics.globalRegistry);
+  }
+
+  /** Blocks until a request may be started. */
+  public Permit acquire() throws InterruptedException {
+    lock.lock();
+    try {
+      if (inFlight >= limit()) {
+        rejectionsCounter.increment();
+        LOG.debug(
+            "Concurrency limit reached, waiting. {} {}",
+            kv("limit", limit()),
+            kv("inFlight", inFlight));
+        while (inFlight >= limit()) {
+          belowLimit.await();
+        }
+      }
+      inFlight++;
+    } finally {
+      lock.unlock();
+    }
+    return new LimiterPermit();
+  }
+
+  public int limit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int inFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void release(Runnable update) {
+    lock.lock();
+    try {
+      // measured with this request still counted as in flight, same as when it was started
+      update.run();
+      inFlight--;
+      belowLimit.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void onSample(long latencyNanos) {
+    samples++;
+    if (Double.isNaN(longLatencyNanos)) {
+      longLatencyNanos = latencyNanos;
+    } else {
+      var window = samples < WARMUP_WINDOW ? samples : LONG_WINDOW;
+      longLatencyNanos += (latencyNanos - longLatencyNanos) / window;
+    }
+
+    // let the baseline recover faster after a period of high latency
+    if (longLatencyNanos / latencyNanos > 2) {
+      longLatencyNanos *= 0.95;
+    }
+
+    // the limit can't be judged if it is not even close to being used
+    if (inFlight < limit / 2) {
+      return;
+    }
+
+    var gradient = Math.clamp(TOLERANCE * longLatencyNanos / latencyNanos, 0.5, 1.0);
+    var queueSize = Math.sqrt(limit);
+    var newLimit = limit * gradient + queueSize;
+    setLimit(limit * (1 - SMOOTHING) + newLimit * SMOOTHING);
+  }
+
+  private void onDrop() {
+    setLimit(limit * BACKOFF_RATIO);
+  }
+
+  private void setLimit(double newLimit) {
+    var bounded = Math.clamp(newLimit, minLimit, maxLimit);
+    if ((int) bounded != (int) limit) {
+      LOG.debug(
+          "Changing concurrency limit from {} to {}",
+          kv("previousLimit", (int) limit),
+          kv("newLimit", (int) bounded));
+    }
+    limit = bounded;
+  }
+
+  private final class LimiterPermit implements Permit {
+    private boolean released;
+
+    @Override
+    public void onSuccess(long latencyNanos) {
+      release(() -> onSample(Math.max(1, latencyNanos)));
+    }
+
+    @Override
+    public void onDropped() {
+      release(GradientConcurrencyLimiter.this::onDrop);
+    }
+
+    @Override
+    public void onIgnore() {
+      release(() -> {});
+    }
+
+    private void release(Runnable update) {
+      if (released) {
+        throw new IllegalStateException("Permit has already been released");
+      }
+      released = true;
+      GradientConcurrencyLimiter.this.release(update);
+    }
+  }
+}
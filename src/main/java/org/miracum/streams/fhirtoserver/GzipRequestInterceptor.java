@@ -0,0 +1,62 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.io.IOException;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Compresses request bodies with gzip and sets {@code Content-Encoding: gzip}. The compressed body
+ * is buffered so the request keeps a {@code Content-Length} instead of switching to chunked
+ * transfer encoding, which not all servers and proxies accept for compressed bodies.
+ */
+public class GzipRequestInterceptor implements Interceptor {
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    var request = chain.request();
+    var body = request.body();
+    if (body == null || request.header("Content-Encoding") != null) {
+      return chain.proceed(request);
+    }
+
+    var compressed = gzip(body);
+    return chain.proceed(
+        request
+            .newBuilder()
+            .header("Content-Encoding", "gzip")
+            .method(request.method(), compressed)
+            .build());
+  }
+
+  private static RequestBody gzip(RequestBody body) throws IOException {
+    var buffer = new Buffer();
+    try (BufferedSink gzipSink = Okio.buffer(new GzipSink(buffer))) {
+      body.writeTo(gzipSink);
+    }
+
+    return new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return body.contentType();
+      }
+
+      @Override
+      public long contentLength() {
+        return buffer.size();
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        // copy instead of consuming the buffer so the request can be retried
+        buffer.copyTo(sink.getBuffer(), 0, buffer.size());
+        sink.emitCompleteSegments();
+      }
+    };
+  }
+}
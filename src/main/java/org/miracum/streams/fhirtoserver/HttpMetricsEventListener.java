@@ -0,0 +1,60 @@
+package org.miracum.streams.fhirtoserver;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Counts the bytes sent to and received from the FHIR server as they appear on the wire, i.e.
+ * after request bodies were compressed, and the connections used per protocol version.
+ */
+public class HttpMetricsEventListener extends EventListener {
+  private static final String BYTES_COUNTER_NAME = "fhirtoserver.fhir.client.http.bytes.total";
+
+  private static final Counter sentHeaderBytesCounter =
+      Metrics.globalRegistry.counter(BYTES_COUNTER_NAME, "direction", "sent", "part", "headers");
+
+  private static final Counter sentBodyBytesCounter =
+      Metrics.globalRegistry.counter(BYTES_COUNTER_NAME, "direction", "sent", "part", "body");
+
+  private static final Counter receivedHeaderBytesCounter =
+      Metrics.globalRegistry.counter(
+          BYTES_COUNTER_NAME, "direction", "received", "part", "headers");
+
+  private static final Counter receivedBodyBytesCounter =
+      Metrics.globalRegistry.counter(BYTES_COUNTER_NAME, "direction", "received", "part", "body");
+
+  @Override
+  public void requestHeadersEnd(Call call, Request request) {
+    sentHeaderBytesCounter.increment(request.headers().byteCount());
+  }
+
+  @Override
+  public void requestBodyEnd(Call call, long byteCount) {
+    sentBodyBytesCounter.increment(byteCount);
+  }
+
+  @Override
+  public void responseHeadersEnd(Call call, Response response) {
+    receivedHeaderBytesCounter.increment(response.headers().byteCount());
+  }
+
+  @Override
+  public void responseBodyEnd(Call call, long byteCount) {
+    receivedBodyBytesCounter.increment(byteCount);
+  }
+
+  @Override
+  public void connectionAcquired(Call call, Connection connection) {
+    Metrics.globalRegistry
+        .counter(
+            "fhirtoserver.fhir.client.http.connections.acquired.total",
+            "protocol",
+            connection.protocol().toString())
+        .increment();
+  }
+}
@@ -0,0 +1,126 @@
+package org.miracum.streams.fhirtoserver;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+import org.slf4j.MDC;
+
+/**
+ * Processes a batch of records concurrently while preserving the order of records sharing the
+ * same key. Records are split into one lane per key, each processed sequentially on its own
+ * virtual thread, with at most {@code maxConcurrency} lanes running at once.
+ *
+ * <p>If a record fails, the remaining records of its lane are skipped to preserve their order,
+ * while all other lanes run to completion. The caller is told the first record in batch order that
+ * was not processed, so everything before it can be committed. Since lanes are processed in batch
+ * order, this is always a record that failed itself rather than one that was skipped.
+ */
+public class KeyOrderedDispatcher {
+  private static final int COMPLETED = 1;
+  private static final int FAILED = 2;
+
+  private static final DistributionSummary lanesPerBatchDistribution =
+      Metrics.globalRegistry.summary("fhirtoserver.fhir.keyed.lanes.per.batch");
+
+  private static final AtomicInteger lanesInFlight =
+      Metrics.globalRegistry.gauge(
+          "fhirtoserver.fhir.keyed.lanes.in.flight", new AtomicInteger(0));
+
+  private final int maxConcurrency;
+
+  /**
+   * A record that could not be processed.
+   *
+   * @param index the index of the record within the batch
+   * @param cause the exception thrown while processing it
+   */
+  public record Failure(int index, Exception cause) {}
+
+  /** Processes a single record, given its index within the batch. */
+  @FunctionalInterface
+  public interface RecordProcessor {
+    void process(int index) throws Exception;
+  }
+
+  public KeyOrderedDispatcher(int maxConcurrency) {
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /**
+   * Processes all records of the batch and returns once every lane is done.
+   *
+   * @param batchSize the number of records in the batch
+   * @param keyOf returns the ordering key of the record at the given index. Records with a {@code
+   *     null} key share a single lane.
+   * @param processor processes the record at the given index
+   * @return the first record in batch order that was not processed successfully, if any
+   * @throws InterruptedException if interrupted while waiting for the lanes to complete
+   */
+  public Optional<Failure> dispatch(
+      int batchSize, IntFunction<String> keyOf, RecordProcessor processor)
+      throws InterruptedException {
+    var lanes = new LinkedHashMap<String, List<Integer>>();
+    for (int i = 0; i < batchSize; i++) {
+      lanes.computeIfAbsent(keyOf.apply(i), key -> new ArrayList<>()).add(i);
+    }
+
+    lanesPerBatchDistribution.record(lanes.size());
+
+    var states = new AtomicIntegerArray(batchSize);
+    var causes = new AtomicReferenceArray<Exception>(batchSize);
+    var permits = new Semaphore(maxConcurrency);
+    // the lanes are run on other threads, so they need to inherit the caller's logging context
+    var mdc = MDC.getCopyOfContextMap();
+
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (var lane : lanes.values()) {
+        permits.acquire();
+        executor.submit(
+            () -> {
+              if (mdc != null) {
+                MDC.setContextMap(mdc);
+              }
+              lanesInFlight.incrementAndGet();
+              try {
+                for (var index : lane) {
+                  try {
+                    processor.process(index);
+                    states.set(index, COMPLETED);
+                  } catch (Exception e) {
+                    causes.set(index, e);
+                    states.set(index, FAILED);
+                    return;
+                  }
+                }
+              } finally {
+                lanesInFlight.decrementAndGet();
+                permits.release();
+                MDC.clear();
+              }
+            });
+      }
+    }
+
+    for (int i = 0; i < batchSize; i++) {
+      if (states.get(i) != COMPLETED) {
+        var cause = causes.get(i);
+        return Optional.of(
+            new Failure(
+                i,
+                cause != null
+                    ? cause
+                    : new IllegalStateException("Record was skipped after a failure")));
+      }
+    }
+    return Optional.empty();
+  }
+}
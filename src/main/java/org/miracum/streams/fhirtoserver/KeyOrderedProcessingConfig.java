@@ -0,0 +1,9 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Min;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.key-ordered-processing")
+@Validated
+public record KeyOrderedProcessingConfig(@Min(1) int maxConcurrency) {}
@@ -0,0 +1,68 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to the underlying stream and the time spent inside its methods. Used to
+ * measure how long a stream and everything downstream of it takes to process the written bytes.
+ */
+class MeasuringOutputStream extends FilterOutputStream {
+  private long bytesWritten;
+  private long nanosSpent;
+
+  MeasuringOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  long bytesWritten() {
+    return bytesWritten;
+  }
+
+  long nanosSpent() {
+    return nanosSpent;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    var start = System.nanoTime();
+    try {
+      out.write(b);
+      bytesWritten++;
+    } finally {
+      nanosSpent += System.nanoTime() - start;
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    var start = System.nanoTime();
+    try {
+      out.write(b, off, len);
+      bytesWritten += len;
+    } finally {
+      nanosSpent += System.nanoTime() - start;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    var start = System.nanoTime();
+    try {
+      out.flush();
+    } finally {
+      nanosSpent += System.nanoTime() - start;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    var start = System.nanoTime();
+    try {
+      out.close();
+    } finally {
+      nanosSpent += System.nanoTime() - start;
+    }
+  }
+}
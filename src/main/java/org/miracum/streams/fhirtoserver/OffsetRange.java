@@ -0,0 +1,37 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+
+/** The first and last offset of the records of a batch within a single partition. */
+record OffsetRange(long first, long last) {
+
+  /**
+   * Returns the offset range per partition of the records in a batch message, or an empty map if
+   * the headers don't contain the offsets.
+   */
+  static Map<TopicPartition, OffsetRange> of(MessageHeaders headers) {
+    var topics = headers.get(KafkaHeaders.RECEIVED_TOPIC, List.class);
+    var partitions = headers.get(KafkaHeaders.RECEIVED_PARTITION, List.class);
+    var offsets = headers.get(KafkaHeaders.OFFSET, List.class);
+
+    var result = new HashMap<TopicPartition, OffsetRange>();
+    if (topics == null || partitions == null || offsets == null) {
+      return result;
+    }
+
+    for (int i = 0; i < offsets.size(); i++) {
+      var partition = new TopicPartition((String) topics.get(i), (Integer) partitions.get(i));
+      var offset = (Long) offsets.get(i);
+      result.merge(
+          partition,
+          new OffsetRange(offset, offset),
+          (a, b) -> new OffsetRange(Math.min(a.first(), b.first()), Math.max(a.last(), b.last())));
+    }
+    return result;
+  }
+}
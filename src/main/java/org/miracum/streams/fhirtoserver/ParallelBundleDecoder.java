@@ -0,0 +1,133 @@
+package org.miracum.streams.fhirtoserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.stereotype.Service;
+
+/**
+ * Parses the raw bundles of a batch in parallel instead of one by one on the consumer thread. The
+ * bundles are parsed on a fixed pool of platform threads, each reusing its own parser created from
+ * the shared {@link FhirContext}, since parsing is CPU-bound. The parsed bundles are returned in
+ * the order of the batch, which the merger relies on to keep the most recent entry per key.
+ */
+@Service
+public class ParallelBundleDecoder implements Closeable {
+  private static final Timer decodeDurationTimer =
+      Metrics.globalRegistry.timer("fhirtoserver.fhir.batch.decode.duration");
+
+  private static final DistributionSummary decodeThroughputDistribution =
+      Metrics.globalRegistry.summary("fhirtoserver.fhir.batch.decode.bytes.per.second");
+
+  /** Thrown if a bundle of the batch could not be parsed. */
+  public static class DecodingException extends RuntimeException {
+    private final int index;
+
+    DecodingException(int index, Throwable cause) {
+      super("Failed to parse bundle at index " + index + " of the batch", cause);
+      this.index = index;
+    }
+
+    /** The index of the first bundle in the batch that could not be parsed. */
+    public int index() {
+      return index;
+    }
+  }
+
+  private final int parallelism;
+  private final ThreadLocal<IParser> parsers;
+  private final ExecutorService executor;
+
+  public ParallelBundleDecoder(FhirContext fhirContext, RawBatchDecodingConfig config) {
+    this.parallelism = config.parallelism();
+    this.parsers = ThreadLocal.withInitial(fhirContext::newJsonParser);
+    this.executor =
+        parallelism > 1
+            ? Executors.newFixedThreadPool(
+                parallelism, Thread.ofPlatform().name("bundle-decoder-", 0).daemon().factory())
+            : null;
+  }
+
+  /**
+   * Parses all payloads and returns the bundles in the same order.
+   *
+   * @throws DecodingException pointing at the first payload in batch order that failed to parse
+   */
+  public List<Bundle> decode(List<byte[]> payloads) {
+    var startTime = System.nanoTime();
+    var bundles =
+        executor == null || payloads.size() < 2
+            ? decodeSequentially(payloads)
+            : decodeInParallel(payloads);
+    var duration = System.nanoTime() - startTime;
+
+    decodeDurationTimer.record(duration, TimeUnit.NANOSECONDS);
+    if (duration > 0) {
+      var bytes = payloads.stream().mapToLong(payload -> payload.length).sum();
+      decodeThroughputDistribution.record(bytes / (duration / 1e9));
+    }
+    return bundles;
+  }
+
+  private List<Bundle> decodeSequentially(List<byte[]> payloads) {
+    var bundles = new ArrayList<Bundle>(payloads.size());
+    for (int i = 0; i < payloads.size(); i++) {
+      bundles.add(parse(payloads.get(i), i));
+    }
+    return bundles;
+  }
+
+  private List<Bundle> decodeInParallel(List<byte[]> payloads) {
+    var futures = new ArrayList<Future<Bundle>>(payloads.size());
+    for (int i = 0; i < payloads.size(); i++) {
+      var index = i;
+      futures.add(executor.submit(() -> parse(payloads.get(index), index)));
+    }
+
+    var bundles = new Bundle[payloads.size()];
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        bundles[i] = futures.get(i).get();
+      }
+    } catch (ExecutionException e) {
+      futures.forEach(future -> future.cancel(false));
+      if (e.getCause() instanceof DecodingException decodingException) {
+        throw decodingException;
+      }
+      throw new IllegalStateException("Failed to parse batch", e.getCause());
+    } catch (InterruptedException e) {
+      futures.forEach(future -> future.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while parsing batch", e);
+    }
+    return Arrays.asList(bundles);
+  }
+
+  private Bundle parse(byte[] payload, int index) {
+    try {
+      return parsers.get().parseResource(Bundle.class, new ByteArrayInputStream(payload));
+    } catch (RuntimeException e) {
+      throw new DecodingException(index, e);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+}
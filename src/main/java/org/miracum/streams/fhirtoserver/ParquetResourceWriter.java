@@ -0,0 +1,166 @@
+package org.miracum.streams.fhirtoserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Writes resources of a single type to a Parquet file. Besides the raw resource JSON, a few
+ * commonly queried elements are stored as flat columns so query engines can filter on them using
+ * predicate pushdown without parsing the JSON.
+ */
+public class ParquetResourceWriter {
+  // candidate elements holding the clinically relevant point in time, in order of preference
+  private static final List<String> EFFECTIVE_TIME_ELEMENTS =
+      List.of("effective", "performed", "onset", "period", "authoredOn", "recordedDate", "issued");
+
+  private static final Schema TIMESTAMP =
+      LogicalTypes.timestampMillis().addToSchema(Schema.create(Schema.Type.LONG));
+
+  static final Schema SCHEMA =
+      SchemaBuilder.record("Resource")
+          .namespace("org.miracum.streams.fhirtoserver")
+          .fields()
+          .optionalString("id")
+          .requiredString("resource_type")
+          .name("last_updated")
+          .type(nullable(TIMESTAMP))
+          .noDefault()
+          .optionalString("subject_reference")
+          .optionalString("code")
+          .name("effective")
+          .type(nullable(TIMESTAMP))
+          .noDefault()
+          .requiredString("resource")
+          .endRecord();
+
+  private final FhirContext fhirContext;
+  private final CompressionCodecName compressionCodec;
+  private final long rowGroupSizeBytes;
+
+  /**
+   * @param fhirContext used to encode the resources
+   * @param compression applied to the column chunks
+   * @param rowGroupSizeBytes the size of the row groups. A row group is buffered in memory until it
+   *     is complete, so this bounds the memory used per file being written.
+   */
+  public ParquetResourceWriter(
+      FhirContext fhirContext, S3Compression compression, long rowGroupSizeBytes) {
+    this.fhirContext = fhirContext;
+    this.rowGroupSizeBytes = rowGroupSizeBytes;
+    this.compressionCodec =
+        switch (compression) {
+          case NONE -> CompressionCodecName.UNCOMPRESSED;
+          case GZIP -> CompressionCodecName.GZIP;
+          case ZSTD -> CompressionCodecName.ZSTD;
+        };
+  }
+
+  /**
+   * Writes the resources as a single Parquet file and closes the output once done. If this method
+   * throws, the output is deliberately left open and incomplete and should be discarded.
+   */
+  public void write(List<? extends IBaseResource> resources, OutputFile outputFile)
+      throws IOException {
+    ParquetWriter<GenericRecord> writer =
+        AvroParquetWriter.<GenericRecord>builder(outputFile)
+            .withSchema(SCHEMA)
+            .withConf(new Configuration(false))
+            .withCompressionCodec(compressionCodec)
+            .withRowGroupSize(rowGroupSizeBytes)
+            .build();
+
+    var parser = fhirContext.newJsonParser();
+    for (var resource : resources) {
+      writer.write(toRecord((Resource) resource, parser));
+    }
+
+    // writes the footer and closes the output
+    writer.close();
+  }
+
+  static GenericRecord toRecord(Resource resource, IParser parser) {
+    var record = new GenericData.Record(SCHEMA);
+    record.put("id", resource.getIdElement().getIdPart());
+    record.put("resource_type", resource.fhirType());
+    record.put("last_updated", toEpochMillis(resource.getMeta().getLastUpdated()));
+    record.put("subject_reference", subjectReference(resource));
+    record.put("code", code(resource));
+    record.put("effective", effectiveTime(resource));
+    record.put("resource", parser.encodeResourceToString(resource));
+    return record;
+  }
+
+  private static String subjectReference(Resource resource) {
+    for (var name : List.of("subject", "patient")) {
+      if (firstValue(resource, name) instanceof Reference reference && reference.hasReference()) {
+        return reference.getReference();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The first coding of the resource's code as {@code system|code}, or just the code if the coding
+   * has no system.
+   */
+  private static String code(Resource resource) {
+    if (firstValue(resource, "code") instanceof CodeableConcept concept && concept.hasCoding()) {
+      var coding = concept.getCodingFirstRep();
+      if (!coding.hasCode()) {
+        return null;
+      }
+      return coding.hasSystem() ? coding.getSystem() + "|" + coding.getCode() : coding.getCode();
+    }
+    return null;
+  }
+
+  private static Long effectiveTime(Resource resource) {
+    for (var name : EFFECTIVE_TIME_ELEMENTS) {
+      var value = firstValue(resource, name);
+      if (value instanceof BaseDateTimeType dateTime && dateTime.getValue() != null) {
+        return dateTime.getValue().getTime();
+      }
+      if (value instanceof Period period && period.getStart() != null) {
+        return period.getStart().getTime();
+      }
+    }
+    return null;
+  }
+
+  private static Base firstValue(Resource resource, String name) {
+    // returns null instead of throwing if the resource type doesn't have an element of that name
+    var values = resource.getProperty(name.hashCode(), name, false);
+    if (values == null || values.length == 0) {
+      return null;
+    }
+    return values[0];
+  }
+
+  private static Long toEpochMillis(Date date) {
+    return date == null ? null : date.getTime();
+  }
+
+  private static Schema nullable(Schema schema) {
+    return Schema.createUnion(Schema.create(Schema.Type.NULL), schema);
+  }
+}
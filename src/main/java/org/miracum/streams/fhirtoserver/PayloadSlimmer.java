@@ -0,0 +1,145 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.Metrics;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes configured elements, like the generated narrative in {@code text}, from resources before
+ * they are sent or stored. Elements are given as dot-separated paths of element names per
+ * resource type, e.g. {@code meta.versionId}, or for all resource types using the {@code all} key.
+ * Resource types are matched case-insensitively since keys set via environment variables are
+ * lower-cased.
+ *
+ * <p>Measuring the bytes saved requires encoding the resource twice, so it is only done for every
+ * {@code bytesSavedSampleInterval}-th resource.
+ */
+public class PayloadSlimmer {
+  private static final Logger LOG = LoggerFactory.getLogger(PayloadSlimmer.class);
+
+  static final String ALL_RESOURCE_TYPES = "all";
+
+  private final FhirContext fhirContext;
+  private final Map<String, List<String[]>> pathsByResourceType = new HashMap<>();
+  private final List<String[]> pathsForAllResourceTypes = new ArrayList<>();
+  private final int bytesSavedSampleInterval;
+  private final AtomicLong slimmedResources = new AtomicLong();
+
+  public PayloadSlimmer(
+      FhirContext fhirContext, Map<String, List<String>> elements, int bytesSavedSampleInterval) {
+    this.fhirContext = fhirContext;
+    this.bytesSavedSampleInterval = bytesSavedSampleInterval;
+
+    var resourceTypes = new HashMap<String, String>();
+    for (var resourceType : fhirContext.getResourceTypes()) {
+      resourceTypes.put(resourceType.toLowerCase(Locale.ROOT), resourceType);
+    }
+
+    for (var entry : elements.entrySet()) {
+      var key = entry.getKey().toLowerCase(Locale.ROOT);
+      var paths = entry.getValue().stream().map(path -> path.trim().split("\\.")).toList();
+      if (ALL_RESOURCE_TYPES.equals(key)) {
+        pathsForAllResourceTypes.addAll(paths);
+        continue;
+      }
+
+      var resourceType = resourceTypes.get(key);
+      if (resourceType == null) {
+        throw new IllegalArgumentException(
+            String.format("Unknown resource type '%s' in fhir.slimming.elements", entry.getKey()));
+      }
+      pathsByResourceType.computeIfAbsent(resourceType, type -> new ArrayList<>()).addAll(paths);
+    }
+
+    LOG.info(
+        "Slimming resources by removing {} and {}",
+        kv("elementsForAllResourceTypes", elements.getOrDefault(ALL_RESOURCE_TYPES, List.of())),
+        kv("elementsByResourceType", pathsByResourceType.keySet()));
+  }
+
+  /** Slims the resources of all entries of the bundle. */
+  public void slim(Bundle bundle) {
+    for (var entry : bundle.getEntry()) {
+      if (entry.hasResource()) {
+        slim(entry.getResource());
+      }
+    }
+  }
+
+  /** Removes the configured elements from the resource in place. */
+  public void slim(IBaseResource resource) {
+    var resourceType = fhirContext.getResourceType(resource);
+    var paths = pathsByResourceType.getOrDefault(resourceType, List.of());
+    if (paths.isEmpty() && pathsForAllResourceTypes.isEmpty()) {
+      return;
+    }
+
+    var sample = slimmedResources.getAndIncrement() % bytesSavedSampleInterval == 0;
+    var sizeBefore = sample ? encodedSize(resource) : 0;
+
+    for (var path : pathsForAllResourceTypes) {
+      remove(resource, path, 0);
+    }
+    for (var path : paths) {
+      remove(resource, path, 0);
+    }
+
+    if (sample) {
+      Metrics.globalRegistry
+          .summary("fhirtoserver.fhir.slimming.bytes.saved", "resource_type", resourceType)
+          .record(sizeBefore - encodedSize(resource));
+    }
+  }
+
+  private void remove(IBase element, String[] path, int depth) {
+    if (!(fhirContext.getElementDefinition(element.getClass())
+        instanceof BaseRuntimeElementCompositeDefinition<?> definition)) {
+      return;
+    }
+
+    // paths that don't exist for a resource type are ignored, so they can be used with `all`
+    var child = definition.getChildByName(path[depth]);
+    if (child == null) {
+      return;
+    }
+
+    if (depth == path.length - 1) {
+      if (child.getMax() == 1) {
+        child.getMutator().setValue(element, null);
+      } else {
+        // setting a repeating child to null would leave a null value in its list
+        var values = child.getAccessor().getValues(element);
+        if (!values.isEmpty()) {
+          values.clear();
+        }
+      }
+      return;
+    }
+
+    for (var value : child.getAccessor().getValues(element)) {
+      remove(value, path, depth + 1);
+    }
+  }
+
+  private long encodedSize(IBaseResource resource) {
+    return fhirContext
+        .newJsonParser()
+        .encodeResourceToString(resource)
+        .getBytes(StandardCharsets.UTF_8)
+        .length;
+  }
+}
@@ -0,0 +1,15 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.util.List;
+import java.util.Map;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.slimming")
+@Validated
+public record PayloadSlimmingConfig(
+    boolean enabled,
+    @NotNull Map<String, List<String>> elements,
+    @Min(1) int bytesSavedSampleInterval) {}
@@ -0,0 +1,217 @@
+package org.miracum.streams.fhirtoserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.stereotype.Service;
+
+/**
+ * Records the entries sent to the server per resource type and HTTP method, the time from a
+ * record being produced to Kafka until it was acknowledged and the lag of the consumer per
+ * partition.
+ *
+ * <p>Measuring the size of an entry requires encoding its resource once more, so it is only done
+ * for every {@code entrySizeSampleInterval}-th entry sent.
+ */
+@Service
+public class ProcessingMetrics {
+  static final String METER_NAME_PREFIX = "fhirtoserver.";
+
+  private static final String SENT_ENTRIES_COUNTER_NAME = "fhirtoserver.fhir.sent.entries.total";
+  private static final String SENT_ENTRY_SIZE_SUMMARY_NAME =
+      "fhirtoserver.fhir.sent.entry.size.bytes";
+  private static final String CONSUMER_LAG_GAUGE_NAME = "fhirtoserver.kafka.consumer.lag";
+  private static final String UNKNOWN = "unknown";
+
+  private static final Timer endToEndLatencyTimer =
+      Timer.builder("fhirtoserver.end.to.end.latency")
+          .description("Time from a record being produced to Kafka until it was acknowledged")
+          .publishPercentileHistogram()
+          .minimumExpectedValue(Duration.ofMillis(10))
+          .maximumExpectedValue(Duration.ofHours(6))
+          .register(Metrics.globalRegistry);
+
+  private record EntryKind(String resourceType, String method) {}
+
+  private final FhirContext fhirContext;
+  private final Set<String> resourceTypes;
+  private final int entrySizeSampleInterval;
+  private final boolean consumerLagEnabled;
+  private final AtomicLong sentEntries = new AtomicLong();
+  private final Map<TopicPartition, AtomicLong> consumerLags = new ConcurrentHashMap<>();
+
+  public ProcessingMetrics(FhirContext fhirContext, ProcessingMetricsConfig config) {
+    this.fhirContext = fhirContext;
+    this.resourceTypes = Set.copyOf(fhirContext.getResourceTypes());
+    this.entrySizeSampleInterval = config.entrySizeSampleInterval();
+    this.consumerLagEnabled = config.consumerLagEnabled();
+  }
+
+  /** Records the entries of a transaction that was accepted by the server. */
+  public void recordSent(Bundle bundle) {
+    var entriesByKind = new HashMap<EntryKind, Integer>();
+    for (var entry : bundle.getEntry()) {
+      var kind = new EntryKind(resourceType(entry), method(entry));
+      entriesByKind.merge(kind, 1, Integer::sum);
+
+      if (entry.hasResource() && sentEntries.getAndIncrement() % entrySizeSampleInterval == 0) {
+        var size =
+            fhirContext
+                .newJsonParser()
+                .encodeResourceToString(entry.getResource())
+                .getBytes(StandardCharsets.UTF_8)
+                .length;
+        Metrics.globalRegistry.summary(SENT_ENTRY_SIZE_SUMMARY_NAME, tags(kind)).record(size);
+      }
+    }
+
+    entriesByKind.forEach(
+        (kind, count) ->
+            Metrics.globalRegistry.counter(SENT_ENTRIES_COUNTER_NAME, tags(kind)).increment(count));
+  }
+
+  /**
+   * Records the time since each record of the message was produced, based on the {@link
+   * KafkaHeaders#RECEIVED_TIMESTAMP} header. Supports both single and batch messages.
+   */
+  public void recordEndToEndLatency(MessageHeaders headers) {
+    var timestamps = headers.get(KafkaHeaders.RECEIVED_TIMESTAMP);
+    var now = System.currentTimeMillis();
+    if (timestamps instanceof Long timestamp) {
+      recordLatency(now, timestamp);
+    } else if (timestamps instanceof List<?> list) {
+      for (var timestamp : list) {
+        if (timestamp instanceof Long value) {
+          recordLatency(now, value);
+        }
+      }
+    }
+  }
+
+  private static void recordLatency(long now, long timestamp) {
+    // the producer's clock may be ahead of ours
+    endToEndLatencyTimer.record(Math.max(0, now - timestamp), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the headers of a message that is acknowledged later on, e.g. by the batch pipeline,
+   * with an acknowledgment that also records the end-to-end latency once it is called.
+   */
+  public MessageHeaders recordingLatencyOnAcknowledge(MessageHeaders headers) {
+    var acknowledgment = headers.get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
+    if (acknowledgment == null) {
+      return headers;
+    }
+
+    var wrapped = new HashMap<String, Object>(headers);
+    wrapped.put(
+        KafkaHeaders.ACKNOWLEDGMENT,
+        (Acknowledgment)
+            () -> {
+              acknowledgment.acknowledge();
+              recordEndToEndLatency(headers);
+            });
+    return new MessageHeaders(wrapped);
+  }
+
+  /**
+   * Updates the lag gauge of each partition assigned to the consumer that received the message.
+   * The lag is taken from the consumer's last fetch, so this doesn't call the broker, but it must
+   * be called on the consumer thread.
+   */
+  public void recordConsumerLag(MessageHeaders headers) {
+    if (!consumerLagEnabled
+        || !(headers.get(KafkaHeaders.CONSUMER) instanceof Consumer<?, ?> consumer)) {
+      return;
+    }
+
+    for (var partition : consumer.assignment()) {
+      var lag = consumer.currentLag(partition);
+      if (lag.isPresent()) {
+        consumerLags
+            .computeIfAbsent(partition, ProcessingMetrics::registerLagGauge)
+            .set(lag.getAsLong());
+      }
+    }
+  }
+
+  private static AtomicLong registerLagGauge(TopicPartition partition) {
+    return Metrics.globalRegistry.gauge(
+        CONSUMER_LAG_GAUGE_NAME,
+        Tags.of("topic", partition.topic(), "partition", String.valueOf(partition.partition())),
+        new AtomicLong());
+  }
+
+  /**
+   * A filter adding the configured percentiles and service level objective buckets to all timers
+   * of this application.
+   */
+  static MeterFilter timerDistributionFilter(ProcessingMetricsConfig.Timers timers) {
+    return new MeterFilter() {
+      @Override
+      public DistributionStatisticConfig configure(
+          Meter.Id id, DistributionStatisticConfig distributionConfig) {
+        if (id.getType() != Meter.Type.TIMER || !id.getName().startsWith(METER_NAME_PREFIX)) {
+          return distributionConfig;
+        }
+
+        var builder = DistributionStatisticConfig.builder();
+        if (timers.percentilesHistogram()) {
+          builder.percentilesHistogram(true);
+        }
+        if (!timers.percentiles().isEmpty()) {
+          builder.percentiles(
+              timers.percentiles().stream().mapToDouble(Double::doubleValue).toArray());
+        }
+        if (!timers.slo().isEmpty()) {
+          builder.serviceLevelObjectives(
+              timers.slo().stream().mapToDouble(Duration::toNanos).toArray());
+        }
+        return builder.build().merge(distributionConfig);
+      }
+    };
+  }
+
+  private String resourceType(BundleEntryComponent entry) {
+    if (entry.hasResource()) {
+      return entry.getResource().fhirType();
+    }
+
+    // DELETE entries only name the resource in their URL, e.g. `Patient/123` or `Patient?x=y`
+    var url = entry.getRequest().getUrl();
+    if (url == null) {
+      return UNKNOWN;
+    }
+    var type = url.split("[/?]", 2)[0];
+    return resourceTypes.contains(type) ? type : UNKNOWN;
+  }
+
+  private static String method(BundleEntryComponent entry) {
+    var method = entry.getRequest().getMethod();
+    return method != null ? method.toCode() : UNKNOWN;
+  }
+
+  private static Tags tags(EntryKind kind) {
+    return Tags.of("resource_type", kind.resourceType(), "method", kind.method());
+  }
+}
@@ -0,0 +1,21 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import java.time.Duration;
+import java.util.List;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.metrics")
+@Validated
+public record ProcessingMetricsConfig(
+    @Min(1) int entrySizeSampleInterval,
+    boolean consumerLagEnabled,
+    @Valid @NotNull Timers timers) {
+  public record Timers(
+      boolean percentilesHistogram,
+      @NotNull List<Double> percentiles,
+      @NotNull List<Duration> slo) {}
+}
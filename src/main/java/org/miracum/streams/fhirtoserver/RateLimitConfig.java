@@ -0,0 +1,13 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.Positive;
+import java.util.Optional;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.rate-limit")
+@Validated
+public record RateLimitConfig(
+    boolean enabled,
+    Optional<@Positive Double> transactionsPerSecond,
+    Optional<@Positive Double> entriesPerSecond) {}
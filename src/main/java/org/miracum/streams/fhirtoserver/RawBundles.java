@@ -0,0 +1,40 @@
+package org.miracum.streams.fhirtoserver;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+
+/** Cheap structural checks on JSON-encoded FHIR resources that avoid parsing them with HAPI. */
+final class RawBundles {
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private RawBundles() {}
+
+  /**
+   * Whether the payload is a JSON object with a top-level {@code "resourceType": "Bundle"}. Only
+   * tokenizes the document up to that field, which HAPI and most other encoders emit first.
+   */
+  static boolean isBundle(byte[] payload) {
+    if (payload == null || payload.length == 0) {
+      return false;
+    }
+
+    try (var parser = JSON_FACTORY.createParser(payload)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return false;
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        var fieldName = parser.currentName();
+        var valueToken = parser.nextToken();
+        if ("resourceType".equals(fieldName)) {
+          return valueToken == JsonToken.VALUE_STRING && "Bundle".equals(parser.getText());
+        }
+        parser.skipChildren();
+      }
+      return false;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Splits a bundle into partitions like {@link FhirBundleMerger#partitionBundle(Bundle, int)}, but
+ * keeps entries that reference each other in the same partition. Entries are grouped into the
+ * connected components of the bundle's reference graph, whose edges are references from an entry's
+ * resource to another entry's {@code fullUrl} or resource id. The components are then packed into
+ * as few partitions of at most the maximum size as possible, so the partitions are independent of
+ * each other and may be sent concurrently.
+ */
+@Service
+public class ReferenceAwarePartitioner {
+  private static final Logger LOG = LoggerFactory.getLogger(ReferenceAwarePartitioner.class);
+
+  private static final Counter oversizedComponentsCounter =
+      Metrics.globalRegistry.counter(
+          "fhirtoserver.fhir.batch.partition.oversized.components.total");
+
+  private final FhirContext fhirContext;
+
+  public ReferenceAwarePartitioner(FhirContext fhirContext) {
+    this.fhirContext = fhirContext;
+  }
+
+  /**
+   * Partitions the bundle. Components larger than {@code maxPartitionSize} can't be split without
+   * breaking references and are put into a partition of their own instead.
+   */
+  public List<Bundle> partitionBundle(Bundle bundle, int maxPartitionSize) {
+    var entries = bundle.getEntry();
+    var components = connectedComponents(entries);
+
+    // first-fit decreasing: place the largest components first, each into the first partition
+    // with enough room left.
+    components.sort(
+        Comparator.comparingInt((List<Integer> component) -> component.size())
+            .reversed()
+            .thenComparing(component -> component.get(0)));
+
+    var bins = new ArrayList<List<Integer>>();
+    for (var component : components) {
+      if (component.size() > maxPartitionSize) {
+        LOG.warn(
+            "Entries referencing each other exceed the maximum partition size. "
+                + "Sending them as a single partition {} {}",
+            kv("componentSize", component.size()),
+            kv("maxPartitionSize", maxPartitionSize));
+        oversizedComponentsCounter.increment();
+        bins.add(new ArrayList<>(component));
+        continue;
+      }
+
+      List<Integer> target = null;
+      for (var bin : bins) {
+        if (bin.size() + component.size() <= maxPartitionSize) {
+          target = bin;
+          break;
+        }
+      }
+      if (target == null) {
+        target = new ArrayList<>();
+        bins.add(target);
+      }
+      target.addAll(component);
+    }
+
+    return bins.stream()
+        .map(
+            bin -> {
+              // keep the entries in their original order within each partition
+              bin.sort(Comparator.naturalOrder());
+              var partition = new Bundle().setType(bundle.getType());
+              for (var index : bin) {
+                partition.getEntry().add(entries.get(index));
+              }
+              return partition;
+            })
+        .toList();
+  }
+
+  /** Returns the indices of the entries in each connected component of the reference graph. */
+  private List<List<Integer>> connectedComponents(List<BundleEntryComponent> entries) {
+    var entryIndexByUrl = new HashMap<String, Integer>();
+    for (int i = 0; i < entries.size(); i++) {
+      var entry = entries.get(i);
+      if (entry.hasFullUrl()) {
+        entryIndexByUrl.putIfAbsent(entry.getFullUrl(), i);
+      }
+      if (entry.hasResource() && entry.getResource().getIdElement().hasIdPart()) {
+        var resource = entry.getResource();
+        entryIndexByUrl.putIfAbsent(
+            resource.fhirType() + "/" + resource.getIdElement().getIdPart(), i);
+      }
+    }
+
+    var parents = new int[entries.size()];
+    for (int i = 0; i < parents.length; i++) {
+      parents[i] = i;
+    }
+
+    var terser = fhirContext.newTerser();
+    for (int i = 0; i < entries.size(); i++) {
+      var entry = entries.get(i);
+      if (!entry.hasResource()) {
+        continue;
+      }
+      var references =
+          terser.getAllPopulatedChildElementsOfType(entry.getResource(), IBaseReference.class);
+      for (var reference : references) {
+        var target = resolve(reference, entryIndexByUrl);
+        if (target != null) {
+          union(parents, i, target);
+        }
+      }
+    }
+
+    var components = new HashMap<Integer, List<Integer>>();
+    for (int i = 0; i < entries.size(); i++) {
+      components.computeIfAbsent(find(parents, i), root -> new ArrayList<>()).add(i);
+    }
+    return new ArrayList<>(components.values());
+  }
+
+  private static Integer resolve(IBaseReference reference, Map<String, Integer> entryIndexByUrl) {
+    var value = reference.getReferenceElement().getValue();
+    if (value == null || value.isEmpty() || value.startsWith("#")) {
+      return null;
+    }
+
+    var target = entryIndexByUrl.get(value);
+    if (target == null && !value.startsWith("urn:")) {
+      // absolute or versioned references to resources created or updated by the same bundle
+      var id = new IdType(value);
+      if (id.hasResourceType() && id.hasIdPart()) {
+        target = entryIndexByUrl.get(id.getResourceType() + "/" + id.getIdPart());
+      }
+    }
+    return target;
+  }
+
+  private static int find(int[] parents, int node) {
+    while (parents[node] != node) {
+      // path halving
+      parents[node] = parents[parents[node]];
+      node = parents[node];
+    }
+    return node;
+  }
+
+  private static void union(int[] parents, int a, int b) {
+    var rootA = find(parents, a);
+    var rootB = find(parents, b);
+    if (rootA != rootB) {
+      parents[rootB] = rootA;
+    }
+  }
+}
@@ -0,0 +1,356 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+/**
+ * Remembers a fingerprint of the content of every resource that was sent to the server, keyed by
+ * its type and id, so that PUT entries whose resource didn't change since it was last sent can be
+ * dropped from subsequent bundles. The fingerprint is a 64-bit FarmHash of the resource's JSON
+ * encoding, excluding {@code meta} since it commonly changes without the content changing.
+ *
+ * <p>The cache is bounded and may optionally be written to a snapshot file periodically and on
+ * shutdown, from which it is loaded again on startup.
+ */
+public class ResourceDedupCache implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ResourceDedupCache.class);
+
+  private static final HashFunction FINGERPRINT = Hashing.farmHashFingerprint64();
+
+  private static final int SNAPSHOT_FORMAT_VERSION = 1;
+
+  private static final Counter skippedEntriesCounter =
+      Metrics.globalRegistry.counter("fhirtoserver.fhir.dedup.skipped.entries.total");
+
+  /**
+   * A change to the cache that is only applied once the bundle it was derived from was sent.
+   *
+   * @param key the resource type and id
+   * @param fingerprint the fingerprint of the sent resource, or {@code null} if it was deleted
+   */
+  record Update(String key, @Nullable Long fingerprint) {}
+
+  /** The updates derived from a single bundle, applied via {@link #commit(PendingUpdates)}. */
+  public record PendingUpdates(List<Update> updates) {
+
+    /** Drops the updates of the given entries, e.g. because the server rejected them. */
+    public PendingUpdates excluding(List<BundleEntryComponent> entries) {
+      if (entries.isEmpty()) {
+        return this;
+      }
+      var excludedKeys = entries.stream().map(ResourceDedupCache::key).collect(Collectors.toSet());
+      return new PendingUpdates(
+          updates.stream().filter(update -> !excludedKeys.contains(update.key())).toList());
+    }
+  }
+
+  private final FhirContext fhirContext;
+  private final Cache<String, Long> fingerprints;
+  private final ThreadLocal<IParser> parsers;
+  private final Path snapshotFile;
+  private final ScheduledExecutorService snapshotScheduler;
+
+  public ResourceDedupCache(
+      FhirContext fhirContext,
+      long maxEntries,
+      @Nullable Path snapshotFile,
+      Duration snapshotInterval) {
+    this.fhirContext = fhirContext;
+    this.fingerprints = Caffeine.newBuilder().maximumSize(maxEntries).recordStats().build();
+    this.parsers =
+        ThreadLocal.withInitial(
+            () -> fhirContext.newJsonParser().setDontEncodeElements(Set.of("*.meta")));
+    this.snapshotFile = snapshotFile;
+
+    CaffeineCacheMetrics.monitor(Metrics.globalRegistry, fingerprints, "fhirtoserver.fhir.dedup");
+
+    if (snapshotFile != null) {
+      loadSnapshot();
+      this.snapshotScheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              Thread.ofVirtual().name("dedup-snapshot").factory());
+      var intervalMillis = snapshotInterval.toMillis();
+      snapshotScheduler.scheduleWithFixedDelay(
+          this::snapshotQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      this.snapshotScheduler = null;
+    }
+  }
+
+  /**
+   * Removes all PUT entries from the bundle whose resource is unchanged since it was last sent.
+   * Unchanged entries are kept if a remaining entry references their {@code fullUrl}, e.g. a
+   * {@code urn:uuid}, since the server couldn't resolve the reference otherwise. The returned
+   * updates must be passed to {@link #commit(PendingUpdates)} once the remaining entries have been
+   * sent successfully.
+   */
+  public PendingUpdates removeUnchanged(Bundle bundle) {
+    var entries = bundle.getEntry();
+    var updates = new ArrayList<Update>();
+    var keep = new boolean[entries.size()];
+    var unchangedUpdates = new HashMap<Integer, Update>();
+
+    for (int i = 0; i < entries.size(); i++) {
+      var entry = entries.get(i);
+      var method = entry.getRequest().getMethod();
+
+      var key = key(entry);
+
+      if (method == HTTPVerb.DELETE) {
+        // a resource has to be sent again if it is re-created after being deleted, even if its
+        // content is the same as before.
+        if (key != null) {
+          updates.add(new Update(key, null));
+        }
+        keep[i] = true;
+        continue;
+      }
+
+      if (method != HTTPVerb.PUT || key == null) {
+        keep[i] = true;
+        continue;
+      }
+
+      var fingerprint =
+          FINGERPRINT
+              .hashString(
+                  parsers.get().encodeResourceToString(entry.getResource()),
+                  StandardCharsets.UTF_8)
+              .asLong();
+
+      var lastSentFingerprint = fingerprints.getIfPresent(key);
+      if (lastSentFingerprint != null && lastSentFingerprint == fingerprint) {
+        unchangedUpdates.put(i, new Update(key, fingerprint));
+        continue;
+      }
+
+      updates.add(new Update(key, fingerprint));
+      keep[i] = true;
+    }
+
+    if (unchangedUpdates.isEmpty()) {
+      return new PendingUpdates(updates);
+    }
+
+    keepReferencedEntries(entries, keep, unchangedUpdates.keySet());
+
+    var remainingEntries = new ArrayList<BundleEntryComponent>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      if (keep[i]) {
+        remainingEntries.add(entries.get(i));
+        if (unchangedUpdates.containsKey(i)) {
+          updates.add(unchangedUpdates.get(i));
+        }
+      } else {
+        skippedEntriesCounter.increment();
+      }
+    }
+
+    if (remainingEntries.size() < entries.size()) {
+      LOG.debug(
+          "Removed {} unchanged entries from bundle",
+          kv("numUnchangedEntries", entries.size() - remainingEntries.size()));
+      bundle.setEntry(remainingEntries);
+    }
+
+    return new PendingUpdates(updates);
+  }
+
+  /**
+   * Marks the unchanged entries referenced by kept entries as kept, transitively, since an entry
+   * that is kept because it is referenced may itself reference other unchanged entries.
+   */
+  private void keepReferencedEntries(
+      List<BundleEntryComponent> entries, boolean[] keep, Set<Integer> unchanged) {
+    var unchangedByFullUrl = new HashMap<String, Integer>();
+    for (var index : unchanged) {
+      var entry = entries.get(index);
+      if (entry.hasFullUrl()) {
+        unchangedByFullUrl.put(entry.getFullUrl(), index);
+      }
+    }
+    if (unchangedByFullUrl.isEmpty()) {
+      return;
+    }
+
+    var terser = fhirContext.newTerser();
+    var pending = new ArrayDeque<Integer>();
+    for (int i = 0; i < entries.size(); i++) {
+      if (keep[i]) {
+        pending.add(i);
+      }
+    }
+
+    while (!pending.isEmpty()) {
+      var entry = entries.get(pending.poll());
+      if (!entry.hasResource()) {
+        continue;
+      }
+      var references =
+          terser.getAllPopulatedChildElementsOfType(entry.getResource(), IBaseReference.class);
+      for (var reference : references) {
+        var target = unchangedByFullUrl.get(reference.getReferenceElement().getValue());
+        if (target != null && !keep[target]) {
+          keep[target] = true;
+          pending.add(target);
+        }
+      }
+    }
+  }
+
+  /**
+   * The cache key of an entry: the resource's type and id for PUT entries and the request URL for
+   * DELETE entries, or {@code null} if there is none.
+   */
+  private static String key(BundleEntryComponent entry) {
+    if (entry.getRequest().getMethod() == HTTPVerb.DELETE) {
+      var url = entry.getRequest().getUrl();
+      return url == null || url.contains("?") ? null : url;
+    }
+    if (!entry.hasResource() || !entry.getResource().getIdElement().hasIdPart()) {
+      return null;
+    }
+    var resource = entry.getResource();
+    return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+  }
+
+  /** Records the resources of a bundle as sent. */
+  public void commit(PendingUpdates pending) {
+    for (var update : pending.updates()) {
+      if (update.fingerprint() == null) {
+        fingerprints.invalidate(update.key());
+      } else {
+        fingerprints.put(update.key(), update.fingerprint());
+      }
+    }
+  }
+
+  public long size() {
+    return fingerprints.estimatedSize();
+  }
+
+  /**
+   * Writes all cached fingerprints to the snapshot file. The file is replaced atomically, so a
+   * crash while writing keeps the previous snapshot intact.
+   */
+  public void snapshot() throws IOException {
+    if (snapshotFile == null) {
+      return;
+    }
+
+    var parent = snapshotFile.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+
+    var tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    var numEntries = 0L;
+    try (var out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+      out.writeInt(SNAPSHOT_FORMAT_VERSION);
+      for (var entry : fingerprints.asMap().entrySet()) {
+        out.writeBoolean(true);
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue());
+        numEntries++;
+      }
+      out.writeBoolean(false);
+    }
+    Files.move(
+        tempFile,
+        snapshotFile,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    LOG.debug("Wrote dedup cache snapshot {}", kv("numEntries", numEntries));
+  }
+
+  private void snapshotQuietly() {
+    try {
+      snapshot();
+    } catch (Exception e) {
+      LOG.warn("Failed to write dedup cache snapshot to {}", kv("file", snapshotFile), e);
+    }
+  }
+
+  /**
+   * Loads the snapshot file if it exists. A missing, outdated or corrupt snapshot only means that
+   * the cache starts out cold, so it doesn't prevent the application from starting.
+   */
+  private void loadSnapshot() {
+    if (!Files.exists(snapshotFile)) {
+      return;
+    }
+
+    try (var in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+      var version = in.readInt();
+      if (version != SNAPSHOT_FORMAT_VERSION) {
+        LOG.warn(
+            "Ignoring dedup cache snapshot with unsupported {}", kv("formatVersion", version));
+        return;
+      }
+      while (in.readBoolean()) {
+        fingerprints.put(in.readUTF(), in.readLong());
+      }
+      LOG.info(
+          "Loaded dedup cache snapshot from {} with {}",
+          kv("file", snapshotFile),
+          kv("numEntries", fingerprints.estimatedSize()));
+    } catch (IOException e) {
+      LOG.warn("Failed to load dedup cache snapshot from {}", kv("file", snapshotFile), e);
+    }
+  }
+
+  /** Stops the periodic snapshots and writes a final one. */
+  @Override
+  public void close() throws IOException {
+    if (snapshotScheduler == null) {
+      return;
+    }
+
+    snapshotScheduler.shutdown();
+    try {
+      snapshotScheduler.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    snapshot();
+  }
+}
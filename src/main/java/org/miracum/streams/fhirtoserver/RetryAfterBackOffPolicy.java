@@ -0,0 +1,64 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffInterruptedException;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.Sleeper;
+
+/**
+ * Waits as long as the server asked for via {@code Retry-After} before retrying a throttled
+ * transaction, at most {@code maxDelay}, and backs off using the delegate policy otherwise.
+ */
+public class RetryAfterBackOffPolicy implements BackOffPolicy {
+  private static final Logger LOG = LoggerFactory.getLogger(RetryAfterBackOffPolicy.class);
+
+  private static final Timer retryAfterTimer =
+      Metrics.globalRegistry.timer(
+          TransactionRateLimiter.THROTTLED_TIMER_NAME, "reason", "retry-after");
+
+  private final BackOffPolicy delegate;
+  private final Duration maxDelay;
+  private final Sleeper sleeper;
+
+  private record Context(RetryContext retryContext, BackOffContext delegateContext)
+      implements BackOffContext {}
+
+  public RetryAfterBackOffPolicy(BackOffPolicy delegate, Duration maxDelay, Sleeper sleeper) {
+    this.delegate = delegate;
+    this.maxDelay = maxDelay;
+    this.sleeper = sleeper;
+  }
+
+  @Override
+  public BackOffContext start(RetryContext context) {
+    return new Context(context, delegate.start(context));
+  }
+
+  @Override
+  public void backOff(BackOffContext backOffContext) throws BackOffInterruptedException {
+    var context = (Context) backOffContext;
+    var retryAfter = FhirServerErrors.retryAfter(context.retryContext().getLastThrowable());
+    if (retryAfter.isEmpty()) {
+      delegate.backOff(context.delegateContext());
+      return;
+    }
+
+    var delay = retryAfter.get().compareTo(maxDelay) > 0 ? maxDelay : retryAfter.get();
+    LOG.warn("Server throttled the transaction, retrying {}", kv("retryAfter", delay));
+    try {
+      sleeper.sleep(delay.toMillis());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BackOffInterruptedException("Interrupted while waiting to retry", e);
+    }
+    retryAfterTimer.record(delay);
+  }
+}
@@ -0,0 +1,70 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Turns responses telling the client to slow down, i.e. {@code 429 Too Many Requests} and {@code
+ * 503 Service Unavailable} with a {@code Retry-After} header, into a {@link ThrottledException}
+ * carrying the delay the server asked for. The HAPI client wraps it in a {@link
+ * ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException}, so the transaction is retried
+ * like any other connection failure, but waiting as long as the server asked for.
+ */
+public class RetryAfterInterceptor implements Interceptor {
+
+  /** Thrown if the server throttled the request. */
+  public static class ThrottledException extends IOException {
+    private final Duration retryAfter;
+
+    ThrottledException(int statusCode, Optional<Duration> retryAfter) {
+      super(
+          "Server throttled the request with status "
+              + statusCode
+              + retryAfter.map(delay -> ", asking to retry after " + delay).orElse(""));
+      this.retryAfter = retryAfter.orElse(null);
+    }
+
+    /** The delay the server asked for via {@code Retry-After}, if any. */
+    public Optional<Duration> retryAfter() {
+      return Optional.ofNullable(retryAfter);
+    }
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    var response = chain.proceed(chain.request());
+    var statusCode = response.code();
+    if (statusCode == 429 || (statusCode == 503 && response.header("Retry-After") != null)) {
+      var retryAfter = retryAfter(response.headers(), Instant.now());
+      response.close();
+      throw new ThrottledException(statusCode, retryAfter);
+    }
+    return response;
+  }
+
+  /**
+   * Parses the {@code Retry-After} header, given either as a number of seconds or as an HTTP date.
+   */
+  static Optional<Duration> retryAfter(Headers headers, Instant now) {
+    var value = headers.get("Retry-After");
+    if (value == null) {
+      return Optional.empty();
+    }
+
+    try {
+      return Optional.of(Duration.ofSeconds(Math.max(0, Long.parseLong(value.trim()))));
+    } catch (NumberFormatException e) {
+      var date = headers.getDate("Retry-After");
+      if (date == null) {
+        return Optional.empty();
+      }
+      var delay = Duration.between(now, date.toInstant());
+      return Optional.of(delay.isNegative() ? Duration.ZERO : delay);
+    }
+  }
+}
@@ -2,15 +2,24 @@ package org.miracum.streams.fhirtoserver;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.util.BundleUtil;
 import io.micrometer.common.lang.Nullable;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
-import org.apache.commons.io.output.StringBuilderWriter;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
@@ -20,33 +29,75 @@ import org.slf4j.LoggerFactory;
 import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
 
 @Service
 public class S3BundleStore {
   private static final Logger LOG = LoggerFactory.getLogger(S3BundleStore.class);
+  // S3 requires all parts of a multipart upload except the last one to be at least 5 MiB
+  private static final long MIN_MULTIPART_PART_SIZE_BYTES = 5L * 1024 * 1024;
+  private static final String PARQUET_CONTENT_TYPE = "application/vnd.apache.parquet";
+
+  private static final AtomicInteger uploadsInFlight =
+      Metrics.globalRegistry.gauge("fhirtoserver.s3.uploads.in.flight", new AtomicInteger(0));
+
+  private final Timer compressionDurationTimer;
+  private final DistributionSummary compressionRatioDistribution;
+
   private FhirBundleMerger merger;
   private FhirContext fhirContext;
   private FhirBundleMergerConfig mergerConfig;
   private S3Config config;
   private S3Client s3Client;
+  private ByteArrayPool partBufferPool;
+  private BoundedParallelExecutor uploader;
+  private ParquetResourceWriter parquetWriter;
+  private PayloadSlimmer payloadSlimmer;
 
   public S3BundleStore(
       @Nullable S3Client s3Client,
       S3Config config,
       FhirBundleMerger merger,
       FhirContext fhirContext,
-      FhirBundleMergerConfig mergerConfig) {
+      FhirBundleMergerConfig mergerConfig,
+      @Nullable PayloadSlimmer payloadSlimmer) {
     this.s3Client = s3Client;
     this.config = config;
     this.merger = merger;
     this.fhirContext = fhirContext;
     this.mergerConfig = mergerConfig;
+    this.payloadSlimmer = payloadSlimmer;
+
+    var partSize = config.multipartPartSize().toBytes();
+    if (partSize < MIN_MULTIPART_PART_SIZE_BYTES || partSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          String.format(
+              "s3.multipart-part-size must be between 5MB and 2GB but was %s",
+              config.multipartPartSize()));
+    }
+    // every concurrent upload holds at most one part buffer at a time
+    this.partBufferPool = new ByteArrayPool((int) partSize, config.uploadConcurrency());
+    this.uploader = new BoundedParallelExecutor(config.uploadConcurrency(), uploadsInFlight);
+
+    // a row group is buffered on the heap for every Parquet file being written concurrently, so
+    // bound it by the part size like the upload buffers
+    this.parquetWriter = new ParquetResourceWriter(fhirContext, config.compression(), partSize);
+
+    var algorithm = config.compression().name().toLowerCase();
+    this.compressionDurationTimer =
+        Metrics.globalRegistry.timer(
+            "fhirtoserver.s3.compression.duration", "algorithm", algorithm);
+    this.compressionRatioDistribution =
+        Metrics.globalRegistry.summary(
+            "fhirtoserver.s3.compression.ratio", "algorithm", algorithm);
   }
 
-  public Void storeBatch(List<Bundle> bundles, MessageHeaders headers)
-      throws DataFormatException, IOException {
+  /**
+   * Stores the resources of the merged batch as one NDJSON object per resource type and the
+   * DELETE requests as one bundle per resource type. Objects are uploaded concurrently and this
+   * method only returns once all of them have been stored successfully.
+   */
+  public Void storeBatch(List<Bundle> bundles, MessageHeaders headers) throws Exception {
     // start by merging all those bundles split into POST/PUT and DELETE bundles
     var mergedBundle =
         merger.mergeSeperateDeleteBundles(
@@ -55,6 +106,9 @@ public class S3BundleStore {
     // extract all POST/PUT bundle entries (mergedBundle.deleteBundle() contains the
     // DELETE entries)
     var resources = BundleUtil.toListOfResources(fhirContext, mergedBundle.bundle());
+    if (payloadSlimmer != null) {
+      resources.forEach(payloadSlimmer::slim);
+    }
 
     var grouped = resources.stream().collect(Collectors.groupingBy(IBaseResource::fhirType));
 
@@ -83,32 +137,34 @@ public class S3BundleStore {
             "kafka-group-id",
             headers.getOrDefault(KafkaHeaders.GROUP_ID, "").toString());
 
+    var uploads = new ArrayList<Callable<Void>>();
+
     for (var entry : grouped.entrySet()) {
       var resourceType = entry.getKey();
-      var ndjson = listOfResourcesToNdjson(entry.getValue());
 
       var prefix = config.objectNamePrefix().orElse("");
 
       var objectKey =
           String.format(
-              "%s%s/%s-%s-%s.ndjson", prefix, resourceType, startTimestamp, partition, startOffset);
-
-      LOG.debug(
-          "Storing {} resources of type {} as object {}",
-          entry.getValue().size(),
-          entry.getKey(),
-          objectKey);
-
-      var body = RequestBody.fromString(ndjson);
-
-      s3Client.putObject(
-          request ->
-              request
-                  .bucket(config.bucketName())
-                  .key(objectKey)
-                  .metadata(metadata)
-                  .contentType(Constants.CT_FHIR_NDJSON),
-          body);
+              "%s%s/%s-%s-%s.%s",
+              prefix,
+              resourceType,
+              startTimestamp,
+              partition,
+              startOffset,
+              fileExtension());
+
+      uploads.add(
+          () -> {
+            LOG.debug(
+                "Storing {} resources of type {} as object {}",
+                entry.getValue().size(),
+                entry.getKey(),
+                objectKey);
+
+            storeResourcesOfType(objectKey, metadata, entry.getValue());
+            return null;
+          });
     }
 
     // now, deal with the DELETE entries
@@ -118,39 +174,121 @@ public class S3BundleStore {
         mergedBundle.deletBundle().getEntry().stream()
             .collect(Collectors.groupingBy(e -> e.getRequest().getUrl().split("/")[0]));
 
-    storeDeleteBundles(groupedDeletes, headers, metadata);
+    uploads.addAll(deleteBundleUploads(groupedDeletes, headers, metadata));
+
+    uploader.invokeAll(uploads);
 
     return null;
   }
 
-  private String listOfResourcesToNdjson(List<IBaseResource> resources)
+  private String fileExtension() {
+    return config.format() == S3OutputFormat.PARQUET ? "parquet" : "ndjson";
+  }
+
+  private void storeResourcesOfType(
+      String objectKey, Map<String, String> metadata, List<? extends IBaseResource> resources)
+      throws DataFormatException, IOException {
+    if (config.format() == S3OutputFormat.PARQUET) {
+      storeResourcesAsParquet(objectKey, metadata, resources);
+    } else {
+      storeResources(objectKey, Constants.CT_FHIR_NDJSON, metadata, resources);
+    }
+  }
+
+  /**
+   * Stores the resources as a single Parquet file. The configured compression is applied to the
+   * column chunks inside the file, so the object itself doesn't get a Content-Encoding.
+   */
+  private void storeResourcesAsParquet(
+      String objectKey, Map<String, String> metadata, List<? extends IBaseResource> resources)
+      throws IOException {
+    var objectStream =
+        new S3MultipartOutputStream(
+            s3Client,
+            partBufferPool,
+            config.bucketName(),
+            objectKey,
+            PARQUET_CONTENT_TYPE,
+            null,
+            metadata);
+    try {
+      parquetWriter.write(resources, new StreamOutputFile(objectStream));
+    } catch (IOException | RuntimeException e) {
+      objectStream.abort();
+      throw e;
+    }
+  }
+
+  /**
+   * Encodes the given resources as NDJSON and streams them to a single object, compressing them
+   * on the fly if configured. Resources are written directly into the upload buffers, so the object
+   * is never held in memory as a whole.
+   */
+  private void storeResources(
+      String objectKey,
+      String contentType,
+      Map<String, String> metadata,
+      List<? extends IBaseResource> resources)
       throws DataFormatException, IOException {
     var parser = fhirContext.newJsonParser();
+    var compression = config.compression();
+    var objectStream =
+        new S3MultipartOutputStream(
+            s3Client,
+            partBufferPool,
+            config.bucketName(),
+            objectKey + compression.fileExtension(),
+            contentType,
+            compression.contentEncoding(),
+            metadata);
+
+    // measures the bytes and time after compression so we can tell both the compression ratio
+    // and the time spent only on compressing apart
+    var compressedStream = new MeasuringOutputStream(objectStream);
+    var uncompressedStream = new MeasuringOutputStream(compression.wrap(compressedStream));
+    try {
+      writeNdjson(parser, resources, uncompressedStream);
+      uncompressedStream.close();
+    } catch (IOException | RuntimeException e) {
+      objectStream.abort();
+      throw e;
+    }
+
+    if (compression != S3Compression.NONE && compressedStream.bytesWritten() > 0) {
+      compressionRatioDistribution.record(
+          (double) uncompressedStream.bytesWritten() / compressedStream.bytesWritten());
+      compressionDurationTimer.record(
+          uncompressedStream.nanosSpent() - compressedStream.nanosSpent(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** Encodes the given resources as NDJSON to the stream without closing it. */
+  static void writeNdjson(IParser parser, List<? extends IBaseResource> resources, OutputStream out)
+      throws IOException {
+    var writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
     boolean isFirstResource = true;
-    try (var stringWriter = new StringBuilderWriter()) {
-      for (var resource : resources) {
-        if (!(isFirstResource)) {
-          stringWriter.write("\n");
-        }
-        isFirstResource = false;
-
-        parser.encodeResourceToWriter(resource, stringWriter);
+    for (var resource : resources) {
+      if (!(isFirstResource)) {
+        writer.write("\n");
       }
-      return stringWriter.toString();
+      isFirstResource = false;
+
+      parser.encodeResourceToWriter(resource, writer);
     }
+    writer.flush();
   }
 
-  private void storeDeleteBundles(
+  private List<Callable<Void>> deleteBundleUploads(
       Map<String, List<BundleEntryComponent>> groupedDeletes,
       MessageHeaders headers,
       Map<String, String> metadata) {
+    var uploads = new ArrayList<Callable<Void>>();
+
     LOG.debug(
         "Storing {} delete requests in buckets ({})",
         groupedDeletes.size(),
         groupedDeletes.keySet());
 
-    var parser = fhirContext.newJsonParser();
-
     // each entry is one resource type
     for (var entry : groupedDeletes.entrySet()) {
       LOG.debug("Processing resource type {}", entry.getKey());
@@ -167,8 +305,6 @@ public class S3BundleStore {
 
       var resourceType = entry.getKey();
 
-      var deleteBundleJson = parser.encodeResourceToString(deleteBundle);
-
       var prefix = config.objectNamePrefix().orElse("");
 
       var startTimestamp =
@@ -183,25 +319,22 @@ public class S3BundleStore {
               "%s%s/_delete/%s-%s-%s.ndjson",
               prefix, resourceType, startTimestamp, partition, startOffset);
 
-      LOG.debug(
-          "Storing delete bundle with {} entries as object {}",
-          deleteBundle.getEntry().size(),
-          objectKey);
-
-      var body = RequestBody.fromString(deleteBundleJson);
-      s3Client.putObject(
-          request ->
-              request
-                  .bucket(config.bucketName())
-                  .key(objectKey)
-                  .metadata(metadata)
-                  .contentType(Constants.CT_FHIR_JSON_NEW),
-          body);
+      uploads.add(
+          () -> {
+            LOG.debug(
+                "Storing delete bundle with {} entries as object {}",
+                deleteBundle.getEntry().size(),
+                objectKey);
+
+            storeResources(objectKey, Constants.CT_FHIR_JSON_NEW, metadata, List.of(deleteBundle));
+            return null;
+          });
     }
+
+    return uploads;
   }
 
-  public Void storeSingleBundle(Bundle bundle, MessageHeaders messageHeaders)
-      throws DataFormatException, IOException {
+  public Void storeSingleBundle(Bundle bundle, MessageHeaders messageHeaders) throws Exception {
     var mergedBundle =
         merger.mergeSeperateDeleteBundles(
             List.of(bundle), mergerConfig.entryUniquenessFhirpathExpression());
@@ -209,12 +342,16 @@ public class S3BundleStore {
     // extract all POST/PUT bundle entries (mergedBundle.deleteBundle() contains the
     // DELETE entries)
     var resources = BundleUtil.toListOfResources(fhirContext, mergedBundle.bundle());
+    if (payloadSlimmer != null) {
+      resources.forEach(payloadSlimmer::slim);
+    }
 
     var grouped = resources.stream().collect(Collectors.groupingBy(IBaseResource::fhirType));
 
+    var uploads = new ArrayList<Callable<Void>>();
+
     for (var entry : grouped.entrySet()) {
       var resourceType = entry.getKey();
-      var ndjson = listOfResourcesToNdjson(entry.getValue());
 
       var prefix = config.objectNamePrefix().orElse("");
 
@@ -223,15 +360,10 @@ public class S3BundleStore {
       var offset = messageHeaders.get(KafkaHeaders.OFFSET);
 
       var objectKey =
-          String.format("%s%s/%s-%s-%s.ndjson", prefix, resourceType, timestamp, partition, offset);
-
-      LOG.debug(
-          "Storing {} resources of type {} as object {}",
-          entry.getValue().size(),
-          entry.getKey(),
-          objectKey);
+          String.format(
+              "%s%s/%s-%s-%s.%s",
+              prefix, resourceType, timestamp, partition, offset, fileExtension());
 
-      var body = RequestBody.fromString(ndjson);
       var metadata =
           Map.of(
               "kafka-timestamp",
@@ -245,16 +377,21 @@ public class S3BundleStore {
               "kafka-group-id",
               messageHeaders.getOrDefault(KafkaHeaders.GROUP_ID, "").toString());
 
-      s3Client.putObject(
-          request ->
-              request
-                  .bucket(config.bucketName())
-                  .key(objectKey)
-                  .metadata(metadata)
-                  .contentType(Constants.CT_FHIR_NDJSON),
-          body);
+      uploads.add(
+          () -> {
+            LOG.debug(
+                "Storing {} resources of type {} as object {}",
+                entry.getValue().size(),
+                entry.getKey(),
+                objectKey);
+
+            storeResourcesOfType(objectKey, metadata, entry.getValue());
+            return null;
+          });
     }
 
+    uploader.invokeAll(uploads);
+
     // TODO: DELETE bundle entries are not handled here yet
 
     return null;
@@ -0,0 +1,47 @@
+package org.miracum.streams.fhirtoserver;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.springframework.lang.Nullable;
+
+/** Compression applied to objects written to S3. */
+public enum S3Compression {
+  NONE("", null),
+  GZIP(".gz", "gzip"),
+  ZSTD(".zst", "zstd");
+
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+  private final String fileExtension;
+  private final String contentEncoding;
+
+  S3Compression(String fileExtension, String contentEncoding) {
+    this.fileExtension = fileExtension;
+    this.contentEncoding = contentEncoding;
+  }
+
+  /** The suffix appended to object keys, e.g. {@code .gz}. Empty if uncompressed. */
+  public String fileExtension() {
+    return fileExtension;
+  }
+
+  /** The value of the objects {@code Content-Encoding} or null if uncompressed. */
+  @Nullable
+  public String contentEncoding() {
+    return contentEncoding;
+  }
+
+  /**
+   * Wraps the given stream so that everything written to the returned stream is compressed.
+   * Closing the returned stream finishes the compressed data and closes the given stream.
+   */
+  public OutputStream wrap(OutputStream out) throws IOException {
+    return switch (this) {
+      case NONE -> out;
+      case GZIP -> new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+      case ZSTD -> new ZstdOutputStream(out);
+    };
+  }
+}
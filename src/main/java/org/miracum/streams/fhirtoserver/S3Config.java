@@ -1,9 +1,12 @@
 package org.miracum.streams.fhirtoserver;
 
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.NotNull;
 import java.net.URL;
 import java.util.Optional;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 import software.amazon.awssdk.regions.Region;
 
@@ -18,4 +21,8 @@ public record S3Config(
     Optional<String> secretKey,
     @NotEmpty String bucketName,
     Region region,
-    Optional<String> objectNamePrefix) {}
+    Optional<String> objectNamePrefix,
+    @NotNull DataSize multipartPartSize,
+    @Min(1) int uploadConcurrency,
+    @NotNull S3Compression compression,
+    @NotNull S3OutputFormat format) {}
@@ -0,0 +1,220 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+
+/**
+ * Streams bytes to a single S3 object. Writes go to a pooled fixed-size buffer which is uploaded as
+ * a part of a multipart upload whenever it is full, so at most one buffer per stream is held in
+ * memory regardless of the total object size. Objects smaller than a single buffer are stored with
+ * a regular PUT request instead.
+ *
+ * <p>The object only becomes visible once {@link #close()} returns. Call {@link #abort()} instead
+ * if writing the content failed to discard any parts uploaded so far.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+  private static final Logger LOG = LoggerFactory.getLogger(S3MultipartOutputStream.class);
+
+  private static final Counter bytesStreamedCounter =
+      Metrics.globalRegistry.counter("fhirtoserver.s3.bytes.streamed.total");
+
+  private static final Counter partsUploadedCounter =
+      Metrics.globalRegistry.counter("fhirtoserver.s3.multipart.parts.total");
+
+  private static final DistributionSummary partsPerObjectDistribution =
+      Metrics.globalRegistry.summary("fhirtoserver.s3.object.parts");
+
+  private final S3Client s3Client;
+  private final ByteArrayPool bufferPool;
+  private final String bucket;
+  private final String key;
+  private final String contentType;
+  private final String contentEncoding;
+  private final Map<String, String> metadata;
+  private final List<CompletedPart> completedParts = new ArrayList<>();
+
+  private byte[] buffer;
+  private int position;
+  private String uploadId;
+  private boolean closed;
+
+  public S3MultipartOutputStream(
+      S3Client s3Client,
+      ByteArrayPool bufferPool,
+      String bucket,
+      String key,
+      String contentType,
+      @Nullable String contentEncoding,
+      Map<String, String> metadata) {
+    this.s3Client = s3Client;
+    this.bufferPool = bufferPool;
+    this.bucket = bucket;
+    this.key = key;
+    this.contentType = contentType;
+    this.contentEncoding = contentEncoding;
+    this.metadata = metadata;
+    this.buffer = bufferPool.acquire();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (position == buffer.length) {
+      uploadBufferAsPart();
+    }
+    buffer[position++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      if (position == buffer.length) {
+        uploadBufferAsPart();
+      }
+      var count = Math.min(len, buffer.length - position);
+      System.arraycopy(b, off, buffer, position, count);
+      position += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  /** Uploads any remaining buffered bytes and completes the object. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    try {
+      if (uploadId == null) {
+        putBufferAsObject();
+      } else {
+        uploadBufferAsPart();
+        s3Client.completeMultipartUpload(
+            request ->
+                request
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(upload -> upload.parts(completedParts)));
+        partsPerObjectDistribution.record(completedParts.size());
+      }
+    } catch (RuntimeException e) {
+      abort();
+      throw e;
+    } finally {
+      releaseBuffer();
+    }
+  }
+
+  /** Discards the object including any parts that have already been uploaded. */
+  public void abort() {
+    if (uploadId != null) {
+      try {
+        s3Client.abortMultipartUpload(
+            request -> request.bucket(bucket).key(key).uploadId(uploadId));
+      } catch (RuntimeException e) {
+        LOG.warn(
+            "Failed to abort multipart upload {} of {}",
+            kv("uploadId", uploadId),
+            kv("objectKey", key),
+            e);
+      }
+      uploadId = null;
+    }
+    releaseBuffer();
+  }
+
+  private void putBufferAsObject() {
+    s3Client.putObject(
+        request ->
+            request
+                .bucket(bucket)
+                .key(key)
+                .metadata(metadata)
+                .contentType(contentType)
+                .contentEncoding(contentEncoding),
+        bufferedBody());
+    bytesStreamedCounter.increment(position);
+    partsPerObjectDistribution.record(1);
+    position = 0;
+  }
+
+  private void uploadBufferAsPart() {
+    if (uploadId == null) {
+      uploadId =
+          s3Client
+              .createMultipartUpload(
+                  request ->
+                      request
+                          .bucket(bucket)
+                          .key(key)
+                          .metadata(metadata)
+                          .contentType(contentType)
+                          .contentEncoding(contentEncoding))
+              .uploadId();
+      LOG.debug(
+          "Started multipart upload {} of {}", kv("uploadId", uploadId), kv("objectKey", key));
+    }
+
+    var partNumber = completedParts.size() + 1;
+    var response =
+        s3Client.uploadPart(
+            request ->
+                request
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .partNumber(partNumber)
+                    .contentLength((long) position),
+            bufferedBody());
+
+    completedParts.add(
+        CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build());
+    bytesStreamedCounter.increment(position);
+    partsUploadedCounter.increment();
+    position = 0;
+  }
+
+  /**
+   * Creates a request body reading directly from the current buffer instead of copying it. The
+   * stream provider may be invoked multiple times if the SDK retries the request.
+   */
+  private RequestBody bufferedBody() {
+    var bytes = buffer;
+    var length = position;
+    return RequestBody.fromContentProvider(
+        () -> new ByteArrayInputStream(bytes, 0, length), length, contentType);
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream for object " + key + " has already been closed");
+    }
+  }
+
+  private void releaseBuffer() {
+    if (!closed) {
+      closed = true;
+      bufferPool.release(buffer);
+      buffer = null;
+    }
+  }
+}
@@ -0,0 +1,9 @@
+package org.miracum.streams.fhirtoserver;
+
+/** The file format used to store the resources of a batch in object storage. */
+public enum S3OutputFormat {
+  /** One JSON-encoded resource per line. */
+  NDJSON,
+  /** A columnar file with a flattened core schema plus the raw resource JSON. */
+  PARQUET
+}
@@ -13,16 +13,26 @@ import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import org.apache.logging.log4j.util.Strings;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,12 +40,20 @@ import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.listener.BatchListenerFailedException;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.lang.Nullable;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.retry.RetryCallback;
 import org.springframework.retry.RetryContext;
 import org.springframework.retry.RetryListener;
+import org.springframework.retry.backoff.BackOffInterruptedException;
 import org.springframework.retry.backoff.ExponentialRandomBackOffPolicy;
+import org.springframework.retry.backoff.ThreadWaitSleeper;
 import org.springframework.retry.policy.SimpleRetryPolicy;
 import org.springframework.retry.support.RetryTemplate;
 import org.springframework.stereotype.Service;
@@ -86,35 +104,120 @@ public class SendToServerProcessor {
   private static final DistributionSummary sendBundleSizeDistribution =
       Metrics.globalRegistry.summary("fhirtoserver.fhir.batch.bundle.size");
 
+  private static final DistributionSummary rawBundleSizeDistribution =
+      Metrics.globalRegistry.summary("fhirtoserver.fhir.raw.bundle.size.bytes");
+
+  private static final DistributionSummary partitionFanOutDistribution =
+      Metrics.globalRegistry.summary("fhirtoserver.fhir.batch.partitions");
+
+  private static final DistributionSummary bisectionRoundsDistribution =
+      Metrics.globalRegistry.summary("fhirtoserver.fhir.client.transaction.bisection.rounds");
+
+  private static final AtomicInteger partitionsInFlight =
+      Metrics.globalRegistry.gauge(
+          "fhirtoserver.fhir.batch.partitions.in.flight", new AtomicInteger(0));
+
+  // the elements commonly used by resources to refer to the patient they belong to
+  private static final List<String> PATIENT_REFERENCE_ELEMENTS = List.of("subject", "patient");
+
   private final IGenericClient client;
   private final RetryTemplate retryTemplate;
   private final String fhirPathFilterExpression;
   private final Bundle.BundleType overrideBundleType;
   private final FhirPathResourceFilter resourceFilter;
+  private final ProcessingMetrics processingMetrics;
   private final FhirBundleMerger fhirBundleMerger;
+  private final StreamingBundleMerger streamingBundleMerger;
+  private final ParallelBundleDecoder bundleDecoder;
+  private final ReferenceAwarePartitioner referenceAwarePartitioner;
 
   private final FhirBundleMergerConfig batchMergingConfig;
+  private final BoundedParallelExecutor partitionSender;
+  private final KeyOrderedDispatcher keyOrderedDispatcher;
+  private final BatchAccumulator batchAccumulator;
+  private final BatchPipeline batchPipeline;
+  private final AdaptivePartitionSizer partitionSizer;
+  private final GradientConcurrencyLimiter concurrencyLimiter;
+  private final CircuitBreaker circuitBreaker;
+  private final TransactionRateLimiter rateLimiter;
+  private final ResourceDedupCache dedupCache;
+  private final PayloadSlimmer payloadSlimmer;
+  private final DeadLetterPublisher deadLetterPublisher;
+
+  private final int maxBisectionDepth;
 
   private final S3Config s3Config;
   private S3BundleStore s3Store;
 
+  private final BundleSpool spool;
+  private final SpoolDrainer spoolDrainer;
+
   public SendToServerProcessor(
       IGenericClient fhirClient,
       @Value("${fhir.filter.expression}") String fhirPathFilterExpression,
       @Value("${fhir.override-bundle-type-with}") Bundle.BundleType overrideBundleType,
       FhirBundleMergerConfig batchMergingConfig,
+      BatchLingerConfig batchLingerConfig,
+      BatchPipelineConfig batchPipelineConfig,
+      KeyOrderedProcessingConfig keyOrderedProcessingConfig,
       FhirPathResourceFilter resourceFilter,
+      ProcessingMetrics processingMetrics,
       FhirBundleMerger fhirBundleMerger,
+      StreamingBundleMerger streamingBundleMerger,
+      ParallelBundleDecoder bundleDecoder,
+      ReferenceAwarePartitioner referenceAwarePartitioner,
+      BisectOnClientErrorConfig bisectConfig,
       S3Config s3Config,
-      @Nullable S3BundleStore s3Store) {
+      @Nullable S3BundleStore s3Store,
+      @Nullable BundleSpool spool,
+      @Nullable AdaptivePartitionSizer partitionSizer,
+      @Nullable GradientConcurrencyLimiter concurrencyLimiter,
+      @Nullable CircuitBreaker circuitBreaker,
+      @Nullable ResourceDedupCache dedupCache,
+      @Nullable DeadLetterPublisher deadLetterPublisher,
+      @Nullable PayloadSlimmer payloadSlimmer,
+      @Nullable TransactionRateLimiter rateLimiter) {
     this.overrideBundleType = overrideBundleType;
     this.batchMergingConfig = batchMergingConfig;
     this.fhirPathFilterExpression = fhirPathFilterExpression;
     this.resourceFilter = resourceFilter;
+    this.processingMetrics = processingMetrics;
     this.client = fhirClient;
     this.fhirBundleMerger = fhirBundleMerger;
+    this.streamingBundleMerger = streamingBundleMerger;
+    this.bundleDecoder = bundleDecoder;
+    this.referenceAwarePartitioner = referenceAwarePartitioner;
+    this.maxBisectionDepth = bisectConfig.maxDepth();
     this.s3Config = s3Config;
     this.s3Store = s3Store;
+    this.spool = spool;
+    this.partitionSizer = partitionSizer;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.circuitBreaker = circuitBreaker;
+    this.rateLimiter = rateLimiter;
+    this.dedupCache = dedupCache;
+    this.deadLetterPublisher = deadLetterPublisher;
+    this.payloadSlimmer = payloadSlimmer;
+    this.partitionSender =
+        new BoundedParallelExecutor(
+            batchMergingConfig.partitionSendConcurrency(), partitionsInFlight);
+    this.keyOrderedDispatcher =
+        new KeyOrderedDispatcher(keyOrderedProcessingConfig.maxConcurrency());
+    this.batchAccumulator =
+        batchLingerConfig.enabled()
+            ? new BatchAccumulator(
+                batchLingerConfig, fhirClient.getFhirContext(), this::sendMergedBundles)
+            : null;
+
+    if (batchPipelineConfig.enabled() && batchLingerConfig.enabled()) {
+      throw new IllegalArgumentException(
+          "fhir.merge-batches-into-single-bundle.pipeline can't be enabled together with linger");
+    }
+    this.batchPipeline =
+        batchPipelineConfig.enabled()
+            ? new BatchPipeline(
+                batchPipelineConfig.queueCapacity(), this::mergeBundles, this::sendMergedBundle)
+            : null;
 
     this.retryTemplate = new RetryTemplate();
 
@@ -122,7 +225,11 @@ public class SendToServerProcessor {
     backOffPolicy.setInitialInterval(10_000); // 10 seconds
     backOffPolicy.setMaxInterval(300_000); // 5 minutes
 
-    retryTemplate.setBackOffPolicy(backOffPolicy);
+    retryTemplate.setBackOffPolicy(
+        new RetryAfterBackOffPolicy(
+            backOffPolicy,
+            Duration.ofMillis(backOffPolicy.getMaxInterval()),
+            new ThreadWaitSleeper()));
 
     var retryableExceptions = new HashMap<Class<? extends Throwable>, Boolean>();
     retryableExceptions.put(HttpServerErrorException.class, true);
@@ -138,6 +245,7 @@ public class SendToServerProcessor {
     retryableExceptions.put(AwsServiceException.class, true);
     retryableExceptions.put(RetryableException.class, true);
     retryableExceptions.put(SdkClientException.class, true);
+    retryableExceptions.put(CircuitBreaker.CircuitOpenException.class, false);
 
     retryTemplate.setRetryPolicy(new SimpleRetryPolicy(Integer.MAX_VALUE, retryableExceptions));
 
@@ -146,11 +254,23 @@ public class SendToServerProcessor {
           @Override
           public <T, E extends Throwable> void onError(
               RetryContext context, RetryCallback<T, E> callback, Throwable throwable) {
+            if (Thread.currentThread().isInterrupted()) {
+              // cancelled, e.g. because another partition failed. The backoff won't wait either.
+              LOG.debug("Sending was interrupted", throwable);
+              return;
+            }
+            if (throwable instanceof CircuitBreaker.CircuitOpenException) {
+              // nothing was sent, the server's failures were already counted
+              return;
+            }
             LOG.warn(
                 "Trying to send resource to FHIR server caused error. Attempt: {}.",
                 context.getRetryCount(),
                 throwable);
             sendingFailedCounter.increment();
+            if (partitionSizer != null) {
+              partitionSizer.onFailure(throwable);
+            }
             if (throwable instanceof BaseServerResponseException fhirException) {
               var operationOutcome = fhirException.getOperationOutcome();
               if (operationOutcome != null) {
@@ -164,6 +284,27 @@ public class SendToServerProcessor {
             }
           }
         });
+
+    if (spool != null) {
+      this.spoolDrainer = new SpoolDrainer(spool, this::transmitSpooledBundle);
+      this.spoolDrainer.start();
+    } else {
+      this.spoolDrainer = null;
+    }
+  }
+
+  /**
+   * Stops the batch pipeline before the spool drainer, since the pipeline may still append bundles
+   * to the spool while it finishes the batches in flight.
+   */
+  @PreDestroy
+  void stop() throws InterruptedException {
+    if (batchPipeline != null) {
+      batchPipeline.close();
+    }
+    if (spoolDrainer != null) {
+      spoolDrainer.close();
+    }
   }
 
   @Bean
@@ -175,75 +316,193 @@ public class SendToServerProcessor {
         return;
       }
 
-      var resourceBatch = messageBatch.getPayload();
+      processingMetrics.recordConsumerLag(messageBatch.getHeaders());
+      unlessCircuitOpen(messageBatch, this::processBatch);
+    };
+  }
 
-      if (resourceBatch.isEmpty()) {
-        LOG.warn("received batch is empty. Ignoring.");
-        messageEmptyCounter.increment();
-        return;
+  private void processBatch(Message<List<Resource>> messageBatch) {
+    var resourceBatch = messageBatch.getPayload();
+
+    if (resourceBatch.isEmpty()) {
+      LOG.warn("received batch is empty. Ignoring.");
+      messageEmptyCounter.increment();
+      return;
+    }
+
+    LOG.debug("Processing batch of {} resources", kv("batchSize", resourceBatch.size()));
+    var allBundlesInBatch = new ArrayList<Bundle>();
+    for (var resource : resourceBatch) {
+      if (!(resource instanceof Bundle bundle)) {
+        LOG.warn("Can only process resources of type Bundle. Ignoring.");
+        unsupportedResourceTypeCounter.increment();
+        continue;
       }
+      allBundlesInBatch.add(bundle);
+    }
 
-      LOG.debug("Processing batch of {} resources", kv("batchSize", resourceBatch.size()));
-      var allBundlesInBatch = new ArrayList<Bundle>();
-      for (var resource : resourceBatch) {
-        if (!(resource instanceof Bundle bundle)) {
-          LOG.warn("Can only process resources of type Bundle. Ignoring.");
-          unsupportedResourceTypeCounter.increment();
-          continue;
-        }
-        allBundlesInBatch.add(bundle);
+    if (s3Config.enabled()) {
+      LOG.debug("Sending all bundles to object storage as merged bundles");
+      try {
+        retryTemplate.execute(
+            context -> s3Store.storeBatch(allBundlesInBatch, messageBatch.getHeaders()));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
       }
+    } else if (batchMergingConfig.enabled() && batchAccumulator != null) {
+      LOG.debug("Adding bundles to the lingering batch");
+      batchAccumulator.add(
+          allBundlesInBatch,
+          processingMetrics.recordingLatencyOnAcknowledge(messageBatch.getHeaders()));
+      // acknowledged by the accumulator once the lingering batch has been sent
+      return;
+    } else if (batchMergingConfig.enabled() && batchPipeline != null) {
+      LOG.debug("Handing bundles to the batch pipeline");
+      batchPipeline.submit(
+          allBundlesInBatch,
+          processingMetrics.recordingLatencyOnAcknowledge(messageBatch.getHeaders()));
+      // acknowledged by the pipeline once the merged batch has been sent
+      return;
+    } else if (batchMergingConfig.enabled()) {
+      LOG.debug("Sending bundles as merged batches");
+      sendMergedBundles(allBundlesInBatch);
+    } else {
+      LOG.debug("Sending all bundles in batch one by one");
+      for (var bundle : allBundlesInBatch) {
 
-      if (s3Config.enabled()) {
-        LOG.debug("Sending all bundles to object storage as merged bundles");
-        try {
-          retryTemplate.execute(
-              context -> s3Store.storeBatch(allBundlesInBatch, messageBatch.getHeaders()));
-        } catch (Exception e) {
-          throw new RuntimeException(e);
-        }
-      } else if (batchMergingConfig.enabled()) {
-        LOG.debug("Sending bundles as merged batches");
-        var mergedBundle =
-            bundleMergingDurationTimer.record(
-                () ->
-                    fhirBundleMerger.merge(
-                        allBundlesInBatch, batchMergingConfig.entryUniquenessFhirpathExpression()));
-
-        if (batchMergingConfig.bundleMaxSize().isPresent()) {
-          LOG.debug(
-              "Partitioning bundles enabled. Splitting single bundle of size {} into {} ones.",
-              kv("bundleSize", mergedBundle.getEntry().size()),
-              kv("maxPartitionSize", batchMergingConfig.bundleMaxSize().get()));
-          var partitionedBundles =
-              fhirBundleMerger.partitionBundle(
-                  mergedBundle, batchMergingConfig.bundleMaxSize().get());
-          for (var bundle : partitionedBundles) {
-            sendSingleBundleToServer(bundle);
-          }
-        } else {
-          sendSingleBundleToServer(mergedBundle);
+        MDC.put("bundleSize", String.valueOf(bundle.getEntry().size()));
+
+        var firstEntryResource = bundle.getEntryFirstRep().getResource();
+        if (firstEntryResource != null) {
+          MDC.put(
+              "bundleFirstEntryId",
+              firstEntryResource.getIdElement().toUnqualifiedVersionless().toString());
+          MDC.put("bundleFirstEntryType", firstEntryResource.getResourceType().name());
         }
-      } else {
-        LOG.debug("Sending all bundles in batch one by one");
-        for (var bundle : allBundlesInBatch) {
 
-          MDC.put("bundleSize", String.valueOf(bundle.getEntry().size()));
+        sendSingleBundleToServer(bundle);
+      }
+    }
 
-          var firstEntryResource = bundle.getEntryFirstRep().getResource();
-          if (firstEntryResource != null) {
-            MDC.put(
-                "bundleFirstEntryId",
-                firstEntryResource.getIdElement().toUnqualifiedVersionless().toString());
-            MDC.put("bundleFirstEntryType", firstEntryResource.getResourceType().name());
-          }
+    acknowledge(messageBatch);
+  }
 
-          sendSingleBundleToServer(bundle);
-        }
+  /**
+   * Handles every bundle of a batch like {@link #sinkSingle()}, but processes bundles with
+   * different keys concurrently while bundles with the same key are processed in order. The key is
+   * the Kafka message key or, if there is none, the patient the bundle's first entries refer to.
+   * If a bundle fails, a {@link BatchListenerFailedException} is thrown pointing at the first
+   * bundle in the batch that was not processed, so only the offsets before it are committed.
+   */
+  @Bean
+  Consumer<Message<List<Resource>>> sinkKeyed() {
+    return messageBatch -> {
+      if (messageBatch == null) {
+        LOG.warn("resource is null. Ignoring.");
+        messageNullCounter.increment();
+        return;
       }
+
+      processingMetrics.recordConsumerLag(messageBatch.getHeaders());
+      unlessCircuitOpen(messageBatch, this::processKeyedBatch);
     };
   }
 
+  private void processKeyedBatch(Message<List<Resource>> messageBatch) {
+    var resourceBatch = messageBatch.getPayload();
+
+    if (resourceBatch.isEmpty()) {
+      LOG.warn("received batch is empty. Ignoring.");
+      messageEmptyCounter.increment();
+      return;
+    }
+
+    if (s3Config.enabled()) {
+      LOG.debug("Key-ordered processing is not supported for object storage. Storing as batch.");
+      processBatch(messageBatch);
+      return;
+    }
+
+    var kafkaKeys = (List<?>) messageBatch.getHeaders().get(KafkaHeaders.RECEIVED_KEY);
+
+    LOG.debug("Processing batch of {} resources by key", kv("batchSize", resourceBatch.size()));
+
+    Optional<KeyOrderedDispatcher.Failure> failure;
+    try {
+      failure =
+          keyOrderedDispatcher.dispatch(
+              resourceBatch.size(),
+              index ->
+                  orderingKey(
+                      resourceBatch.get(index), kafkaKeys != null ? kafkaKeys.get(index) : null),
+              index -> processKeyedResource(resourceBatch.get(index)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while processing batch by key", e);
+    }
+
+    if (failure.isPresent()) {
+      throw new BatchListenerFailedException(
+          "Failed to process bundle", failure.get().cause(), failure.get().index());
+    }
+
+    acknowledge(messageBatch);
+  }
+
+  private void processKeyedResource(Resource resource) {
+    if (!(resource instanceof Bundle bundle)) {
+      LOG.warn("Can only process resources of type Bundle. Ignoring.");
+      unsupportedResourceTypeCounter.increment();
+      return;
+    }
+
+    if (bundle.getEntry().isEmpty()) {
+      LOG.warn("received batch is empty. Ignoring.");
+      messageEmptyCounter.increment();
+      return;
+    }
+
+    sendSingleBundleToServer(bundle);
+  }
+
+  /**
+   * The key that determines the order in which bundles are processed: the Kafka message key if
+   * set, otherwise the first patient the bundle's entries belong to.
+   */
+  private String orderingKey(Resource resource, @Nullable Object kafkaKey) {
+    if (kafkaKey instanceof byte[] bytes) {
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    if (kafkaKey != null) {
+      return kafkaKey.toString();
+    }
+    if (!(resource instanceof Bundle bundle)) {
+      return null;
+    }
+
+    var fhirContext = client.getFhirContext();
+    var terser = fhirContext.newTerser();
+    for (var entry : bundle.getEntry()) {
+      var entryResource = entry.getResource();
+      if (entryResource == null) {
+        continue;
+      }
+      if (entryResource instanceof Patient && entryResource.getIdElement().hasIdPart()) {
+        return "Patient/" + entryResource.getIdElement().getIdPart();
+      }
+      var definition = fhirContext.getResourceDefinition(entryResource);
+      for (var child : PATIENT_REFERENCE_ELEMENTS) {
+        if (definition.getChildByName(child) != null) {
+          var reference = terser.getSinglePrimitiveValueOrNull(entryResource, child + ".reference");
+          if (reference != null) {
+            return reference;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
   @Bean
   Consumer<Message<Resource>> sinkSingle() {
     return message -> {
@@ -253,36 +512,379 @@ public class SendToServerProcessor {
         return;
       }
 
-      var resource = message.getPayload();
+      processingMetrics.recordConsumerLag(message.getHeaders());
+      unlessCircuitOpen(message, this::processSingle);
+    };
+  }
 
-      if (!(resource instanceof Bundle bundle)) {
-        LOG.warn("Can only process resources of type Bundle. Ignoring.");
-        unsupportedResourceTypeCounter.increment();
-        return;
+  private void processSingle(Message<Resource> message) {
+    var resource = message.getPayload();
+
+    if (!(resource instanceof Bundle bundle)) {
+      LOG.warn("Can only process resources of type Bundle. Ignoring.");
+      unsupportedResourceTypeCounter.increment();
+      return;
+    }
+
+    if (bundle.getEntry().isEmpty()) {
+      LOG.warn("received batch is empty. Ignoring.");
+      messageEmptyCounter.increment();
+      return;
+    }
+
+    LOG.debug("Processing single bundle {}", kv("bundleId", bundle.getId()));
+
+    if (s3Config.enabled()) {
+      LOG.debug("Sending bundle to object storage");
+      try {
+        retryTemplate.execute(context -> s3Store.storeSingleBundle(bundle, message.getHeaders()));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
       }
+    } else {
+      LOG.debug("Sending single bundle");
+      sendSingleBundleToServer(bundle);
+    }
 
-      if (bundle.getEntry().isEmpty()) {
-        LOG.warn("received batch is empty. Ignoring.");
-        messageEmptyCounter.increment();
+    acknowledge(message);
+  }
+
+  /**
+   * Forwards JSON-encoded bundles to the server as they are, without parsing them into HAPI
+   * resources first. Only checks that the payload is a Bundle. Bundles are parsed and handled
+   * like in {@link #sinkSingle()} only if a filter, a bundle type override or the object storage
+   * sink is configured, since these need access to the resources.
+   */
+  @Bean
+  Consumer<Message<byte[]>> sinkRaw() {
+    return message -> {
+      if (message == null) {
+        LOG.warn("message is null. Ignoring.");
+        messageNullCounter.increment();
         return;
       }
 
-      LOG.debug("Processing single bundle {}", kv("bundleId", bundle.getId()));
+      processingMetrics.recordConsumerLag(message.getHeaders());
+      unlessCircuitOpen(message, this::processRaw);
+    };
+  }
 
-      if (s3Config.enabled()) {
-        LOG.debug("Sending bundle to object storage");
-        try {
-          retryTemplate.execute(context -> s3Store.storeSingleBundle(bundle, message.getHeaders()));
-        } catch (Exception e) {
-          throw new RuntimeException(e);
-        }
-      } else {
-        LOG.debug("Sending single bundle");
-        sendSingleBundleToServer(bundle);
+  private void processRaw(Message<byte[]> message) {
+    var payload = message.getPayload();
+
+    if (!RawBundles.isBundle(payload)) {
+      LOG.warn("Can only process resources of type Bundle. Ignoring.");
+      unsupportedResourceTypeCounter.increment();
+      acknowledge(message);
+      return;
+    }
+
+    if (rawBundlesRequireParsing()) {
+      LOG.debug("Parsing raw bundle since it needs to be filtered, modified or stored as NDJSON");
+      var bundle = parseRawBundle(payload);
+      processSingle(MessageBuilder.<Resource>createMessage(bundle, message.getHeaders()));
+      return;
+    }
+
+    sendRawBundle(payload, 0);
+
+    acknowledge(message);
+  }
+
+  /**
+   * The batch counterpart of {@link #sinkRaw()}. If merging is enabled, the bundles are merged by
+   * the {@link StreamingBundleMerger} which only tokenizes the JSON instead of parsing it into
+   * resources. Falls back to parsing the bundles and handling them like in {@link #sinkBatch()} if
+   * they need to be filtered, modified or stored, if lingering or reference-aware partitioning is
+   * enabled or if the configured entry uniqueness expression can't be evaluated on raw bundles.
+   */
+  @Bean
+  Consumer<Message<List<byte[]>>> sinkRawBatch() {
+    return messageBatch -> {
+      if (messageBatch == null) {
+        LOG.warn("resource is null. Ignoring.");
+        messageNullCounter.increment();
+        return;
       }
+
+      processingMetrics.recordConsumerLag(messageBatch.getHeaders());
+      unlessCircuitOpen(messageBatch, this::processRawBatch);
     };
   }
 
+  private void processRawBatch(Message<List<byte[]>> messageBatch) {
+    var payloadBatch = messageBatch.getPayload();
+
+    if (payloadBatch.isEmpty()) {
+      LOG.warn("received batch is empty. Ignoring.");
+      messageEmptyCounter.increment();
+      return;
+    }
+
+    LOG.debug("Processing batch of {} raw bundles", kv("batchSize", payloadBatch.size()));
+    var allBundlesInBatch = new ArrayList<byte[]>();
+    // the index of each bundle within the received batch, to report parsing failures
+    var batchIndexes = new ArrayList<Integer>();
+    for (int i = 0; i < payloadBatch.size(); i++) {
+      var payload = payloadBatch.get(i);
+      if (!RawBundles.isBundle(payload)) {
+        LOG.warn("Can only process resources of type Bundle. Ignoring.");
+        unsupportedResourceTypeCounter.increment();
+        continue;
+      }
+      allBundlesInBatch.add(payload);
+      batchIndexes.add(i);
+    }
+
+    var requiresParsing =
+        rawBundlesRequireParsing()
+            || (batchMergingConfig.enabled()
+                && (batchAccumulator != null
+                    || batchMergingConfig.referenceAwarePartitioning()
+                    || !StreamingBundleMerger.supports(
+                        batchMergingConfig.entryUniquenessFhirpathExpression())));
+    if (requiresParsing) {
+      LOG.debug("Parsing raw bundles since they can't be processed without parsing them");
+      List<Resource> resources;
+      try {
+        resources = List.copyOf(bundleDecoder.decode(allBundlesInBatch));
+      } catch (ParallelBundleDecoder.DecodingException e) {
+        throw new BatchListenerFailedException(
+            "Failed to parse bundle", e.getCause(), batchIndexes.get(e.index()));
+      }
+      processBatch(
+          MessageBuilder.<List<Resource>>createMessage(resources, messageBatch.getHeaders()));
+      return;
+    }
+
+    if (batchMergingConfig.enabled()) {
+      if (!allBundlesInBatch.isEmpty()) {
+        LOG.debug("Sending raw bundles as merged batches");
+        sendMergedRawBundles(allBundlesInBatch);
+      }
+    } else {
+      LOG.debug("Sending all raw bundles in batch one by one");
+      for (var payload : allBundlesInBatch) {
+        sendRawBundle(payload, 0);
+      }
+    }
+
+    acknowledge(messageBatch);
+  }
+
+  /**
+   * Raw bundles can only be forwarded as-is if they don't need to be filtered, have their type
+   * overridden or be converted for the object storage.
+   */
+  private boolean rawBundlesRequireParsing() {
+    return Strings.isNotBlank(fhirPathFilterExpression)
+        || overrideBundleType != null
+        || s3Config.enabled();
+  }
+
+  private Bundle parseRawBundle(byte[] payload) {
+    return client
+        .getFhirContext()
+        .newJsonParser()
+        .parseResource(Bundle.class, new String(payload, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Flushes lingering batches whose deadline has passed and rewinds failed pipelined batches even
+   * if no new records arrive. Idle events are published on the consumer thread that owns the
+   * lingering batch or pipeline.
+   */
+  @EventListener
+  void onListenerContainerIdle(ListenerContainerIdleEvent event) {
+    if (batchAccumulator != null) {
+      batchAccumulator.flushIfDue(event.getConsumer());
+    }
+    if (batchPipeline != null) {
+      batchPipeline.rewindIfFailed(event.getConsumer());
+    }
+  }
+
+  /**
+   * Handles the message unless the circuit is open. While it is open, or if it opens while the
+   * message is handled, the message is negatively acknowledged instead: the container seeks back
+   * to it and pauses the consumer for the rest of the open duration while it keeps polling. This
+   * way the consumer thread isn't blocked for longer than {@code max.poll.interval.ms} and the
+   * consumer keeps its partitions. Bundles that are spooled or stored in object storage don't reach
+   * the server from the consumer thread, so they are handled as usual.
+   */
+  private <T> void unlessCircuitOpen(Message<T> message, Consumer<Message<T>> handler) {
+    var acknowledgment =
+        message.getHeaders().get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
+    if (circuitBreaker == null || acknowledgment == null || spool != null || s3Config.enabled()) {
+      handler.accept(message);
+      return;
+    }
+
+    var retryDelay = circuitBreaker.retryDelay();
+    if (!retryDelay.isZero()) {
+      pauseWhileCircuitOpen(message, acknowledgment, 0, retryDelay);
+      return;
+    }
+
+    try {
+      handler.accept(message);
+    } catch (RuntimeException e) {
+      var circuitOpen = FhirServerErrors.circuitOpen(e);
+      if (circuitOpen.isEmpty()) {
+        throw e;
+      }
+      // only the bundles before the failed one have been sent
+      var index = e instanceof BatchListenerFailedException failed ? failed.getIndex() : 0;
+      pauseWhileCircuitOpen(message, acknowledgment, index, circuitOpen.get().retryDelay());
+    }
+  }
+
+  private void pauseWhileCircuitOpen(
+      Message<?> message, Acknowledgment acknowledgment, int index, Duration retryDelay) {
+    LOG.info("Circuit is open. Pausing consumption for {}", kv("retryDelay", retryDelay));
+    if (message.getPayload() instanceof List<?>) {
+      acknowledgment.nack(index, retryDelay);
+    } else {
+      acknowledgment.nack(retryDelay);
+    }
+  }
+
+  /**
+   * Acknowledges the message if the container uses manual acknowledgement, which is the case if
+   * lingering or pipelining is enabled, and records the end-to-end latency of its records.
+   */
+  private void acknowledge(Message<?> message) {
+    var acknowledgment =
+        message.getHeaders().get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class);
+    if (acknowledgment != null) {
+      acknowledgment.acknowledge();
+    }
+    processingMetrics.recordEndToEndLatency(message.getHeaders());
+  }
+
+  /**
+   * Merges all bundles into a single one and sends it to the server, partitioned if {@code
+   * bundle-max-size} is set.
+   */
+  void sendMergedBundles(List<Bundle> bundles) {
+    sendMergedBundle(mergeBundles(bundles));
+  }
+
+  Bundle mergeBundles(List<Bundle> bundles) {
+    return bundleMergingDurationTimer.record(
+        () ->
+            fhirBundleMerger.merge(
+                bundles, batchMergingConfig.entryUniquenessFhirpathExpression()));
+  }
+
+  /** Sends an already merged bundle, partitioned if {@code bundle-max-size} is set. */
+  void sendMergedBundle(Bundle mergedBundle) {
+    var maxPartitionSize =
+        partitionSizer != null
+            ? Optional.of(partitionSizer.currentSize())
+            : batchMergingConfig.bundleMaxSize();
+
+    if (maxPartitionSize.isPresent()) {
+      LOG.debug(
+          "Partitioning bundles enabled. Splitting single bundle of size {} into {} ones.",
+          kv("bundleSize", mergedBundle.getEntry().size()),
+          kv("maxPartitionSize", maxPartitionSize.get()));
+      var partitionedBundles =
+          batchMergingConfig.referenceAwarePartitioning()
+              ? referenceAwarePartitioner.partitionBundle(mergedBundle, maxPartitionSize.get())
+              : fhirBundleMerger.partitionBundle(mergedBundle, maxPartitionSize.get());
+      sendPartitionsToServer(partitionedBundles);
+    } else {
+      sendSingleBundleToServer(mergedBundle);
+    }
+  }
+
+  /**
+   * Merges the raw bundles without parsing them and sends the result to the server, partitioned if
+   * {@code bundle-max-size} is set. Like {@link #sendMergedBundles(List)}, DELETE entries are not
+   * sent.
+   */
+  void sendMergedRawBundles(List<byte[]> bundles) {
+    var merged =
+        bundleMergingDurationTimer.record(
+            () ->
+                streamingBundleMerger.merge(
+                    bundles, batchMergingConfig.entryUniquenessFhirpathExpression()));
+
+    if (merged.entries().isEmpty()) {
+      LOG.debug("Merged raw bundle contains no entries. Nothing to send.");
+      return;
+    }
+
+    var maxPartitionSize =
+        partitionSizer != null
+            ? Optional.of(partitionSizer.currentSize())
+            : batchMergingConfig.bundleMaxSize();
+
+    if (maxPartitionSize.isEmpty()) {
+      sendRawBundle(merged.bundle(), merged.entries().size());
+      return;
+    }
+
+    LOG.debug(
+        "Partitioning bundles enabled. Splitting single raw bundle of size {} into {} ones.",
+        kv("bundleSize", merged.entries().size()),
+        kv("maxPartitionSize", maxPartitionSize.get()));
+    var partitions = merged.partition(maxPartitionSize.get());
+    partitionFanOutDistribution.record(partitions.size());
+
+    var tasks =
+        partitions.stream()
+            .map(
+                partition ->
+                    (Callable<Void>)
+                        () -> {
+                          sendRawBundle(partition.bundle(), partition.entries().size());
+                          return null;
+                        })
+            .toList();
+
+    invokePartitionTasks(tasks);
+  }
+
+  /**
+   * Sends all partitions of a merged bundle to the server, at most {@code
+   * partition-send-concurrency} of them at once. Each partition is retried independently using the
+   * shared retry policy. Returns only once every partition has been sent successfully, so the
+   * batch is only acknowledged if all of them succeeded.
+   */
+  void sendPartitionsToServer(List<Bundle> partitions) {
+    partitionFanOutDistribution.record(partitions.size());
+
+    LOG.debug(
+        "Sending {} partitions with a {}",
+        kv("numPartitions", partitions.size()),
+        kv("maxConcurrency", partitionSender.maxConcurrency()));
+
+    var tasks =
+        partitions.stream()
+            .map(
+                partition ->
+                    (Callable<Void>)
+                        () -> {
+                          sendSingleBundleToServer(partition);
+                          return null;
+                        })
+            .toList();
+
+    invokePartitionTasks(tasks);
+  }
+
+  private void invokePartitionTasks(List<Callable<Void>> tasks) {
+    try {
+      partitionSender.invokeAll(tasks);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   void sendSingleBundleToServer(Bundle bundle) {
     if (overrideBundleType != null) {
       bundle.setType(overrideBundleType);
@@ -306,21 +908,305 @@ public class SendToServerProcessor {
       }
     }
 
-    if (shouldSend) {
-      var bundleSize = bundle.getEntry().size();
-      LOG.debug("Sending Bundle with {} resources to server", kv("bundleSize", bundleSize));
+    if (!shouldSend) {
+      return;
+    }
+
+    if (payloadSlimmer != null) {
+      payloadSlimmer.slim(bundle);
+    }
+
+    ResourceDedupCache.PendingUpdates dedupUpdates = null;
+    if (dedupCache != null) {
+      dedupUpdates = dedupCache.removeUnchanged(bundle);
+      if (bundle.getEntry().isEmpty()) {
+        LOG.debug("All entries of the bundle are unchanged since they were last sent. Skipping.");
+        return;
+      }
+    }
+
+    if (spool != null) {
+      // the drainer may still drop the bundle, so it's only recorded as sent once it was sent
+      var pendingUpdates = dedupUpdates;
+      spoolBundle(
+          bundle,
+          pendingUpdates != null
+              ? rejectedEntries -> dedupCache.commit(pendingUpdates.excluding(rejectedEntries))
+              : null);
+      return;
+    }
 
-      sendBundleSizeDistribution.record(bundleSize);
+    var rejectedEntries = transmitBundle(bundle);
+    if (dedupUpdates != null) {
+      dedupCache.commit(dedupUpdates.excluding(rejectedEntries));
+    }
+  }
 
-      var sendStartTime = System.nanoTime();
+  /**
+   * Durably appends the bundle to the local spool instead of sending it. Once this returns the
+   * bundle is sent by the spool drainer, so the consumer can acknowledge it even if the server is
+   * currently unavailable.
+   *
+   * @param onSent run by the drainer with the rejected entries once the bundle has been sent, may
+   *     be {@code null}
+   */
+  void spoolBundle(Bundle bundle, @Nullable Consumer<List<BundleEntryComponent>> onSent) {
+    var payload =
+        client
+            .getFhirContext()
+            .newJsonParser()
+            .encodeResourceToString(bundle)
+            .getBytes(StandardCharsets.UTF_8);
+
+    LOG.debug("Appending bundle to spool {}", kv("payloadSizeBytes", payload.length));
+    appendToSpool(payload, onSent);
+  }
 
-      sendingDurationTimer.record(
-          () ->
-              retryTemplate.execute(context -> client.transaction().withBundle(bundle).execute()));
+  private void sendRawBundle(byte[] payload, int numEntries) {
+    if (spool != null) {
+      LOG.debug("Appending raw bundle to spool {}", kv("payloadSizeBytes", payload.length));
+      appendToSpool(payload, null);
+    } else {
+      LOG.debug("Sending raw bundle {}", kv("payloadSizeBytes", payload.length));
+      transmitRawBundle(payload, numEntries);
+    }
+  }
+
+  private void appendToSpool(
+      byte[] payload, @Nullable Consumer<List<BundleEntryComponent>> onSent) {
+    try {
+      spool.append(payload, onSent);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Sends the bundle to the server as a transaction, retrying it on retryable errors. If bisecting
+   * is enabled and the server rejects the content of the transaction, the bundle is split in
+   * halves which are sent separately, recursively, until the entries causing the rejection are
+   * isolated. These are sent to the dead letter topic while all others are sent to the server. Once
+   * the maximum depth is reached, all entries of a rejected part are sent to the dead letter topic.
+   *
+   * @return the entries that were rejected by the server and sent to the dead letter topic
+   */
+  List<BundleEntryComponent> transmitBundle(Bundle bundle) {
+    if (deadLetterPublisher == null) {
+      sendTransaction(bundle);
+      return List.of();
+    }
+
+    var rejectedEntries = new ArrayList<BundleEntryComponent>();
+    var rounds = sendTransactionBisecting(bundle, 0, rejectedEntries);
+    if (rounds > 0) {
+      bisectionRoundsDistribution.record(rounds);
+      LOG.warn(
+          "Isolated entries rejected by the server {} {}",
+          kv("numRejectedEntries", rejectedEntries.size()),
+          kv("bisectionRounds", rounds));
+    }
+    return rejectedEntries;
+  }
+
+  /**
+   * Sends the bundle, splitting it in halves if the server rejects its content.
+   *
+   * @return the number of splits needed to isolate the rejected entries, {@code 0} if the bundle
+   *     was accepted as a whole
+   */
+  private int sendTransactionBisecting(
+      Bundle bundle, int depth, List<BundleEntryComponent> rejectedEntries) {
+    try {
+      sendTransaction(bundle);
+      return depth;
+    } catch (RuntimeException e) {
+      var rejection = FhirServerErrors.rejectedContent(e);
+      if (rejection.isEmpty()) {
+        throw e;
+      }
+
+      var entries = bundle.getEntry();
+      if (entries.size() == 1 || depth >= maxBisectionDepth) {
+        for (var entry : entries) {
+          deadLetterPublisher.publish(entry, bundle.getType(), rejection.get());
+          rejectedEntries.add(entry);
+        }
+        return depth;
+      }
+
+      LOG.debug(
+          "Server rejected transaction, splitting it {} {}",
+          kv("bundleSize", entries.size()),
+          kv("depth", depth));
+
+      var half = entries.size() / 2;
+      var firstHalf = new Bundle().setType(bundle.getType()).setEntry(entries.subList(0, half));
+      var secondHalf =
+          new Bundle().setType(bundle.getType()).setEntry(entries.subList(half, entries.size()));
+
+      return Math.max(
+          sendTransactionBisecting(firstHalf, depth + 1, rejectedEntries),
+          sendTransactionBisecting(secondHalf, depth + 1, rejectedEntries));
+    }
+  }
+
+  private void sendTransaction(Bundle bundle) {
+    var bundleSize = bundle.getEntry().size();
+    LOG.debug("Sending Bundle with {} resources to server", kv("bundleSize", bundleSize));
+
+    sendBundleSizeDistribution.record(bundleSize);
+
+    var sendStartTime = System.nanoTime();
+
+    sendingDurationTimer.record(
+        () ->
+            retryTemplate.execute(
+                context ->
+                    executeTransaction(
+                        bundleSize, () -> client.transaction().withBundle(bundle).execute())));
+
+    processingMetrics.recordSent(bundle);
+
+    var duration = System.nanoTime() - sendStartTime;
+    var timePerBundleEntry = duration / bundleSize;
+    sendingDurationNormalizedTimer.record(timePerBundleEntry, TimeUnit.NANOSECONDS);
+  }
 
-      var duration = System.nanoTime() - sendStartTime;
-      var timePerBundleEntry = duration / bundleSize;
-      sendingDurationNormalizedTimer.record(timePerBundleEntry, TimeUnit.NANOSECONDS);
+  /**
+   * Sends a JSON-encoded transaction bundle with the given number of entries, or {@code 0} if it
+   * is unknown. The number of entries is used to normalize the latency observed by the concurrency
+   * limiter and the partition sizer.
+   */
+  private void transmitRawBundle(byte[] payload, int numEntries) {
+    rawBundleSizeDistribution.record(payload.length);
+
+    // the client only accepts the raw bundle as a string, it is not parsed though
+    var rawBundle = new String(payload, StandardCharsets.UTF_8);
+    sendingDurationTimer.record(
+        () ->
+            retryTemplate.execute(
+                context ->
+                    executeTransaction(
+                        numEntries, () -> client.transaction().withBundle(rawBundle).execute())));
+  }
+
+  /**
+   * Sends a spooled bundle the same way as bundles that aren't spooled: it is parsed, even if it
+   * was received as a raw bundle, so that entries rejected by the server can be isolated and sent
+   * to the dead letter topic and the sent resources are recorded in the metrics. The filter and
+   * the other modifications have already been applied before spooling.
+   *
+   * <p>Waits while the circuit is open. Unlike the consumer threads, the drainer runs on its own
+   * thread and can simply block until the server is expected to be back.
+   *
+   * @return the entries that were rejected by the server and sent to the dead letter topic
+   */
+  private List<BundleEntryComponent> transmitSpooledBundle(byte[] payload) {
+    var bundle = parseRawBundle(payload);
+    while (true) {
+      try {
+        return transmitBundle(bundle);
+      } catch (CircuitBreaker.CircuitOpenException e) {
+        try {
+          circuitBreaker.awaitPermission();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new BackOffInterruptedException(
+              "Interrupted while waiting for the circuit to close", ie);
+        }
+        // only wait for the permission here, the next attempt takes it again
+        circuitBreaker.onIgnore();
+      }
+    }
+  }
+
+  /**
+   * Sends a transaction once, guarded by the circuit breaker, the rate limiter and the concurrency
+   * limiter if they are enabled. While the circuit is open this throws a {@link
+   * CircuitBreaker.CircuitOpenException} instead of sending. It is not retried, so the retry
+   * policy's attempts are not used up while the server is known to be down, and the caller decides
+   * how to wait: consumer threads pause consumption, background senders block.
+   *
+   * <p>Only the duration of the request itself is reported to the concurrency limiter and the
+   * partition sizer. Time spent waiting for the circuit, the rate limit, a concurrency permit or a
+   * retry backoff says nothing about how fast the server processes partitions of a given size.
+   */
+  private <T> T executeTransaction(int numEntries, Supplier<T> transaction) {
+    if (circuitBreaker != null) {
+      circuitBreaker.acquirePermission();
+    }
+
+    try {
+      if (rateLimiter != null) {
+        rateLimiter.acquire(numEntries);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      if (circuitBreaker != null) {
+        circuitBreaker.onIgnore();
+      }
+      throw new IllegalStateException("Interrupted while waiting for the rate limit", e);
+    }
+
+    GradientConcurrencyLimiter.Permit permit = null;
+    try {
+      if (concurrencyLimiter != null) {
+        permit = concurrencyLimiter.acquire();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      if (circuitBreaker != null) {
+        circuitBreaker.onIgnore();
+      }
+      throw new IllegalStateException("Interrupted while waiting for the concurrency limit", e);
+    }
+
+    var startTime = System.nanoTime();
+    try {
+      var response = transaction.get();
+      var duration = System.nanoTime() - startTime;
+      if (permit != null) {
+        permit.onSuccess(duration / Math.max(1, numEntries));
+      }
+      if (partitionSizer != null && numEntries > 0) {
+        partitionSizer.onSuccess(numEntries, duration);
+      }
+      if (circuitBreaker != null) {
+        circuitBreaker.onSuccess();
+      }
+      return response;
+    } catch (RuntimeException e) {
+      if (Thread.currentThread().isInterrupted()) {
+        // the request was aborted by cancelling its task, so it says nothing about the server
+        if (permit != null) {
+          permit.onIgnore();
+        }
+        if (circuitBreaker != null) {
+          circuitBreaker.onIgnore();
+        }
+        throw e;
+      }
+
+      var overloaded = FhirServerErrors.indicatesOverload(e);
+      if (permit != null) {
+        if (overloaded) {
+          permit.onDropped();
+        } else {
+          permit.onIgnore();
+        }
+      }
+      if (circuitBreaker != null) {
+        if (overloaded) {
+          circuitBreaker.onFailure();
+        } else {
+          // the server is up, it just didn't like the request
+          circuitBreaker.onSuccess();
+        }
+      }
+      throw e;
     }
   }
 }
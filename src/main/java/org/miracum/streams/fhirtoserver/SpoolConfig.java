@@ -0,0 +1,15 @@
+package org.miracum.streams.fhirtoserver;
+
+import jakarta.validation.constraints.NotNull;
+import java.nio.file.Path;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+import org.springframework.validation.annotation.Validated;
+
+@ConfigurationProperties(prefix = "fhir.spool")
+@Validated
+public record SpoolConfig(
+    boolean enabled,
+    @NotNull Path directory,
+    @NotNull DataSize segmentSize,
+    @NotNull DataSize maxSize) {}
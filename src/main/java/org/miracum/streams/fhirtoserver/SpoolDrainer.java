@@ -0,0 +1,109 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Function;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.retry.backoff.BackOffInterruptedException;
+
+/**
+ * Replays bundles from a {@link BundleSpool} on a background thread, oldest first. A bundle is only
+ * committed after it has been sent, so bundles in flight during a shutdown or crash are sent again
+ * after the restart. The record's {@code onSent} callback only runs if it was actually sent and
+ * receives the entries the server rejected. Bundles failing with a non-retryable error are moved
+ * to the spool's quarantine directory.
+ */
+public class SpoolDrainer implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(SpoolDrainer.class);
+
+  private static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+
+  private static final Counter spoolRecordQuarantinedCounter =
+      Metrics.globalRegistry.counter(
+          "fhirtoserver.processing.errors.total", "kind", "spool-record-quarantined");
+
+  private final BundleSpool spool;
+  private final Function<byte[], List<BundleEntryComponent>> sender;
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  /**
+   * @param spool the spool to drain
+   * @param sender sends a single JSON-encoded bundle, retrying it as long as the error is
+   *     retryable, and returns the entries the server rejected
+   */
+  public SpoolDrainer(BundleSpool spool, Function<byte[], List<BundleEntryComponent>> sender) {
+    this.spool = spool;
+    this.sender = sender;
+    this.thread = Thread.ofVirtual().name("spool-drainer").unstarted(this::run);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    running = false;
+    thread.interrupt();
+    thread.join();
+  }
+
+  private void run() {
+    LOG.info("Started draining spool with {}", kv("pendingRecords", spool.pendingRecords()));
+
+    while (running) {
+      try {
+        var record = spool.peek(POLL_TIMEOUT);
+        if (record.isEmpty()) {
+          continue;
+        }
+
+        try {
+          var rejectedEntries = sender.apply(record.get().payload());
+          if (record.get().onSent() != null) {
+            record.get().onSent().accept(rejectedEntries);
+          }
+        } catch (BackOffInterruptedException e) {
+          // shutting down while waiting for the next attempt. The bundle stays in the spool.
+          break;
+        } catch (Exception e) {
+          if (!running) {
+            break;
+          }
+          // the offsets of the bundle have already been committed to Kafka so there is no way to
+          // send it to the dead letter queue anymore. Keep it around for manual inspection instead.
+          var file = spool.quarantine(record.get());
+          LOG.error(
+              "Failed to send spooled bundle with a non-retryable error. Quarantined it. {} {}",
+              kv("appendedAtMillis", record.get().appendedAtMillis()),
+              kv("quarantineFile", file),
+              e);
+          spoolRecordQuarantinedCounter.increment();
+          continue;
+        }
+
+        spool.commit(record.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (Exception e) {
+        LOG.error("Failed to drain spool. Retrying.", e);
+        try {
+          Thread.sleep(POLL_TIMEOUT);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+
+    LOG.info("Stopped draining spool with {}", kv("pendingRecords", spool.pendingRecords()));
+  }
+}
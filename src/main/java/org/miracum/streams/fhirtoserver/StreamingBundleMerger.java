@@ -0,0 +1,270 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.google.common.collect.Lists;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Merges JSON-encoded bundles like {@link FhirBundleMerger} but without parsing them into HAPI
+ * resources. Each bundle is tokenized with a streaming parser that only reads the fields needed to
+ * compute the entry key; the winning entries are copied into the merged bundle as the original
+ * byte ranges.
+ *
+ * <p>Only supports the entry uniqueness expressions that can be evaluated on the raw JSON, see
+ * {@link #supports(String)}.
+ */
+@Service
+public class StreamingBundleMerger {
+  private static final Logger LOG = LoggerFactory.getLogger(StreamingBundleMerger.class);
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private static final String REQUEST_URL = "request.url.toString()";
+  private static final String FULL_URL = "fullUrl.toString()";
+
+  // expressions using `resource.id` are deliberately not supported: HAPI derives the id of a
+  // parsed resource from the entry's fullUrl, which differs from the `id` element in the JSON.
+  private static final Set<String> SUPPORTED_EXPRESSIONS = Set.of(REQUEST_URL, FULL_URL);
+
+  /** A single bundle entry, referencing its JSON object within the source bundle. */
+  record EntrySlice(byte[] source, int offset, int length) {}
+
+  /**
+   * The entries of the merged bundles, with DELETE requests kept separately.
+   *
+   * @param bundleType the type of the first input bundle, or {@code null} if it had none
+   * @param entries the most recent non-DELETE entry per key
+   * @param deleteEntries the most recent DELETE entry per key
+   */
+  public record RawMergeResult(
+      String bundleType, List<EntrySlice> entries, List<EntrySlice> deleteEntries) {
+
+    /** Encodes the merged non-DELETE entries as a single bundle. */
+    public byte[] bundle() {
+      return encodeBundle(bundleType, entries);
+    }
+
+    /** Encodes the merged DELETE entries as a single bundle. */
+    public byte[] deleteBundle() {
+      return encodeBundle(bundleType, deleteEntries);
+    }
+
+    /** Splits the merged non-DELETE entries into partitions of at most the given size. */
+    public List<RawMergeResult> partition(int maxPartitionSize) {
+      return Lists.partition(entries, maxPartitionSize).stream()
+          .map(partition -> new RawMergeResult(bundleType, partition, List.of()))
+          .toList();
+    }
+  }
+
+  /** Whether the given entry uniqueness expression can be evaluated on raw bundles. */
+  public static boolean supports(String fhirPathExpression) {
+    return SUPPORTED_EXPRESSIONS.contains(normalize(fhirPathExpression));
+  }
+
+  public RawMergeResult merge(List<byte[]> bundles) {
+    return merge(bundles, REQUEST_URL);
+  }
+
+  /**
+   * Merges the JSON-encoded bundles into one, keeping only the most recent entry per key.
+   *
+   * @param bundles the bundles, ordered from oldest to most recent
+   * @param fhirPathExpression the entry uniqueness expression, see {@link #supports(String)}
+   * @return the merged entries
+   * @throws IllegalArgumentException if there are no bundles, the expression is not supported or
+   *     one of the payloads is not a JSON-encoded bundle
+   */
+  public RawMergeResult merge(List<byte[]> bundles, String fhirPathExpression) {
+    if (bundles.isEmpty()) {
+      throw new IllegalArgumentException("bundles parameter cannot be empty");
+    }
+
+    var expression = normalize(fhirPathExpression);
+    if (!SUPPORTED_EXPRESSIONS.contains(expression)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Expression '%s' can not be evaluated on raw bundles. Supported are %s",
+              fhirPathExpression, SUPPORTED_EXPRESSIONS));
+    }
+
+    var uniqueEntries = new LinkedHashMap<String, EntrySlice>();
+    var uniqueDeleteEntries = new LinkedHashMap<String, EntrySlice>();
+    String bundleType = null;
+
+    for (int i = 0; i < bundles.size(); i++) {
+      var parsed = parse(bundles.get(i));
+      if (i == 0) {
+        bundleType = parsed.type();
+      }
+
+      for (var entry : parsed.entries()) {
+        var key = entry.key(expression);
+        if (key == null) {
+          LOG.warn(
+              "Expression '{}' didn't evaluate to any result for the entry component in bundle {}. "
+                  + "Not included in merged bundle.",
+              kv("fhirPathExpression", fhirPathExpression),
+              kv("bundleId", parsed.id()));
+        } else if ("DELETE".equals(entry.method())) {
+          uniqueDeleteEntries.put(key, entry.slice());
+        } else {
+          uniqueEntries.put(key, entry.slice());
+        }
+      }
+    }
+
+    LOG.debug(
+        "{} raw input bundles merged to one bundle of {} entries and one DELETE bundle consisting of {} entries",
+        kv("numInputBundles", bundles.size()),
+        kv("numMergedEntries", uniqueEntries.size()),
+        kv("numMergedDeleteEntries", uniqueDeleteEntries.size()));
+
+    return new RawMergeResult(
+        bundleType,
+        List.copyOf(uniqueEntries.values()),
+        List.copyOf(uniqueDeleteEntries.values()));
+  }
+
+  private record ParsedBundle(String id, String type, List<ParsedEntry> entries) {}
+
+  private record ParsedEntry(EntrySlice slice, String fullUrl, String method, String url) {
+
+    String key(String expression) {
+      return REQUEST_URL.equals(expression) ? url : fullUrl;
+    }
+  }
+
+  private static ParsedBundle parse(byte[] payload) {
+    try (var parser = JSON_FACTORY.createParser(payload)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IllegalArgumentException("Payload is not a JSON object");
+      }
+
+      String resourceType = null;
+      String id = null;
+      String type = null;
+      var entries = new ArrayList<ParsedEntry>();
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        var fieldName = parser.currentName();
+        var valueToken = parser.nextToken();
+        switch (fieldName) {
+          case "resourceType" -> resourceType = readString(parser);
+          case "id" -> id = readString(parser);
+          case "type" -> type = readString(parser);
+          case "entry" -> {
+            if (valueToken != JsonToken.START_ARRAY) {
+              parser.skipChildren();
+              break;
+            }
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+              if (parser.currentToken() == JsonToken.START_OBJECT) {
+                entries.add(readEntry(parser, payload));
+              } else {
+                parser.skipChildren();
+              }
+            }
+          }
+          default -> parser.skipChildren();
+        }
+      }
+
+      if (!"Bundle".equals(resourceType)) {
+        throw new IllegalArgumentException("Payload is not a Bundle");
+      }
+
+      return new ParsedBundle(id, type, entries);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Failed to parse raw bundle", e);
+    }
+  }
+
+  /** Reads the entry object the parser is positioned at, only retaining the key fields. */
+  private static ParsedEntry readEntry(JsonParser parser, byte[] payload) throws IOException {
+    var start = (int) parser.currentTokenLocation().getByteOffset();
+
+    String fullUrl = null;
+    String method = null;
+    String url = null;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      var fieldName = parser.currentName();
+      var valueToken = parser.nextToken();
+      if ("fullUrl".equals(fieldName)) {
+        fullUrl = readString(parser);
+      } else if ("request".equals(fieldName) && valueToken == JsonToken.START_OBJECT) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          var nestedFieldName = parser.currentName();
+          parser.nextToken();
+          if ("method".equals(nestedFieldName)) {
+            method = readString(parser);
+          } else if ("url".equals(nestedFieldName)) {
+            url = readString(parser);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+
+    // the parser is now positioned at the entry's closing brace, which is a single byte
+    var end = (int) parser.currentTokenLocation().getByteOffset() + 1;
+
+    return new ParsedEntry(new EntrySlice(payload, start, end - start), fullUrl, method, url);
+  }
+
+  /** Returns the current string value, or {@code null} if it is empty or not a string. */
+  private static String readString(JsonParser parser) throws IOException {
+    if (parser.currentToken() != JsonToken.VALUE_STRING) {
+      parser.skipChildren();
+      return null;
+    }
+    var value = parser.getText();
+    return value.isEmpty() ? null : value;
+  }
+
+  private static byte[] encodeBundle(String bundleType, List<EntrySlice> entries) {
+    var size = entries.stream().mapToInt(EntrySlice::length).sum() + entries.size() + 64;
+    var out = new ByteArrayOutputStream(size);
+    out.writeBytes("{\"resourceType\":\"Bundle\"".getBytes(StandardCharsets.UTF_8));
+    if (bundleType != null) {
+      out.writeBytes(",\"type\":\"".getBytes(StandardCharsets.UTF_8));
+      out.writeBytes(JsonStringEncoder.getInstance().quoteAsUTF8(bundleType));
+      out.write('"');
+    }
+    if (!entries.isEmpty()) {
+      out.writeBytes(",\"entry\":[".getBytes(StandardCharsets.UTF_8));
+      for (int i = 0; i < entries.size(); i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        var entry = entries.get(i);
+        out.write(entry.source(), entry.offset(), entry.length());
+      }
+      out.write(']');
+    }
+    out.write('}');
+    return out.toByteArray();
+  }
+
+  private static String normalize(String expression) {
+    return expression.replaceAll("\\s", "");
+  }
+}
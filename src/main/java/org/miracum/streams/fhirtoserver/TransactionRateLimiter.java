@@ -0,0 +1,108 @@
+package org.miracum.streams.fhirtoserver;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+
+/**
+ * Caps the number of transactions and of bundle entries sent to the server per second, using a
+ * token bucket for each. A bucket holds at most one second worth of tokens, so short bursts are
+ * let through after an idle period. A transaction taking more tokens than are available waits
+ * until the bucket would have refilled, which also applies to transactions with more entries than
+ * fit into the bucket, so the average rate stays at the limit.
+ */
+public class TransactionRateLimiter {
+  private static final Logger LOG = LoggerFactory.getLogger(TransactionRateLimiter.class);
+
+  static final String THROTTLED_TIMER_NAME = "fhirtoserver.fhir.client.throttled.duration";
+
+  private static final Timer rateLimitedTimer =
+      Metrics.globalRegistry.timer(THROTTLED_TIMER_NAME, "reason", "rate-limit");
+
+  private final TokenBucket transactions;
+  private final TokenBucket entries;
+
+  /**
+   * @param transactionsPerSecond the maximum number of transactions per second, or {@code null} if
+   *     unlimited
+   * @param entriesPerSecond the maximum number of bundle entries per second, or {@code null} if
+   *     unlimited
+   */
+  public TransactionRateLimiter(
+      @Nullable Double transactionsPerSecond, @Nullable Double entriesPerSecond) {
+    this(transactionsPerSecond, entriesPerSecond, System::nanoTime);
+  }
+
+  TransactionRateLimiter(
+      @Nullable Double transactionsPerSecond,
+      @Nullable Double entriesPerSecond,
+      LongSupplier nanoClock) {
+    this.transactions =
+        transactionsPerSecond != null ? new TokenBucket(transactionsPerSecond, nanoClock) : null;
+    this.entries = entriesPerSecond != null ? new TokenBucket(entriesPerSecond, nanoClock) : null;
+  }
+
+  /**
+   * Blocks until a transaction with the given number of entries may be sent.
+   *
+   * @param numEntries the number of entries of the transaction, or {@code 0} if it is unknown, in
+   *     which case only the transaction budget applies
+   */
+  public void acquire(int numEntries) throws InterruptedException {
+    var waitNanos = reserve(numEntries);
+    if (waitNanos <= 0) {
+      return;
+    }
+
+    LOG.debug(
+        "Rate limit reached, waiting before sending transaction {}",
+        kv("waitMillis", TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+    TimeUnit.NANOSECONDS.sleep(waitNanos);
+    rateLimitedTimer.record(waitNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Takes the tokens for a transaction and returns how long to wait until it may be sent. */
+  long reserve(int numEntries) {
+    var waitNanos = transactions != null ? transactions.reserve(1) : 0;
+    if (entries != null && numEntries > 0) {
+      waitNanos = Math.max(waitNanos, entries.reserve(numEntries));
+    }
+    return waitNanos;
+  }
+
+  static final class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private final LongSupplier nanoClock;
+
+    private double tokens;
+    private long lastRefillNanos;
+
+    TokenBucket(double tokensPerSecond, LongSupplier nanoClock) {
+      this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+      this.capacity = Math.max(1, tokensPerSecond);
+      this.nanoClock = nanoClock;
+      this.tokens = capacity;
+      this.lastRefillNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Takes the tokens, possibly putting the bucket into debt, and returns the number of
+     * nanoseconds until the bucket is no longer in debt.
+     */
+    synchronized long reserve(double amount) {
+      var now = nanoClock.getAsLong();
+      tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+      lastRefillNanos = now;
+
+      tokens -= amount;
+      return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+  }
+}
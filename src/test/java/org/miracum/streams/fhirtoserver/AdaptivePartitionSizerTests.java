@@ -0,0 +1,91 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class AdaptivePartitionSizerTests {
+  private static final AdaptivePartitionSizeConfig config =
+      new AdaptivePartitionSizeConfig(true, 10, 1000, 10, 0.5, Duration.ofSeconds(10));
+
+  private static long millis(long value) {
+    return TimeUnit.MILLISECONDS.toNanos(value);
+  }
+
+  @Test
+  void onSuccess_withFastFullPartitions_shouldGrowAdditivelyUpToMax() {
+    var sut = new AdaptivePartitionSizer(config, 100);
+
+    sut.onSuccess(100, millis(100));
+    assertThat(sut.currentSize()).isEqualTo(110);
+
+    for (int i = 0; i < 1000; i++) {
+      sut.onSuccess(sut.currentSize(), millis(100));
+    }
+    assertThat(sut.currentSize()).isEqualTo(1000);
+  }
+
+  @Test
+  void onSuccess_withPartiallyFilledPartition_shouldNotGrow() {
+    var sut = new AdaptivePartitionSizer(config, 100);
+
+    sut.onSuccess(20, millis(10));
+
+    assertThat(sut.currentSize()).isEqualTo(100);
+  }
+
+  @Test
+  void onSuccess_withSlowTransaction_shouldShrinkMultiplicatively() {
+    var sut = new AdaptivePartitionSizer(config, 400);
+
+    // 50ms per entry * 400 entries = 20s, which exceeds the 10s target
+    sut.onSuccess(400, millis(20_000));
+
+    assertThat(sut.currentSize()).isEqualTo(200);
+  }
+
+  @Test
+  void onFailure_withOverloadSignals_shouldShrinkDownToMin() {
+    var sut = new AdaptivePartitionSizer(config, 80);
+
+    sut.onFailure(new FhirClientConnectionException(new SocketTimeoutException()));
+    assertThat(sut.currentSize()).isEqualTo(40);
+    sut.onFailure(new InternalErrorException("overloaded"));
+    assertThat(sut.currentSize()).isEqualTo(20);
+    sut.onFailure(new PayloadTooLargeException("too large"));
+    assertThat(sut.currentSize()).isEqualTo(10);
+    sut.onFailure(new InternalErrorException("overloaded"));
+    assertThat(sut.currentSize()).isEqualTo(10);
+  }
+
+  @Test
+  void onFailure_withClientError_shouldNotShrink() {
+    var sut = new AdaptivePartitionSizer(config, 80);
+
+    sut.onFailure(new InvalidRequestException("invalid resource"));
+
+    assertThat(sut.currentSize()).isEqualTo(80);
+  }
+
+  @Test
+  void constructor_withInitialSizeOutOfBounds_shouldClamp() {
+    assertThat(new AdaptivePartitionSizer(config, 1).currentSize()).isEqualTo(10);
+    assertThat(new AdaptivePartitionSizer(config, 5000).currentSize()).isEqualTo(1000);
+  }
+
+  @Test
+  void constructor_withMinAboveMax_shouldThrow() {
+    var invalid = new AdaptivePartitionSizeConfig(true, 100, 10, 10, 0.5, Duration.ofSeconds(10));
+
+    assertThatThrownBy(() -> new AdaptivePartitionSizer(invalid, 50))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
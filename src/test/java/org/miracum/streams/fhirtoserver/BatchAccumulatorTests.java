@@ -0,0 +1,150 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.util.unit.DataSize;
+
+class BatchAccumulatorTests {
+  private static final FhirContext fhirContext = FhirContext.forR4();
+  private static final TopicPartition PARTITION = new TopicPartition("fhir-msg", 0);
+
+  private final List<List<Bundle>> flushed = new ArrayList<>();
+  private final List<Long> acknowledgedOffsets = new ArrayList<>();
+  private final MockConsumer<String, String> consumer = new MockConsumer<>("earliest");
+
+  BatchAccumulatorTests() {
+    consumer.assign(List.of(PARTITION));
+  }
+
+  private static Bundle bundleWithEntries(int count) {
+    var bundle = new Bundle();
+    for (int i = 0; i < count; i++) {
+      bundle.addEntry().setResource(new Patient().setId("p-" + i));
+    }
+    return bundle;
+  }
+
+  private MessageHeaders headers(long... offsets) {
+    var headers = new HashMap<String, Object>();
+    var offsetList = new ArrayList<Long>();
+    var partitions = new ArrayList<Integer>();
+    var topics = new ArrayList<String>();
+    for (var offset : offsets) {
+      offsetList.add(offset);
+      partitions.add(PARTITION.partition());
+      topics.add(PARTITION.topic());
+    }
+    headers.put(KafkaHeaders.OFFSET, offsetList);
+    headers.put(KafkaHeaders.RECEIVED_PARTITION, partitions);
+    headers.put(KafkaHeaders.RECEIVED_TOPIC, topics);
+    headers.put(KafkaHeaders.CONSUMER, consumer);
+    headers.put(
+        KafkaHeaders.ACKNOWLEDGMENT,
+        (Acknowledgment) () -> acknowledgedOffsets.add(offsets[offsets.length - 1]));
+    return new MessageHeaders(headers);
+  }
+
+  private BatchAccumulator newAccumulator(int maxEntries, Duration maxWait) {
+    return new BatchAccumulator(
+        new BatchLingerConfig(true, maxEntries, Optional.empty(), maxWait),
+        fhirContext,
+        flushed::add);
+  }
+
+  @Test
+  void add_untilMaxEntriesReached_shouldFlushAllBundlesAtOnceAndAcknowledgeAfterwards() {
+    var sut = newAccumulator(10, Duration.ofHours(1));
+
+    sut.add(List.of(bundleWithEntries(4)), headers(0, 1));
+    sut.add(List.of(bundleWithEntries(4)), headers(2, 3));
+
+    assertThat(flushed).isEmpty();
+    assertThat(acknowledgedOffsets).isEmpty();
+
+    sut.add(List.of(bundleWithEntries(2), bundleWithEntries(1)), headers(4, 5));
+
+    assertThat(flushed).hasSize(1);
+    assertThat(flushed.getFirst()).hasSize(4);
+    assertThat(acknowledgedOffsets).containsExactly(1L, 3L, 5L);
+  }
+
+  @Test
+  void add_withMaxBytesReached_shouldFlush() {
+    var sut =
+        new BatchAccumulator(
+            new BatchLingerConfig(
+                true,
+                Integer.MAX_VALUE,
+                Optional.of(DataSize.ofBytes(1)),
+                Duration.ofHours(1)),
+            fhirContext,
+            flushed::add);
+
+    sut.add(List.of(bundleWithEntries(1)), headers(0));
+
+    assertThat(flushed).hasSize(1);
+    assertThat(acknowledgedOffsets).containsExactly(0L);
+  }
+
+  @Test
+  void flushIfDue_afterMaxWait_shouldFlush() throws InterruptedException {
+    var sut = newAccumulator(1000, Duration.ofMillis(50));
+
+    sut.add(List.of(bundleWithEntries(1)), headers(0));
+    sut.flushIfDue(consumer);
+    assertThat(flushed).isEmpty();
+
+    Thread.sleep(60);
+    sut.flushIfDue(consumer);
+
+    assertThat(flushed).hasSize(1);
+    assertThat(acknowledgedOffsets).containsExactly(0L);
+  }
+
+  @Test
+  void add_withFailingFlush_shouldRewindAndResendBatchesOneByOne() {
+    var failNext = new boolean[] {true};
+    var sut =
+        new BatchAccumulator(
+            new BatchLingerConfig(true, 4, Optional.empty(), Duration.ofHours(1)),
+            fhirContext,
+            bundles -> {
+              if (failNext[0]) {
+                failNext[0] = false;
+                throw new IllegalStateException("rejected");
+              }
+              flushed.add(bundles);
+            });
+
+    sut.add(List.of(bundleWithEntries(2)), headers(10, 11));
+    sut.add(List.of(bundleWithEntries(2)), headers(12, 13));
+
+    assertThat(acknowledgedOffsets).isEmpty();
+    assertThat(consumer.position(PARTITION)).isEqualTo(10L);
+
+    // the re-delivered batches are sent right away
+    sut.add(List.of(bundleWithEntries(2)), headers(10, 11));
+    sut.add(List.of(bundleWithEntries(2)), headers(12, 13));
+
+    assertThat(flushed).hasSize(2);
+    assertThat(acknowledgedOffsets).containsExactly(11L, 13L);
+
+    // and lingering resumes afterwards
+    sut.add(List.of(bundleWithEntries(2)), headers(14, 15));
+    assertThat(flushed).hasSize(2);
+  }
+}
@@ -0,0 +1,169 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+
+class BatchPipelineTests {
+  private static final TopicPartition PARTITION = new TopicPartition("fhir-msg", 0);
+
+  private final List<Bundle> sent = new CopyOnWriteArrayList<>();
+  private final List<Long> acknowledgedOffsets = new CopyOnWriteArrayList<>();
+  private final MockConsumer<String, String> consumer = new MockConsumer<>("earliest");
+
+  private BatchPipeline sut;
+
+  BatchPipelineTests() {
+    consumer.assign(List.of(PARTITION));
+    consumer.seek(PARTITION, 100);
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (sut != null) {
+      sut.close();
+    }
+  }
+
+  private static Bundle bundleWithEntries(int count) {
+    var bundle = new Bundle();
+    for (int i = 0; i < count; i++) {
+      bundle.addEntry().setResource(new Patient().setId("p-" + i));
+    }
+    return bundle;
+  }
+
+  private static Bundle merge(List<Bundle> bundles) {
+    var merged = new Bundle();
+    bundles.forEach(bundle -> merged.getEntry().addAll(bundle.getEntry()));
+    return merged;
+  }
+
+  private MessageHeaders headers(long... offsets) {
+    var headers = new HashMap<String, Object>();
+    var offsetList = new ArrayList<Long>();
+    var partitions = new ArrayList<Integer>();
+    var topics = new ArrayList<String>();
+    for (var offset : offsets) {
+      offsetList.add(offset);
+      partitions.add(PARTITION.partition());
+      topics.add(PARTITION.topic());
+    }
+    headers.put(KafkaHeaders.OFFSET, offsetList);
+    headers.put(KafkaHeaders.RECEIVED_PARTITION, partitions);
+    headers.put(KafkaHeaders.RECEIVED_TOPIC, topics);
+    headers.put(KafkaHeaders.CONSUMER, consumer);
+    headers.put(
+        KafkaHeaders.ACKNOWLEDGMENT,
+        (Acknowledgment) () -> acknowledgedOffsets.add(offsets[offsets.length - 1]));
+    return new MessageHeaders(headers);
+  }
+
+  private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        fail("condition not met within 5 seconds");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  void submit_shouldMergeAndSendEachBatchAndAcknowledgeInOrder() throws InterruptedException {
+    sut = new BatchPipeline(2, BatchPipelineTests::merge, sent::add);
+
+    sut.submit(List.of(bundleWithEntries(1), bundleWithEntries(2)), headers(0, 1));
+    sut.submit(List.of(bundleWithEntries(3)), headers(2));
+    sut.submit(List.of(bundleWithEntries(1)), headers(3));
+
+    awaitCondition(() -> acknowledgedOffsets.size() == 3);
+
+    assertThat(acknowledgedOffsets).containsExactly(1L, 2L, 3L);
+    assertThat(sent).extracting(bundle -> bundle.getEntry().size()).containsExactly(3, 3, 1);
+  }
+
+  @Test
+  void submit_whileBatchIsBeingSent_shouldMergeTheNextOne() throws InterruptedException {
+    var releaseSender = new CountDownLatch(1);
+    var merges = new AtomicInteger();
+    sut =
+        new BatchPipeline(
+            2,
+            bundles -> {
+              merges.incrementAndGet();
+              return merge(bundles);
+            },
+            bundle -> {
+              try {
+                releaseSender.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              sent.add(bundle);
+            });
+
+    sut.submit(List.of(bundleWithEntries(1)), headers(0));
+    sut.submit(List.of(bundleWithEntries(1)), headers(1));
+
+    awaitCondition(() -> merges.get() == 2);
+    assertThat(sent).isEmpty();
+    assertThat(acknowledgedOffsets).isEmpty();
+
+    releaseSender.countDown();
+    awaitCondition(() -> acknowledgedOffsets.size() == 2);
+    assertThat(acknowledgedOffsets).containsExactly(0L, 1L);
+  }
+
+  @Test
+  void submit_afterFailedBatch_shouldRewindAndResendBatchesOneByOne() throws InterruptedException {
+    var failNext = new boolean[] {true};
+    sut =
+        new BatchPipeline(
+            2,
+            BatchPipelineTests::merge,
+            bundle -> {
+              if (failNext[0]) {
+                failNext[0] = false;
+                throw new IllegalStateException("rejected");
+              }
+              sent.add(bundle);
+            });
+
+    sut.submit(List.of(bundleWithEntries(2)), headers(10, 11));
+
+    awaitCondition(
+        () -> {
+          sut.rewindIfFailed(consumer);
+          return consumer.position(PARTITION) == 10L;
+        });
+    assertThat(acknowledgedOffsets).isEmpty();
+
+    // the re-delivered batch is sent right away
+    sut.submit(List.of(bundleWithEntries(2)), headers(10, 11));
+    assertThat(sent).hasSize(1);
+    assertThat(acknowledgedOffsets).containsExactly(11L);
+
+    // and pipelining resumes afterwards
+    sut.submit(List.of(bundleWithEntries(2)), headers(12, 13));
+    awaitCondition(() -> acknowledgedOffsets.size() == 2);
+    assertThat(acknowledgedOffsets).containsExactly(11L, 13L);
+  }
+}
@@ -0,0 +1,126 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.slf4j.MDC;
+
+class BoundedParallelExecutorTests {
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 4, 16})
+  void invokeAll_withManyTasks_shouldRunAllTasksWithoutExceedingMaxConcurrency(
+      int maxConcurrency) throws Exception {
+    var inFlight = new AtomicInteger();
+    var maxObservedInFlight = new AtomicInteger();
+    var completed = new AtomicInteger();
+    var sut = new BoundedParallelExecutor(maxConcurrency, inFlight);
+
+    var tasks =
+        IntStream.range(0, 50)
+            .mapToObj(
+                i ->
+                    (Callable<Void>)
+                        () -> {
+                          maxObservedInFlight.accumulateAndGet(inFlight.get(), Math::max);
+                          Thread.sleep(5);
+                          completed.incrementAndGet();
+                          return null;
+                        })
+            .toList();
+
+    sut.invokeAll(tasks);
+
+    assertThat(completed.get()).isEqualTo(50);
+    assertThat(maxObservedInFlight.get()).isLessThanOrEqualTo(maxConcurrency);
+    assertThat(inFlight.get()).isZero();
+  }
+
+  @Test
+  void invokeAll_withFailingTask_shouldRethrowOriginalException() {
+    var sut = new BoundedParallelExecutor(4, new AtomicInteger());
+
+    var tasks =
+        IntStream.range(0, 10)
+            .mapToObj(
+                i ->
+                    (Callable<Void>)
+                        () -> {
+                          if (i == 3) {
+                            throw new IOException("partition " + i + " failed");
+                          }
+                          return null;
+                        })
+            .toList();
+
+    assertThatThrownBy(() -> sut.invokeAll(tasks))
+        .isInstanceOf(IOException.class)
+        .hasMessage("partition 3 failed");
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void invokeAll_withLaterTaskFailing_shouldNotWaitForEarlierTasksAndCancelThem() {
+    var sut = new BoundedParallelExecutor(4, new AtomicInteger());
+    var blockedTaskInterrupted = new AtomicBoolean();
+
+    List<Callable<Void>> tasks =
+        List.of(
+            () -> {
+              try {
+                // never completes on its own
+                new CountDownLatch(1).await();
+              } catch (InterruptedException e) {
+                blockedTaskInterrupted.set(true);
+              }
+              return null;
+            },
+            () -> {
+              throw new IOException("second partition failed");
+            });
+
+    assertThatThrownBy(() -> sut.invokeAll(tasks))
+        .isInstanceOf(IOException.class)
+        .hasMessage("second partition failed");
+    assertThat(blockedTaskInterrupted).isTrue();
+  }
+
+  @Test
+  void invokeAll_shouldRunTasksWithTheCallersMdc() throws Exception {
+    var sut = new BoundedParallelExecutor(4, new AtomicInteger());
+    var observedValues = new CopyOnWriteArrayList<String>();
+
+    var tasks =
+        IntStream.range(0, 8)
+            .mapToObj(
+                i ->
+                    (Callable<Void>)
+                        () -> {
+                          observedValues.add(MDC.get("bundleSize"));
+                          return null;
+                        })
+            .toList();
+
+    MDC.put("bundleSize", "42");
+    try {
+      sut.invokeAll(tasks);
+    } finally {
+      MDC.remove("bundleSize");
+    }
+
+    assertThat(observedValues).hasSize(8).containsOnly("42");
+  }
+}
@@ -0,0 +1,203 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+class BundleSpoolTests {
+  private static final int SEGMENT_SIZE = 1024;
+
+  @TempDir Path directory;
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static List<String> drain(BundleSpool spool) throws Exception {
+    var result = new ArrayList<String>();
+    while (true) {
+      var record = spool.peek(Duration.ZERO);
+      if (record.isEmpty()) {
+        return result;
+      }
+      result.add(new String(record.get().payload(), StandardCharsets.UTF_8));
+      spool.commit(record.get());
+    }
+  }
+
+  private static List<Path> segmentFiles(Path directory) throws IOException {
+    try (var files = Files.list(directory)) {
+      return files.filter(p -> p.getFileName().toString().startsWith("segment-")).toList();
+    }
+  }
+
+  @Test
+  void peek_afterAppend_shouldReturnRecordsInOrderAcrossSegments() throws Exception {
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 1024 * SEGMENT_SIZE)) {
+      var expected = new ArrayList<String>();
+      for (int i = 0; i < 100; i++) {
+        expected.add("record-" + i);
+        spool.append(bytes("record-" + i));
+      }
+
+      assertThat(spool.pendingRecords()).isEqualTo(100);
+      assertThat(drain(spool)).containsExactlyElementsOf(expected);
+      assertThat(spool.pendingRecords()).isZero();
+      // only the segment currently appended to is kept
+      assertThat(segmentFiles(directory)).hasSize(1);
+    }
+  }
+
+  @Test
+  void peek_withoutCommit_shouldReturnSameRecordAgain() throws Exception {
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 8 * SEGMENT_SIZE)) {
+      spool.append(bytes("first"));
+      spool.append(bytes("second"));
+
+      var first = spool.peek(Duration.ZERO).orElseThrow();
+      var again = spool.peek(Duration.ZERO).orElseThrow();
+
+      assertThat(again.payload()).isEqualTo(first.payload());
+    }
+  }
+
+  @Test
+  void append_withRecordLargerThanSegmentSize_shouldStoreItInItsOwnSegment() throws Exception {
+    var large = "x".repeat(3 * SEGMENT_SIZE);
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE)) {
+      spool.append(bytes("small"));
+      spool.append(bytes(large));
+      spool.append(bytes("small again"));
+
+      assertThat(drain(spool)).containsExactly("small", large, "small again");
+    }
+  }
+
+  @Test
+  void peek_afterAppendWithCallback_shouldReturnItUntilReopened() throws Exception {
+    Consumer<List<BundleEntryComponent>> onSent = rejectedEntries -> {};
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 8 * SEGMENT_SIZE)) {
+      spool.append(bytes("with-callback"), onSent);
+      spool.append(bytes("without-callback"));
+
+      var first = spool.peek(Duration.ZERO).orElseThrow();
+      assertThat(first.onSent()).isSameAs(onSent);
+      spool.commit(first);
+      assertThat(spool.peek(Duration.ZERO).orElseThrow().onSent()).isNull();
+
+      spool.append(bytes("recovered"), onSent);
+    }
+
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 8 * SEGMENT_SIZE)) {
+      spool.commit(spool.peek(Duration.ZERO).orElseThrow());
+
+      var recovered = spool.peek(Duration.ZERO).orElseThrow();
+      assertThat(new String(recovered.payload(), StandardCharsets.UTF_8)).isEqualTo("recovered");
+      assertThat(recovered.onSent()).isNull();
+    }
+  }
+
+  @Test
+  void reopen_afterPartialDrain_shouldOnlyReturnUncommittedRecords() throws Exception {
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 1024 * SEGMENT_SIZE)) {
+      for (int i = 0; i < 50; i++) {
+        spool.append(bytes("record-" + i));
+      }
+      for (int i = 0; i < 20; i++) {
+        spool.commit(spool.peek(Duration.ZERO).orElseThrow());
+      }
+    }
+
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 1024 * SEGMENT_SIZE)) {
+      assertThat(spool.pendingRecords()).isEqualTo(30);
+      spool.append(bytes("after-restart"));
+
+      var drained = drain(spool);
+      assertThat(drained).hasSize(31).startsWith("record-20").endsWith("after-restart");
+    }
+  }
+
+  @Test
+  void reopen_withTornRecordAtTheEnd_shouldDiscardIt() throws Exception {
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 8 * SEGMENT_SIZE)) {
+      spool.append(bytes("complete"));
+      spool.append(bytes("torn"));
+    }
+
+    // corrupt the payload of the second record as if the crash happened mid-write
+    var segment = segmentFiles(directory).getFirst();
+    var tornPayloadOffset = 2L * BundleSpool.HEADER_SIZE + "complete".length();
+    try (var channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes("XXXX")), tornPayloadOffset);
+    }
+
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 8 * SEGMENT_SIZE)) {
+      assertThat(spool.pendingRecords()).isEqualTo(1);
+      spool.append(bytes("next"));
+
+      assertThat(drain(spool)).containsExactly("complete", "next");
+    }
+  }
+
+  @Test
+  void quarantine_shouldWritePayloadToFileAndCommitRecord() throws Exception {
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 8 * SEGMENT_SIZE)) {
+      spool.append(bytes("rejected"));
+      spool.append(bytes("next"));
+
+      var file = spool.quarantine(spool.peek(Duration.ZERO).orElseThrow());
+
+      assertThat(file.getParent()).isEqualTo(directory.resolve("quarantine"));
+      assertThat(file).hasContent("rejected");
+      assertThat(drain(spool)).containsExactly("next");
+    }
+
+    // quarantined files are not recovered as segments
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 8 * SEGMENT_SIZE)) {
+      assertThat(spool.pendingRecords()).isZero();
+    }
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void append_whenFull_shouldBlockUntilRecordsAreCommitted() throws Exception {
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 2 * SEGMENT_SIZE)) {
+      var payload = "y".repeat(SEGMENT_SIZE - BundleSpool.HEADER_SIZE);
+      spool.append(bytes(payload));
+      spool.append(bytes(payload));
+
+      var appender = Thread.ofVirtual().start(() -> appendUnchecked(spool, bytes("blocked")));
+      appender.join(Duration.ofMillis(200));
+      assertThat(appender.isAlive()).isTrue();
+
+      spool.commit(spool.peek(Duration.ZERO).orElseThrow());
+      appender.join();
+
+      assertThat(drain(spool)).containsExactly(payload, "blocked");
+      assertThat(spool.sizeBytes()).isLessThanOrEqualTo(2 * SEGMENT_SIZE);
+    }
+  }
+
+  private static void appendUnchecked(BundleSpool spool, byte[] payload) {
+    try {
+      spool.append(payload);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+class CircuitBreakerTests {
+  private final CircuitBreaker sut = new CircuitBreaker(3, Duration.ofMillis(200));
+
+  private Thread awaitPermissionInBackground(AtomicBoolean permitted) {
+    return Thread.ofVirtual()
+        .start(
+            () -> {
+              try {
+                sut.awaitPermission();
+                permitted.set(true);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            });
+  }
+
+  @Test
+  void onFailure_belowThreshold_shouldStayClosed() {
+    sut.onFailure();
+    sut.onFailure();
+    sut.onSuccess();
+    sut.onFailure();
+    sut.onFailure();
+
+    assertThat(sut.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void awaitPermission_whenOpen_shouldBlockUntilOpenDurationPassed() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      sut.onFailure();
+    }
+    assertThat(sut.state()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    var start = System.nanoTime();
+    sut.awaitPermission();
+
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isGreaterThan(Duration.ofMillis(150));
+    assertThat(sut.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void halfOpen_shouldOnlyLetOneTrialThroughAndCloseOnSuccess() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      sut.onFailure();
+    }
+    sut.awaitPermission();
+
+    var permitted = new AtomicBoolean();
+    var second = awaitPermissionInBackground(permitted);
+    second.join(Duration.ofMillis(100));
+    assertThat(permitted).isFalse();
+
+    sut.onSuccess();
+    second.join();
+
+    assertThat(permitted).isTrue();
+    assertThat(sut.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void halfOpen_withFailedTrial_shouldOpenAgain() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      sut.onFailure();
+    }
+    sut.awaitPermission();
+
+    sut.onFailure();
+
+    assertThat(sut.state()).isEqualTo(CircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  void acquirePermission_whenOpen_shouldThrowWithRemainingOpenDuration() {
+    for (int i = 0; i < 3; i++) {
+      sut.onFailure();
+    }
+
+    assertThatThrownBy(sut::acquirePermission)
+        .isInstanceOfSatisfying(
+            CircuitBreaker.CircuitOpenException.class,
+            e ->
+                assertThat(e.retryDelay())
+                    .isPositive()
+                    .isLessThanOrEqualTo(Duration.ofMillis(200)));
+    assertThat(sut.retryDelay()).isPositive();
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void acquirePermission_afterOpenDuration_shouldOnlyLetOneTrialThrough()
+      throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      sut.onFailure();
+    }
+    Thread.sleep(250);
+    assertThat(sut.retryDelay()).isZero();
+
+    sut.acquirePermission();
+
+    assertThat(sut.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    assertThatThrownBy(sut::acquirePermission)
+        .isInstanceOf(CircuitBreaker.CircuitOpenException.class);
+
+    sut.onSuccess();
+
+    sut.acquirePermission();
+    assertThat(sut.retryDelay()).isZero();
+  }
+}
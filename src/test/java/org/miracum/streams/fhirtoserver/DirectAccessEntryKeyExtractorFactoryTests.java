@@ -0,0 +1,66 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.List;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class DirectAccessEntryKeyExtractorFactoryTests {
+  private final FhirContext fhirContext = FhirContext.forR4();
+  private final DirectAccessEntryKeyExtractorFactory sut =
+      new DirectAccessEntryKeyExtractorFactory();
+  private final EntryKeyExtractors fhirPathOnly =
+      new EntryKeyExtractors(List.of(), new FhirPathExpressionCache(new FhirPathR4(fhirContext)));
+
+  private static List<BundleEntryComponent> entries() {
+    var bundle = new Bundle();
+    bundle
+        .addEntry()
+        .setFullUrl("Patient/p-1")
+        .setResource(new Patient().setId("p-1"))
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl("Patient/p-1");
+    bundle.addEntry().getRequest().setMethod(HTTPVerb.DELETE).setUrl("Patient/p-2");
+    bundle.addEntry().setFullUrl("urn:uuid:3").setResource(new Patient());
+    // the parser sets the id of resources in urn:uuid entries to the fullUrl
+    bundle.addEntry().setFullUrl("urn:uuid:4").setResource(new Patient().setId("urn:uuid:4"));
+    return bundle.getEntry();
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "request.url.toString()",
+        "fullUrl.toString()",
+        "resource.id.toString()",
+        "resource.type().name+'/'+resource.id.toString()"
+      })
+  void compile_withSupportedExpression_shouldReturnSameKeysAsFhirPath(String expression) {
+    var compiled = sut.compile(expression);
+    var fhirPathExtractor = fhirPathOnly.forExpression(expression);
+
+    assertThat(compiled).isPresent();
+    for (var entry : entries()) {
+      assertThat(compiled.get().extractKey(entry)).isEqualTo(fhirPathExtractor.extractKey(entry));
+    }
+  }
+
+  @Test
+  void compile_withWhitespaceInExpression_shouldStillBeRecognised() {
+    assertThat(sut.compile(" request.url.toString( ) ")).isPresent();
+  }
+
+  @Test
+  void compile_withUnsupportedExpression_shouldReturnEmpty() {
+    assertThat(sut.compile("resource.meta.source.toString()")).isEmpty();
+  }
+}
@@ -21,7 +21,11 @@ class FhirBundleMergerTests {
   private final FhirBundleMerger sut;
 
   public FhirBundleMergerTests() {
-    sut = new FhirBundleMerger(new FhirPathR4(fhirContext));
+    var fhirPath = new FhirPathExpressionCache(new FhirPathR4(fhirContext));
+    sut =
+        new FhirBundleMerger(
+            new EntryKeyExtractors(
+                List.of(new DirectAccessEntryKeyExtractorFactory()), fhirPath));
   }
 
   @Test
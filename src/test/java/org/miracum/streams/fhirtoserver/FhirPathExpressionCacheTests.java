@@ -0,0 +1,35 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+class FhirPathExpressionCacheTests {
+  private final FhirPathExpressionCache sut =
+      new FhirPathExpressionCache(new FhirPathR4(FhirContext.forR4()));
+
+  @Test
+  void precompile_withInvalidExpression_shouldThrowIllegalArgumentException() {
+    assertThatThrownBy(() -> sut.precompile("request.url.toString(("))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("request.url.toString((");
+  }
+
+  @Test
+  void evaluateFirst_withPrecompiledExpression_shouldReturnSameResultAsUncompiled() {
+    var entry = new Bundle.BundleEntryComponent();
+    entry.getRequest().setUrl("Patient/p");
+
+    var beforePrecompile = sut.evaluateFirst(entry, "request.url.toString()", StringType.class);
+    sut.precompile("request.url.toString()");
+    var afterPrecompile = sut.evaluateFirst(entry, "request.url.toString()", StringType.class);
+
+    assertThat(beforePrecompile).get().extracting(StringType::getValue).isEqualTo("Patient/p");
+    assertThat(afterPrecompile).get().extracting(StringType::getValue).isEqualTo("Patient/p");
+  }
+}
@@ -18,7 +18,7 @@ class FhirPathResourceFilterTest {
   private final IParser parser = fhirContext.newJsonParser();
 
   public FhirPathResourceFilterTest() {
-    sut = new FhirPathResourceFilter(new FhirPathR4(fhirContext));
+    sut = new FhirPathResourceFilter(new FhirPathExpressionCache(new FhirPathR4(fhirContext)));
   }
 
   @ParameterizedTest
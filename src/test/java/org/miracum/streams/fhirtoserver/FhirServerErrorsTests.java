@@ -0,0 +1,59 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import org.junit.jupiter.api.Test;
+
+class FhirServerErrorsTests {
+
+  @Test
+  void rejectedContent_withEntryLevelClientError_shouldReturnTheResponse() {
+    assertThat(FhirServerErrors.rejectedContent(new UnprocessableEntityException("invalid")))
+        .isPresent();
+    assertThat(
+            FhirServerErrors.rejectedContent(
+                new RuntimeException(new ResourceVersionConflictException("conflict"))))
+        .isPresent();
+  }
+
+  @Test
+  void rejectedContent_withRequestLevelOrServerError_shouldReturnEmpty() {
+    assertThat(FhirServerErrors.rejectedContent(new AuthenticationException("unauthorized")))
+        .isEmpty();
+    assertThat(FhirServerErrors.rejectedContent(new PayloadTooLargeException("too large")))
+        .isEmpty();
+    assertThat(FhirServerErrors.rejectedContent(new InternalErrorException("failed"))).isEmpty();
+    assertThat(
+            FhirServerErrors.rejectedContent(new FhirClientConnectionException("unreachable")))
+        .isEmpty();
+  }
+
+  @Test
+  void indicatesOverload_withTimeoutOrServerError_shouldReturnTrue() {
+    assertThat(
+            FhirServerErrors.indicatesOverload(
+                new FhirClientConnectionException(new SocketTimeoutException("timeout"))))
+        .isTrue();
+    assertThat(FhirServerErrors.indicatesOverload(new InternalErrorException("failed"))).isTrue();
+  }
+
+  @Test
+  void indicatesOverload_withInterruptedRequest_shouldReturnFalse() {
+    var error = new FhirClientConnectionException(new InterruptedIOException("interrupted"));
+
+    Thread.currentThread().interrupt();
+    try {
+      assertThat(FhirServerErrors.indicatesOverload(error)).isFalse();
+    } finally {
+      Thread.interrupted();
+    }
+  }
+}
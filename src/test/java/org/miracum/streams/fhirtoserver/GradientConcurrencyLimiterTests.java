@@ -0,0 +1,94 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+class GradientConcurrencyLimiterTests {
+  private static final long ONE_MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static void saturateAndRelease(GradientConcurrencyLimiter sut, long latencyNanos)
+      throws InterruptedException {
+    var permits = new ArrayList<GradientConcurrencyLimiter.Permit>();
+    var limit = sut.limit();
+    for (int i = 0; i < limit; i++) {
+      permits.add(sut.acquire());
+    }
+    for (var permit : permits) {
+      permit.onSuccess(latencyNanos);
+    }
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void acquire_atLimit_shouldBlockUntilAPermitIsReleased() throws InterruptedException {
+    var sut = new GradientConcurrencyLimiter(2, 1, 10);
+    var first = sut.acquire();
+    sut.acquire();
+
+    var acquired = new AtomicBoolean();
+    var waiter =
+        Thread.ofVirtual()
+            .start(
+                () -> {
+                  try {
+                    sut.acquire();
+                    acquired.set(true);
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                  }
+                });
+
+    waiter.join(Duration.ofMillis(200));
+    assertThat(acquired).isFalse();
+
+    first.onIgnore();
+    waiter.join();
+    assertThat(acquired).isTrue();
+  }
+
+  @Test
+  void onSuccess_withStableLatency_shouldGrowLimit() throws InterruptedException {
+    var sut = new GradientConcurrencyLimiter(10, 1, 100);
+
+    for (int i = 0; i < 5; i++) {
+      saturateAndRelease(sut, ONE_MS);
+    }
+
+    assertThat(sut.limit()).isGreaterThan(10);
+    assertThat(sut.inFlight()).isZero();
+  }
+
+  @Test
+  void onSuccess_withRisingLatency_shouldShrinkLimit() throws InterruptedException {
+    var sut = new GradientConcurrencyLimiter(20, 1, 100);
+    for (int i = 0; i < 20; i++) {
+      saturateAndRelease(sut, ONE_MS);
+    }
+    var limitBefore = sut.limit();
+
+    for (int i = 0; i < 5; i++) {
+      saturateAndRelease(sut, 20 * ONE_MS);
+    }
+
+    assertThat(sut.limit()).isLessThan(limitBefore);
+  }
+
+  @Test
+  void onDropped_shouldShrinkLimitButNotBelowMin() throws InterruptedException {
+    var sut = new GradientConcurrencyLimiter(10, 5, 100);
+
+    sut.acquire().onDropped();
+    assertThat(sut.limit()).isEqualTo(9);
+
+    for (int i = 0; i < 20; i++) {
+      sut.acquire().onDropped();
+    }
+    assertThat(sut.limit()).isEqualTo(5);
+  }
+}
@@ -0,0 +1,73 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.junit.jupiter.api.Test;
+
+class GzipRequestInterceptorTests {
+  private static final MediaType FHIR_JSON = MediaType.get("application/fhir+json");
+
+  private final AtomicReference<Request> sentRequest = new AtomicReference<>();
+
+  // captures the request as it would be sent instead of sending it
+  private final OkHttpClient client =
+      new OkHttpClient.Builder()
+          .addInterceptor(new GzipRequestInterceptor())
+          .addInterceptor(
+              chain -> {
+                sentRequest.set(chain.request());
+                return new Response.Builder()
+                    .request(chain.request())
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(200)
+                    .message("OK")
+                    .body(ResponseBody.create("", FHIR_JSON))
+                    .build();
+              })
+          .build();
+
+  @Test
+  void intercept_withRequestBody_shouldCompressIt() throws IOException {
+    var json = "{\"resourceType\":\"Bundle\",\"type\":\"transaction\"}".repeat(100);
+    var request =
+        new Request.Builder()
+            .url("http://localhost/fhir")
+            .post(RequestBody.create(json, FHIR_JSON))
+            .build();
+
+    client.newCall(request).execute().close();
+
+    var sent = sentRequest.get();
+    assertThat(sent.header("Content-Encoding")).isEqualTo("gzip");
+    assertThat(sent.body().contentType()).isEqualTo(FHIR_JSON);
+    assertThat(sent.body().contentLength()).isLessThan(json.length());
+
+    var buffer = new Buffer();
+    sent.body().writeTo(buffer);
+    try (var in = new GZIPInputStream(new ByteArrayInputStream(buffer.readByteArray()))) {
+      assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(json);
+    }
+  }
+
+  @Test
+  void intercept_withoutRequestBody_shouldNotSetContentEncoding() throws IOException {
+    var request = new Request.Builder().url("http://localhost/fhir/metadata").get().build();
+
+    client.newCall(request).execute().close();
+
+    assertThat(sentRequest.get().header("Content-Encoding")).isNull();
+  }
+}
@@ -0,0 +1,111 @@
+package org.miracum.streams.fhirtoserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/** Minimal S3 stand-in keeping objects in memory. Only supports the calls made by the sink. */
+class InMemoryS3Client implements S3Client {
+
+  record StoredObject(
+      byte[] content, String contentType, String contentEncoding, Map<String, String> metadata) {}
+
+  private record PendingUpload(
+      String key,
+      String contentType,
+      String contentEncoding,
+      Map<String, String> metadata,
+      Map<Integer, byte[]> parts) {}
+
+  final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+  final Map<String, PendingUpload> pendingUploads = new ConcurrentHashMap<>();
+
+  @Override
+  public PutObjectResponse putObject(PutObjectRequest request, RequestBody requestBody) {
+    objects.put(
+        request.key(),
+        new StoredObject(
+            read(requestBody),
+            request.contentType(),
+            request.contentEncoding(),
+            request.metadata()));
+    return PutObjectResponse.builder().build();
+  }
+
+  @Override
+  public CreateMultipartUploadResponse createMultipartUpload(
+      CreateMultipartUploadRequest request) {
+    var uploadId = UUID.randomUUID().toString();
+    pendingUploads.put(
+        uploadId,
+        new PendingUpload(
+            request.key(),
+            request.contentType(),
+            request.contentEncoding(),
+            request.metadata(),
+            new ConcurrentHashMap<>()));
+    return CreateMultipartUploadResponse.builder().uploadId(uploadId).build();
+  }
+
+  @Override
+  public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody requestBody) {
+    pendingUploads.get(request.uploadId()).parts().put(request.partNumber(), read(requestBody));
+    return UploadPartResponse.builder().eTag("etag-" + request.partNumber()).build();
+  }
+
+  @Override
+  public CompleteMultipartUploadResponse completeMultipartUpload(
+      CompleteMultipartUploadRequest request) {
+    var upload = pendingUploads.remove(request.uploadId());
+    var content = new ByteArrayOutputStream();
+    for (var part : new TreeMap<>(upload.parts()).values()) {
+      content.writeBytes(part);
+    }
+    objects.put(
+        upload.key(),
+        new StoredObject(
+            content.toByteArray(),
+            upload.contentType(),
+            upload.contentEncoding(),
+            upload.metadata()));
+    return CompleteMultipartUploadResponse.builder().key(upload.key()).build();
+  }
+
+  @Override
+  public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+    pendingUploads.remove(request.uploadId());
+    return AbortMultipartUploadResponse.builder().build();
+  }
+
+  @Override
+  public String serviceName() {
+    return SERVICE_NAME;
+  }
+
+  @Override
+  public void close() {}
+
+  private static byte[] read(RequestBody requestBody) {
+    try (var stream = requestBody.contentStreamProvider().newStream()) {
+      return stream.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+
+class KeyOrderedDispatcherTests {
+
+  @Test
+  void dispatch_shouldPreserveTheOrderOfRecordsWithTheSameKey() throws InterruptedException {
+    var sut = new KeyOrderedDispatcher(4);
+    var keys = List.of("a", "b", "a", "c", "b", "a", "c", "a");
+    var processedByKey = new ConcurrentHashMap<String, List<Integer>>();
+
+    var failure =
+        sut.dispatch(
+            keys.size(),
+            keys::get,
+            index ->
+                processedByKey
+                    .computeIfAbsent(keys.get(index), key -> new CopyOnWriteArrayList<>())
+                    .add(index));
+
+    assertThat(failure).isEmpty();
+    assertThat(processedByKey.get("a")).containsExactly(0, 2, 5, 7);
+    assertThat(processedByKey.get("b")).containsExactly(1, 4);
+    assertThat(processedByKey.get("c")).containsExactly(3, 6);
+  }
+
+  @Test
+  void dispatch_shouldProcessRecordsWithDifferentKeysConcurrently() throws InterruptedException {
+    var sut = new KeyOrderedDispatcher(2);
+    var bothStarted = new CountDownLatch(2);
+
+    var failure =
+        sut.dispatch(
+            2,
+            index -> "key-" + index,
+            index -> {
+              bothStarted.countDown();
+              if (!bothStarted.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("records were not processed concurrently");
+              }
+            });
+
+    assertThat(failure).isEmpty();
+  }
+
+  @Test
+  void dispatch_withFailingRecord_shouldReturnTheFirstUnprocessedRecord()
+      throws InterruptedException {
+    var sut = new KeyOrderedDispatcher(4);
+    var keys = List.of("a", "b", "a", "b", "a");
+    var processed = new CopyOnWriteArrayList<Integer>();
+
+    var failure =
+        sut.dispatch(
+            keys.size(),
+            keys::get,
+            index -> {
+              if (index == 2) {
+                throw new IllegalArgumentException("poison");
+              }
+              processed.add(index);
+            });
+
+    assertThat(failure)
+        .hasValueSatisfying(
+            f -> {
+              assertThat(f.index()).isEqualTo(2);
+              assertThat(f.cause()).isInstanceOf(IllegalArgumentException.class);
+            });
+    // the rest of the failed lane is skipped, other lanes are completed
+    assertThat(processed).containsExactlyInAnyOrder(0, 1, 3);
+  }
+
+  @Test
+  void dispatch_shouldRunLanesWithTheCallersMdc() throws InterruptedException {
+    var sut = new KeyOrderedDispatcher(2);
+    var keys = List.of("a", "b", "c", "a");
+    var observedValues = new CopyOnWriteArrayList<String>();
+
+    MDC.put("bundleSize", "42");
+    try {
+      sut.dispatch(keys.size(), keys::get, index -> observedValues.add(MDC.get("bundleSize")));
+    } finally {
+      MDC.remove("bundleSize");
+    }
+
+    assertThat(observedValues).hasSize(4).containsOnly("42");
+  }
+}
@@ -0,0 +1,76 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ParallelBundleDecoderTests {
+  private final FhirContext fhirContext = FhirContext.forR4();
+
+  private ParallelBundleDecoder sut;
+
+  @AfterEach
+  void tearDown() {
+    sut.close();
+  }
+
+  private byte[] bundle(String patientId) {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    bundle.addEntry().setResource(new Patient().setId(patientId));
+    return fhirContext
+        .newJsonParser()
+        .encodeResourceToString(bundle)
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void decode_withParallelism_shouldReturnBundlesInBatchOrder() {
+    sut = new ParallelBundleDecoder(fhirContext, new RawBatchDecodingConfig(4));
+
+    var payloads = new ArrayList<byte[]>();
+    var expectedIds = new ArrayList<String>();
+    for (int i = 0; i < 50; i++) {
+      payloads.add(bundle("p-" + i));
+      expectedIds.add("p-" + i);
+    }
+
+    var bundles = sut.decode(payloads);
+
+    assertThat(bundles)
+        .extracting(b -> b.getEntryFirstRep().getResource().getIdElement().getIdPart())
+        .containsExactlyElementsOf(expectedIds);
+  }
+
+  @Test
+  void decode_withInvalidPayload_shouldReportItsIndex() {
+    sut = new ParallelBundleDecoder(fhirContext, new RawBatchDecodingConfig(4));
+
+    var payloads =
+        List.of(bundle("a"), bundle("b"), "{\"resourceType\":".getBytes(StandardCharsets.UTF_8));
+
+    assertThatThrownBy(() -> sut.decode(payloads))
+        .isInstanceOfSatisfying(
+            ParallelBundleDecoder.DecodingException.class,
+            e -> assertThat(e.index()).isEqualTo(2));
+  }
+
+  @Test
+  void decode_withoutParallelism_shouldParseOnCallingThread() {
+    sut = new ParallelBundleDecoder(fhirContext, new RawBatchDecodingConfig(1));
+
+    var bundles = sut.decode(List.of(bundle("a"), bundle("b")));
+
+    assertThat(bundles)
+        .extracting(b -> b.getEntryFirstRep().getResource().getIdElement().getIdPart())
+        .containsExactly("a", "b");
+  }
+}
@@ -0,0 +1,41 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Test;
+
+class ParquetResourceWriterTests {
+  private final FhirContext fhirContext = FhirContext.forR4();
+
+  @Test
+  void toRecord_withCodingWithSystem_shouldStoreSystemAndCode() {
+    var observation = new Observation();
+    observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+
+    var record = ParquetResourceWriter.toRecord(observation, fhirContext.newJsonParser());
+
+    assertThat(record.get("code")).isEqualTo("http://loinc.org|8867-4");
+  }
+
+  @Test
+  void toRecord_withCodingWithoutSystem_shouldStoreOnlyTheCode() {
+    var observation = new Observation();
+    observation.getCode().addCoding().setCode("8867-4");
+
+    var record = ParquetResourceWriter.toRecord(observation, fhirContext.newJsonParser());
+
+    assertThat(record.get("code")).isEqualTo("8867-4");
+  }
+
+  @Test
+  void toRecord_withCodingWithoutCode_shouldLeaveTheColumnEmpty() {
+    var observation = new Observation();
+    observation.getCode().addCoding().setSystem("http://loinc.org").setDisplay("Heart rate");
+
+    var record = ParquetResourceWriter.toRecord(observation, fhirContext.newJsonParser());
+
+    assertThat(record.get("code")).isNull();
+  }
+}
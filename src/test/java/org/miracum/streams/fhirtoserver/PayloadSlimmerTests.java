@@ -0,0 +1,115 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+class PayloadSlimmerTests {
+  private final FhirContext fhirContext = FhirContext.forR4();
+
+  @Test
+  void slim_withElementsForAllResourceTypes_shouldRemoveThemFromEveryResource() {
+    var sut = new PayloadSlimmer(fhirContext, Map.of("all", List.of("text", "meta.versionId")), 1);
+
+    var patient = patient();
+    var observation = new Observation();
+    observation.getText().setStatus(Narrative.NarrativeStatus.GENERATED);
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    bundle.addEntry().setResource(patient);
+    bundle.addEntry().setResource(observation);
+
+    sut.slim(bundle);
+
+    assertThat(patient.hasText()).isFalse();
+    assertThat(patient.getMeta().hasVersionId()).isFalse();
+    assertThat(patient.getMeta().getSource()).isEqualTo("#source");
+    assertThat(patient.getBirthDateElement().getValueAsString()).isEqualTo("2000-01-01");
+    assertThat(observation.hasText()).isFalse();
+  }
+
+  @Test
+  void slim_withElementsForOtherResourceType_shouldNotChangeResource() {
+    var sut = new PayloadSlimmer(fhirContext, Map.of("observation", List.of("text")), 1);
+
+    var patient = patient();
+    sut.slim(patient);
+
+    assertThat(patient.hasText()).isTrue();
+    assertThat(patient.getMeta().hasVersionId()).isTrue();
+  }
+
+  @Test
+  void slim_withRepeatingElementInPath_shouldRemoveElementFromEachRepetition() {
+    var sut = new PayloadSlimmer(fhirContext, Map.of("Patient", List.of("name.text")), 1);
+
+    var patient = patient();
+    patient.addName().setFamily("a").setText("A");
+    patient.addName().setFamily("b").setText("B");
+    sut.slim(patient);
+
+    assertThat(patient.getName())
+        .allSatisfy(
+            name -> {
+              assertThat(name.hasText()).isFalse();
+              assertThat(name.hasFamily()).isTrue();
+            });
+  }
+
+  @Test
+  void slim_withRepeatingElementInMeta_shouldRemoveAllOfItsValues() {
+    var sut = new PayloadSlimmer(fhirContext, Map.of("all", List.of("meta.tag")), 1);
+
+    var patient = patient();
+    patient.getMeta().addTag("http://example.com/tags", "a", null);
+    patient.getMeta().addTag("http://example.com/tags", "b", null);
+    sut.slim(patient);
+
+    assertThat(patient.getMeta().getTag()).isEmpty();
+    assertThat(patient.getMeta().getSource()).isEqualTo("#source");
+    assertThat(fhirContext.newJsonParser().encodeResourceToString(patient)).doesNotContain("tag");
+  }
+
+  @Test
+  void slim_withExtension_shouldRemoveAllExtensions() {
+    var sut = new PayloadSlimmer(fhirContext, Map.of("Patient", List.of("extension")), 1);
+
+    var patient = patient();
+    patient.addExtension("http://example.com/a", new StringType("a"));
+    patient.addExtension("http://example.com/b", new StringType("b"));
+    sut.slim(patient);
+
+    assertThat(patient.getExtension()).isEmpty();
+    assertThat(fhirContext.newJsonParser().encodeResourceToString(patient))
+        .doesNotContain("extension");
+  }
+
+  @Test
+  void new_withUnknownResourceType_shouldThrow() {
+    var elements = Map.of("NotAResource", List.of("text"));
+
+    assertThatThrownBy(() -> new PayloadSlimmer(fhirContext, elements, 1))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static Patient patient() {
+    var patient = new Patient();
+    patient.setId("p");
+    patient.getMeta().setVersionId("3").setSource("#source");
+    patient
+        .getText()
+        .setStatus(Narrative.NarrativeStatus.GENERATED)
+        .setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\">p</div>");
+    patient.getBirthDateElement().setValueAsString("2000-01-01");
+    return patient;
+  }
+}
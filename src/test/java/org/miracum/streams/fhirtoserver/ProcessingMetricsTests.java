@@ -0,0 +1,129 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+
+class ProcessingMetricsTests {
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final ProcessingMetrics sut =
+      new ProcessingMetrics(
+          FhirContext.forR4(),
+          new ProcessingMetricsConfig(
+              1, true, new ProcessingMetricsConfig.Timers(false, List.of(), List.of())));
+
+  @BeforeEach
+  void setUp() {
+    Metrics.globalRegistry.add(registry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    Metrics.globalRegistry.remove(registry);
+  }
+
+  private double sentEntries(String resourceType, String method) {
+    var counter =
+        registry
+            .find("fhirtoserver.fhir.sent.entries.total")
+            .tags("resource_type", resourceType, "method", method)
+            .counter();
+    return counter != null ? counter.count() : 0;
+  }
+
+  @Test
+  void recordSent_shouldCountEntriesPerResourceTypeAndMethod() {
+    var bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+    bundle
+        .addEntry()
+        .setResource(new Patient().setId("a"))
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl("Patient/a");
+    bundle
+        .addEntry()
+        .setResource(new Patient().setId("b"))
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl("Patient/b");
+    bundle
+        .addEntry()
+        .setResource(new Observation().setId("c"))
+        .getRequest()
+        .setMethod(HTTPVerb.POST)
+        .setUrl("Observation");
+    bundle.addEntry().getRequest().setMethod(HTTPVerb.DELETE).setUrl("Encounter?patient=a");
+
+    sut.recordSent(bundle);
+
+    assertThat(sentEntries("Patient", "PUT")).isEqualTo(2);
+    assertThat(sentEntries("Observation", "POST")).isEqualTo(1);
+    assertThat(sentEntries("Encounter", "DELETE")).isEqualTo(1);
+    assertThat(
+            registry
+                .find("fhirtoserver.fhir.sent.entry.size.bytes")
+                .tags("resource_type", "Patient", "method", "PUT")
+                .summary()
+                .count())
+        .isEqualTo(2);
+  }
+
+  @Test
+  void recordingLatencyOnAcknowledge_shouldAcknowledgeAndRecordLatencyOfEachRecord() {
+    var acknowledged = new AtomicBoolean();
+    var now = System.currentTimeMillis();
+    var headers = new HashMap<String, Object>();
+    headers.put(KafkaHeaders.RECEIVED_TIMESTAMP, List.of(now - 2_000, now - 1_000));
+    headers.put(KafkaHeaders.ACKNOWLEDGMENT, (Acknowledgment) () -> acknowledged.set(true));
+
+    var wrapped = sut.recordingLatencyOnAcknowledge(new MessageHeaders(headers));
+    var timer = registry.find("fhirtoserver.end.to.end.latency").timer();
+    assertThat(timer.count()).isZero();
+
+    wrapped.get(KafkaHeaders.ACKNOWLEDGMENT, Acknowledgment.class).acknowledge();
+
+    assertThat(acknowledged).isTrue();
+    assertThat(timer.count()).isEqualTo(2);
+    assertThat(timer.max(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(2_000);
+  }
+
+  @Test
+  void timerDistributionFilter_shouldOnlyApplyToTimersOfThisApplication() {
+    var meterRegistry = new SimpleMeterRegistry();
+    meterRegistry
+        .config()
+        .meterFilter(
+            ProcessingMetrics.timerDistributionFilter(
+                new ProcessingMetricsConfig.Timers(
+                    false,
+                    List.of(0.5, 0.99),
+                    List.of(Duration.ofMillis(100), Duration.ofSeconds(1)))));
+
+    var timer = meterRegistry.timer("fhirtoserver.fhir.client.transaction.duration");
+    var otherTimer = meterRegistry.timer("http.server.requests");
+    timer.record(Duration.ofMillis(50));
+    otherTimer.record(Duration.ofMillis(50));
+
+    assertThat(timer.takeSnapshot().percentileValues()).hasSize(2);
+    assertThat(timer.takeSnapshot().histogramCounts()).hasSize(2);
+    assertThat(otherTimer.takeSnapshot().percentileValues()).isEmpty();
+    assertThat(otherTimer.takeSnapshot().histogramCounts()).isEmpty();
+  }
+}
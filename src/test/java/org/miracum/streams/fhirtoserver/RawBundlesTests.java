@@ -0,0 +1,43 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.NullAndEmptySource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class RawBundlesTests {
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "{\"resourceType\":\"Bundle\",\"type\":\"transaction\",\"entry\":[]}",
+        "{\"id\":\"b1\",\"meta\":{\"resourceType\":\"Patient\"},\"resourceType\":\"Bundle\"}",
+        "  {\n  \"resourceType\" : \"Bundle\"\n}",
+        // only the structure up to the resourceType is checked
+        "{\"resourceType\":\"Bundle\",\"entry\":[",
+      })
+  void isBundle_withBundle_shouldReturnTrue(String json) {
+    assertThat(RawBundles.isBundle(json.getBytes(StandardCharsets.UTF_8))).isTrue();
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "{\"resourceType\":\"Patient\",\"id\":\"p1\"}",
+        "{\"entry\":[{\"resource\":{\"resourceType\":\"Bundle\"}}]}",
+        "{\"resourceType\":[\"Bundle\"]}",
+        "[{\"resourceType\":\"Bundle\"}]",
+        "<Bundle xmlns=\"http://hl7.org/fhir\"/>",
+        "not json",
+      })
+  void isBundle_withOtherContent_shouldReturnFalse(String json) {
+    assertThat(RawBundles.isBundle(json.getBytes(StandardCharsets.UTF_8))).isFalse();
+  }
+
+  @ParameterizedTest
+  @NullAndEmptySource
+  void isBundle_withNullOrEmptyPayload_shouldReturnFalse(byte[] payload) {
+    assertThat(RawBundles.isBundle(payload)).isFalse();
+  }
+}
@@ -0,0 +1,133 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class ReferenceAwarePartitionerTests {
+  private final ReferenceAwarePartitioner sut =
+      new ReferenceAwarePartitioner(FhirContext.forR4());
+
+  @ParameterizedTest
+  @CsvSource({"10,5", "60,3", "100,10"})
+  void partitionBundle_withIndependentEntries_shouldBeSplitIntoFullPartitions(
+      int inputBundleSize, int partitionSize) {
+    var inputBundle = new Bundle().setType(BundleType.TRANSACTION);
+
+    for (int i = 0; i < inputBundleSize; i++) {
+      var patient = new Patient();
+      patient.setId("p-" + i);
+
+      inputBundle
+          .addEntry()
+          .setResource(patient)
+          .setFullUrl("Patient/p-" + i)
+          .getRequest()
+          .setMethod(HTTPVerb.PUT)
+          .setUrl("Patient/p-" + i);
+    }
+
+    var partitioned = sut.partitionBundle(inputBundle, partitionSize);
+
+    assertThat(partitioned)
+        .hasSize(inputBundleSize / partitionSize)
+        .allSatisfy(bundle -> assertThat(bundle.getEntry()).hasSize(partitionSize));
+  }
+
+  @Test
+  void partitionBundle_withEntriesReferencingEachOther_shouldKeepThemTogether() {
+    var inputBundle = new Bundle().setType(BundleType.TRANSACTION);
+    for (int i = 0; i < 4; i++) {
+      inputBundle
+          .addEntry()
+          .setResource(new Patient())
+          .setFullUrl("urn:uuid:patient-" + i)
+          .getRequest()
+          .setMethod(HTTPVerb.POST)
+          .setUrl("Patient");
+    }
+    for (int i = 0; i < 4; i++) {
+      var observation = new Observation().setSubject(new Reference("urn:uuid:patient-" + i));
+      inputBundle
+          .addEntry()
+          .setResource(observation)
+          .setFullUrl("urn:uuid:observation-" + i)
+          .getRequest()
+          .setMethod(HTTPVerb.POST)
+          .setUrl("Observation");
+    }
+
+    var partitioned = sut.partitionBundle(inputBundle, 2);
+
+    assertThat(partitioned)
+        .hasSize(4)
+        .allSatisfy(
+            bundle -> {
+              assertThat(bundle.getEntry()).hasSize(2);
+              var patient = bundle.getEntry().get(0);
+              var observation = (Observation) bundle.getEntry().get(1).getResource();
+              assertThat(observation.getSubject().getReference()).isEqualTo(patient.getFullUrl());
+            });
+  }
+
+  @Test
+  void partitionBundle_withReferenceByResourceId_shouldKeepThemTogether() {
+    var patient = new Patient();
+    patient.setId("p");
+
+    var inputBundle = new Bundle().setType(BundleType.TRANSACTION);
+    inputBundle
+        .addEntry()
+        .setResource(new Observation().setSubject(new Reference("Patient/p")))
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl("Observation/o");
+    inputBundle.addEntry().setResource(new Patient()).getRequest().setUrl("Patient/other");
+    inputBundle
+        .addEntry()
+        .setResource(patient)
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl("Patient/p");
+
+    var partitioned = sut.partitionBundle(inputBundle, 2);
+
+    assertThat(partitioned).hasSize(2);
+    assertThat(partitioned.get(0).getEntry())
+        .extracting(entry -> entry.getRequest().getUrl())
+        .containsExactly("Observation/o", "Patient/p");
+  }
+
+  @Test
+  void partitionBundle_withComponentExceedingMaxSize_shouldNotSplitIt() {
+    var inputBundle = new Bundle().setType(BundleType.TRANSACTION);
+    inputBundle
+        .addEntry()
+        .setResource(new Patient())
+        .setFullUrl("urn:uuid:patient")
+        .getRequest()
+        .setMethod(HTTPVerb.POST)
+        .setUrl("Patient");
+    for (int i = 0; i < 5; i++) {
+      inputBundle
+          .addEntry()
+          .setResource(new Observation().setSubject(new Reference("urn:uuid:patient")))
+          .getRequest()
+          .setMethod(HTTPVerb.POST)
+          .setUrl("Observation");
+    }
+
+    var partitioned = sut.partitionBundle(inputBundle, 3);
+
+    assertThat(partitioned).singleElement().satisfies(b -> assertThat(b.getEntry()).hasSize(6));
+  }
+}
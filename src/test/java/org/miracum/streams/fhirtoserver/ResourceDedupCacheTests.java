@@ -0,0 +1,169 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ResourceDedupCacheTests {
+  private final FhirContext fhirContext = FhirContext.forR4();
+
+  @TempDir Path tempDir;
+
+  @Test
+  void removeUnchanged_withResourceSentBefore_shouldRemoveIt() {
+    var sut = new ResourceDedupCache(fhirContext, 100, null, Duration.ofMinutes(1));
+
+    sut.commit(sut.removeUnchanged(bundleWithPatient("p", "family")));
+    var bundle = bundleWithPatient("p", "family");
+    sut.removeUnchanged(bundle);
+
+    assertThat(bundle.getEntry()).isEmpty();
+  }
+
+  @Test
+  void removeUnchanged_withOnlyMetaChanged_shouldRemoveIt() {
+    var sut = new ResourceDedupCache(fhirContext, 100, null, Duration.ofMinutes(1));
+
+    sut.commit(sut.removeUnchanged(bundleWithPatient("p", "family")));
+    var bundle = bundleWithPatient("p", "family");
+    bundle.getEntryFirstRep().getResource().getMeta().setSource("#changed").setVersionId("2");
+    sut.removeUnchanged(bundle);
+
+    assertThat(bundle.getEntry()).isEmpty();
+  }
+
+  @Test
+  void removeUnchanged_withChangedResource_shouldKeepIt() {
+    var sut = new ResourceDedupCache(fhirContext, 100, null, Duration.ofMinutes(1));
+
+    sut.commit(sut.removeUnchanged(bundleWithPatient("p", "older")));
+    var bundle = bundleWithPatient("p", "newer");
+    sut.removeUnchanged(bundle);
+
+    assertThat(bundle.getEntry()).hasSize(1);
+  }
+
+  @Test
+  void removeUnchanged_withoutCommit_shouldKeepIt() {
+    var sut = new ResourceDedupCache(fhirContext, 100, null, Duration.ofMinutes(1));
+
+    sut.removeUnchanged(bundleWithPatient("p", "family"));
+    var bundle = bundleWithPatient("p", "family");
+    sut.removeUnchanged(bundle);
+
+    assertThat(bundle.getEntry()).hasSize(1);
+  }
+
+  @Test
+  void removeUnchanged_afterResourceWasDeleted_shouldKeepIt() {
+    var sut = new ResourceDedupCache(fhirContext, 100, null, Duration.ofMinutes(1));
+
+    sut.commit(sut.removeUnchanged(bundleWithPatient("p", "family")));
+    var deleteBundle = new Bundle().setType(BundleType.TRANSACTION);
+    deleteBundle.addEntry().getRequest().setMethod(HTTPVerb.DELETE).setUrl("Patient/p");
+    sut.commit(sut.removeUnchanged(deleteBundle));
+
+    var bundle = bundleWithPatient("p", "family");
+    sut.removeUnchanged(bundle);
+
+    assertThat(deleteBundle.getEntry()).hasSize(1);
+    assertThat(bundle.getEntry()).hasSize(1);
+  }
+
+  @Test
+  void removeUnchanged_withUnchangedResourceReferencedByChangedOne_shouldKeepIt() {
+    var sut = new ResourceDedupCache(fhirContext, 100, null, Duration.ofMinutes(1));
+
+    sut.commit(sut.removeUnchanged(bundleWithPatientAndEncounter("planned")));
+    var bundle = bundleWithPatientAndEncounter("finished");
+    sut.removeUnchanged(bundle);
+
+    assertThat(bundle.getEntry())
+        .extracting(BundleEntryComponent::getFullUrl)
+        .containsExactly("urn:uuid:patient", "urn:uuid:encounter");
+  }
+
+  @Test
+  void removeUnchanged_withUnchangedResourceOnlyReferencedByUnchangedOne_shouldRemoveBoth() {
+    var sut = new ResourceDedupCache(fhirContext, 100, null, Duration.ofMinutes(1));
+
+    sut.commit(sut.removeUnchanged(bundleWithPatientAndEncounter("planned")));
+    var bundle = bundleWithPatientAndEncounter("planned");
+    sut.removeUnchanged(bundle);
+
+    assertThat(bundle.getEntry()).isEmpty();
+  }
+
+  @Test
+  void close_withSnapshotFile_shouldRestoreFingerprintsOnStartup() throws IOException {
+    var snapshotFile = tempDir.resolve("dedup.snapshot");
+
+    var sut = new ResourceDedupCache(fhirContext, 100, snapshotFile, Duration.ofMinutes(1));
+    sut.commit(sut.removeUnchanged(bundleWithPatient("p", "family")));
+    sut.close();
+
+    var restored = new ResourceDedupCache(fhirContext, 100, snapshotFile, Duration.ofMinutes(1));
+    var bundle = bundleWithPatient("p", "family");
+    restored.removeUnchanged(bundle);
+    restored.close();
+
+    assertThat(restored.size()).isEqualTo(1);
+    assertThat(bundle.getEntry()).isEmpty();
+  }
+
+  private static Bundle bundleWithPatientAndEncounter(String encounterStatus) {
+    var patient = new Patient().setName(List.of(new HumanName().setFamily("family")));
+    patient.setId("p");
+    var encounter =
+        new Encounter()
+            .setStatus(Encounter.EncounterStatus.fromCode(encounterStatus))
+            .setSubject(new Reference("urn:uuid:patient"));
+    encounter.setId("e");
+
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    bundle
+        .addEntry()
+        .setResource(patient)
+        .setFullUrl("urn:uuid:patient")
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl("Patient/p");
+    bundle
+        .addEntry()
+        .setResource(encounter)
+        .setFullUrl("urn:uuid:encounter")
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl("Encounter/e");
+    return bundle;
+  }
+
+  private static Bundle bundleWithPatient(String id, String family) {
+    var patient = new Patient().setName(List.of(new HumanName().setFamily(family)));
+    patient.setId(id);
+
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    bundle
+        .addEntry()
+        .setResource(patient)
+        .setFullUrl("Patient/" + id)
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl("Patient/" + id);
+    return bundle;
+  }
+}
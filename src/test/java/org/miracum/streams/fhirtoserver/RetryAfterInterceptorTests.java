@@ -0,0 +1,109 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.Test;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.FixedBackOffPolicy;
+import org.springframework.retry.context.RetryContextSupport;
+
+class RetryAfterInterceptorTests {
+
+  private static OkHttpClient respondingWith(int statusCode, Headers headers) {
+    return new OkHttpClient.Builder()
+        .addInterceptor(new RetryAfterInterceptor())
+        .addInterceptor(
+            chain ->
+                new Response.Builder()
+                    .request(chain.request())
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(statusCode)
+                    .message("")
+                    .headers(headers)
+                    .body(ResponseBody.create("", MediaType.get("application/fhir+json")))
+                    .build())
+        .build();
+  }
+
+  private static Request request() {
+    return new Request.Builder().url("http://localhost/fhir").build();
+  }
+
+  @Test
+  void intercept_withTooManyRequests_shouldThrowWithRetryAfter() {
+    var client = respondingWith(429, Headers.of("Retry-After", "30"));
+
+    assertThatThrownBy(() -> client.newCall(request()).execute())
+        .isInstanceOfSatisfying(
+            RetryAfterInterceptor.ThrottledException.class,
+            e -> assertThat(e.retryAfter()).contains(Duration.ofSeconds(30)));
+  }
+
+  @Test
+  void intercept_withServiceUnavailableWithoutRetryAfter_shouldReturnResponse()
+      throws IOException {
+    var client = respondingWith(503, Headers.of());
+
+    try (var response = client.newCall(request()).execute()) {
+      assertThat(response.code()).isEqualTo(503);
+    }
+  }
+
+  @Test
+  void retryAfter_withHttpDate_shouldReturnDelayUntilThen() {
+    var now = Instant.parse("2026-01-01T12:00:00Z");
+    var headers = Headers.of("Retry-After", "Thu, 01 Jan 2026 12:01:30 GMT");
+
+    assertThat(RetryAfterInterceptor.retryAfter(headers, now)).contains(Duration.ofSeconds(90));
+  }
+
+  @Test
+  void backOff_withRetryAfter_shouldWaitAsLongAsAskedForAtMostMaxDelay() {
+    var sleeps = new ArrayList<Long>();
+    var sut =
+        new RetryAfterBackOffPolicy(new FixedBackOffPolicy(), Duration.ofSeconds(60), sleeps::add);
+
+    backOffAfter(sut, throttled(Duration.ofSeconds(10)));
+    backOffAfter(sut, throttled(Duration.ofMinutes(10)));
+
+    assertThat(sleeps).containsExactly(10_000L, 60_000L);
+  }
+
+  @Test
+  void backOff_withoutRetryAfter_shouldUseDelegate() {
+    var sleeps = new ArrayList<Long>();
+    var delegate = new FixedBackOffPolicy();
+    delegate.setBackOffPeriod(1_234);
+    delegate.setSleeper(sleeps::add);
+    var sut = new RetryAfterBackOffPolicy(delegate, Duration.ofSeconds(60), period -> {});
+
+    backOffAfter(sut, new IOException("connection reset"));
+
+    assertThat(sleeps).isEqualTo(List.of(1_234L));
+  }
+
+  private static Throwable throttled(Duration retryAfter) {
+    return new RetryAfterInterceptor.ThrottledException(429, Optional.of(retryAfter));
+  }
+
+  private static void backOffAfter(BackOffPolicy policy, Throwable error) {
+    var context = new RetryContextSupport(null);
+    context.registerThrowable(new FhirClientConnectionException("Failed to send", error));
+    policy.backOff(policy.start(context));
+  }
+}
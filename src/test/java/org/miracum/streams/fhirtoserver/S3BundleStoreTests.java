@@ -0,0 +1,180 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.io.LocalInputFile;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.regions.Region;
+
+class S3BundleStoreTests {
+  private final FhirContext fhirContext = FhirContext.forR4();
+  private final InMemoryS3Client s3Client = new InMemoryS3Client();
+
+  @TempDir Path tempDir;
+
+  private static S3Config config(S3Compression compression, S3OutputFormat format) {
+    return new S3Config(
+        true,
+        true,
+        10,
+        null,
+        Optional.empty(),
+        Optional.empty(),
+        "fhir",
+        Region.EU_CENTRAL_1,
+        Optional.of("prefix/"),
+        DataSize.ofMegabytes(5),
+        4,
+        compression,
+        format);
+  }
+
+  private S3BundleStore newStore(S3Compression compression) {
+    return newStore(compression, S3OutputFormat.NDJSON);
+  }
+
+  private S3BundleStore newStore(S3Compression compression, S3OutputFormat format) {
+    var mergerConfig =
+        new FhirBundleMergerConfig(true, "request.url.toString()", Optional.empty(), 1, false);
+    var merger =
+        new FhirBundleMerger(
+            new EntryKeyExtractors(
+                List.of(new DirectAccessEntryKeyExtractorFactory()),
+                new FhirPathExpressionCache(new FhirPathR4(fhirContext))));
+    return new S3BundleStore(
+        s3Client, config(compression, format), merger, fhirContext, mergerConfig, null);
+  }
+
+  private static MessageHeaders batchHeaders() {
+    var headers = new HashMap<String, Object>();
+    // in batch mode, Spring Kafka provides the record metadata as lists
+    headers.put(KafkaHeaders.RECEIVED_TIMESTAMP, new ArrayList<>(List.of(1000L, 2000L)));
+    headers.put(KafkaHeaders.RECEIVED_PARTITION, new ArrayList<>(List.of(3, 3)));
+    headers.put(KafkaHeaders.OFFSET, new ArrayList<>(List.of(42L, 43L)));
+    headers.put(KafkaHeaders.RECEIVED_TOPIC, new ArrayList<>(List.of("fhir-msg", "fhir-msg")));
+    return new MessageHeaders(headers);
+  }
+
+  private static void addPut(Bundle bundle, Resource resource) {
+    var url = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+    bundle
+        .addEntry()
+        .setFullUrl(url)
+        .setResource(resource)
+        .getRequest()
+        .setMethod(HTTPVerb.PUT)
+        .setUrl(url);
+  }
+
+  @Test
+  void storeBatch_withMultipleResourceTypesAndDeletes_shouldStoreOneObjectPerTypeAndKind()
+      throws Exception {
+    var first = new Bundle().setType(BundleType.TRANSACTION);
+    addPut(first, new Patient().setId("p-1"));
+    addPut(first, new Encounter().setId("e-1"));
+
+    var second = new Bundle().setType(BundleType.TRANSACTION);
+    addPut(second, new Patient().setId("p-2"));
+    second.addEntry().getRequest().setMethod(HTTPVerb.DELETE).setUrl("Encounter/e-2");
+
+    newStore(S3Compression.NONE).storeBatch(List.of(first, second), batchHeaders());
+
+    assertThat(s3Client.objects)
+        .containsOnlyKeys(
+            "prefix/Patient/1000-3-42.ndjson",
+            "prefix/Encounter/1000-3-42.ndjson",
+            "prefix/Encounter/_delete/1000-3-42.ndjson");
+
+    var patients =
+        new String(
+            s3Client.objects.get("prefix/Patient/1000-3-42.ndjson").content(),
+            StandardCharsets.UTF_8);
+    assertThat(patients.lines()).hasSize(2);
+    assertThat(s3Client.objects.get("prefix/Patient/1000-3-42.ndjson").metadata())
+        .containsEntry("kafka-offset", "42")
+        .containsEntry("kafka-partition", "3");
+  }
+
+  @Test
+  void storeBatch_withGzipCompression_shouldStoreCompressedObjectWithEncodingAndSuffix()
+      throws Exception {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    addPut(bundle, new Patient().setId("p-1"));
+
+    newStore(S3Compression.GZIP).storeBatch(List.of(bundle), batchHeaders());
+
+    var stored = s3Client.objects.get("prefix/Patient/1000-3-42.ndjson.gz");
+    assertThat(stored).isNotNull();
+    assertThat(stored.contentEncoding()).isEqualTo("gzip");
+
+    try (var gzip = new GZIPInputStream(new ByteArrayInputStream(stored.content()))) {
+      var decompressed = new String(gzip.readAllBytes(), StandardCharsets.UTF_8);
+      var patient = fhirContext.newJsonParser().parseResource(Patient.class, decompressed);
+      assertThat(patient.getIdElement().getIdPart()).isEqualTo("p-1");
+    }
+  }
+
+  @Test
+  void storeBatch_withParquetFormat_shouldStoreReadableParquetFileWithFlattenedColumns()
+      throws Exception {
+    var observation = new Observation();
+    observation.setId("o-1");
+    observation.setSubject(new Reference("Patient/p-1"));
+    observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+    observation.setEffective(new DateTimeType("2024-01-02T03:04:05Z"));
+
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    addPut(bundle, observation);
+
+    newStore(S3Compression.ZSTD, S3OutputFormat.PARQUET)
+        .storeBatch(List.of(bundle), batchHeaders());
+
+    var stored = s3Client.objects.get("prefix/Observation/1000-3-42.parquet");
+    assertThat(stored).isNotNull();
+    assertThat(stored.contentEncoding()).isNull();
+
+    var file = tempDir.resolve("observations.parquet");
+    Files.write(file, stored.content());
+
+    try (var reader =
+        AvroParquetReader.<GenericRecord>builder(new LocalInputFile(file))
+            .withConf(new Configuration(false))
+            .build()) {
+      var record = reader.read();
+      assertThat(record.get("id")).hasToString("o-1");
+      assertThat(record.get("resource_type")).hasToString("Observation");
+      assertThat(record.get("subject_reference")).hasToString("Patient/p-1");
+      assertThat(record.get("code")).hasToString("http://loinc.org|8867-4");
+      assertThat(record.get("effective")).isEqualTo(1704164645000L);
+      assertThat(record.get("resource").toString()).contains("\"resourceType\":\"Observation\"");
+      assertThat(reader.read()).isNull();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class S3MultipartOutputStreamTests {
+  private static final int PART_SIZE = 5 * 1024 * 1024;
+
+  private final InMemoryS3Client s3Client = new InMemoryS3Client();
+  private final ByteArrayPool bufferPool = new ByteArrayPool(PART_SIZE, 2);
+
+  private S3MultipartOutputStream newStream(String key) {
+    return new S3MultipartOutputStream(
+        s3Client, bufferPool, "bucket", key, "application/fhir+ndjson", null, Map.of("a", "b"));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 1, PART_SIZE - 1, PART_SIZE, PART_SIZE + 1, 3 * PART_SIZE + 17})
+  void close_afterWritingContent_shouldStoreExactlyTheWrittenBytes(int size) throws IOException {
+    var content = new byte[size];
+    new Random(42).nextBytes(content);
+
+    try (var stream = newStream("object")) {
+      // write in odd-sized chunks to cross part boundaries in the middle of a write
+      for (int offset = 0; offset < size; offset += 4099) {
+        stream.write(content, offset, Math.min(4099, size - offset));
+      }
+    }
+
+    var stored = s3Client.objects.get("object");
+    assertThat(stored.content()).isEqualTo(content);
+    assertThat(stored.contentType()).isEqualTo("application/fhir+ndjson");
+    assertThat(stored.metadata()).containsEntry("a", "b");
+    assertThat(s3Client.pendingUploads).isEmpty();
+  }
+
+  @Test
+  void abort_afterUploadingParts_shouldNotCreateObject() throws IOException {
+    var stream = newStream("aborted");
+    stream.write(new byte[PART_SIZE + 1]);
+
+    stream.abort();
+
+    assertThat(s3Client.objects).doesNotContainKey("aborted");
+    assertThat(s3Client.pendingUploads).isEmpty();
+  }
+}
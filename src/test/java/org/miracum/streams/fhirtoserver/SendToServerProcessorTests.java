@@ -1,34 +1,441 @@
 package org.miracum.streams.fhirtoserver;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.gclient.ITransaction;
+import ca.uhn.fhir.rest.gclient.ITransactionTyped;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.unit.DataSize;
+import software.amazon.awssdk.regions.Region;
 
 class SendToServerProcessorTests {
-  private final SendToServerProcessor sut;
+  private static final FhirContext fhirContext = FhirContext.forR4();
 
-  public SendToServerProcessorTests() {
-    var fhirContext = FhirContext.forR4();
-    var filter = new FhirPathResourceFilter(new FhirPathR4(fhirContext));
-    var serverUrl = "http://localhost/fhir";
-    sut =
-        new SendToServerProcessor(
-            fhirContext.newRestfulGenericClient(serverUrl),
-            "",
-            null,
-            new FhirBundleMergerConfig(false, null, Optional.empty()),
-            filter,
-            null,
+  private final SendToServerProcessor sut =
+      createProcessor(fhirContext.newRestfulGenericClient("http://localhost/fhir"), null, null, 16);
+
+  @TempDir Path tempDir;
+
+  // the request urls of all transactions accepted by the mocked server
+  private final List<List<String>> sentTransactions = new CopyOnWriteArrayList<>();
+
+  private static SendToServerProcessor createProcessor(
+      IGenericClient client,
+      BundleType overrideBundleType,
+      DeadLetterPublisher deadLetterPublisher,
+      int maxBisectionDepth) {
+    return createProcessor(
+        client, overrideBundleType, deadLetterPublisher, maxBisectionDepth, null, null, null, null);
+  }
+
+  private static SendToServerProcessor createProcessor(
+      IGenericClient client,
+      BundleType overrideBundleType,
+      DeadLetterPublisher deadLetterPublisher,
+      int maxBisectionDepth,
+      AdaptivePartitionSizer partitionSizer,
+      CircuitBreaker circuitBreaker,
+      TransactionRateLimiter rateLimiter,
+      BundleSpool spool) {
+    var filter =
+        new FhirPathResourceFilter(new FhirPathExpressionCache(new FhirPathR4(fhirContext)));
+    return new SendToServerProcessor(
+        client,
+        "",
+        overrideBundleType,
+        new FhirBundleMergerConfig(false, null, Optional.empty(), 1, false),
+        new BatchLingerConfig(false, 1, Optional.empty(), Duration.ofSeconds(1)),
+        new BatchPipelineConfig(false, 1),
+        new KeyOrderedProcessingConfig(1),
+        filter,
+        new ProcessingMetrics(
+            fhirContext,
+            new ProcessingMetricsConfig(
+                1, true, new ProcessingMetricsConfig.Timers(false, List.of(), List.of()))),
+        null,
+        null,
+        null,
+        null,
+        new BisectOnClientErrorConfig(deadLetterPublisher != null, maxBisectionDepth),
+        new S3Config(
+            false,
+            false,
+            10,
             null,
-            null);
+            Optional.empty(),
+            Optional.empty(),
+            "fhir",
+            Region.EU_CENTRAL_1,
+            Optional.empty(),
+            DataSize.ofMegabytes(5),
+            1,
+            S3Compression.NONE,
+            S3OutputFormat.NDJSON),
+        null,
+        spool,
+        partitionSizer,
+        null,
+        circuitBreaker,
+        null,
+        deadLetterPublisher,
+        null,
+        rateLimiter);
+  }
+
+  /**
+   * Mocks a client whose server fails every transaction for which the given function returns an
+   * error and accepts all others.
+   */
+  @SuppressWarnings("unchecked")
+  private IGenericClient mockClient(Function<List<String>, RuntimeException> errorForRequestUrls) {
+    var client = mock(IGenericClient.class);
+    var transaction = mock(ITransaction.class);
+    when(client.getFhirContext()).thenReturn(fhirContext);
+    when(client.transaction()).thenReturn(transaction);
+    when(transaction.withBundle(any(Bundle.class)))
+        .thenAnswer(
+            invocation -> {
+              Bundle bundle = invocation.getArgument(0);
+              var requestUrls =
+                  bundle.getEntry().stream().map(entry -> entry.getRequest().getUrl()).toList();
+              var typed = mock(ITransactionTyped.class);
+              when(typed.execute())
+                  .thenAnswer(
+                      execution -> {
+                        var error = errorForRequestUrls.apply(requestUrls);
+                        if (error != null) {
+                          throw error;
+                        }
+                        sentTransactions.add(requestUrls);
+                        return new Bundle().setType(BundleType.TRANSACTIONRESPONSE);
+                      });
+              return typed;
+            });
+    return client;
+  }
+
+  private IGenericClient mockClientRejecting(Set<String> rejectedRequestUrls) {
+    return mockClient(
+        requestUrls ->
+            requestUrls.stream().anyMatch(rejectedRequestUrls::contains)
+                ? new UnprocessableEntityException("Resource failed validation")
+                : null);
+  }
+
+  private static Bundle transactionWithPatients(int numEntries) {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    for (int i = 0; i < numEntries; i++) {
+      bundle
+          .addEntry()
+          .setResource(new Patient().setId("p-" + i))
+          .getRequest()
+          .setMethod(HTTPVerb.PUT)
+          .setUrl("Patient/p-" + i);
+    }
+    return bundle;
+  }
+
+  private List<String> sentRequestUrls() {
+    return sentTransactions.stream().flatMap(List::stream).toList();
+  }
+
+  private static List<String> requestUrls(List<BundleEntryComponent> entries) {
+    return entries.stream().map(entry -> entry.getRequest().getUrl()).toList();
   }
 
   @Test
   void process_withNullResource_shouldNotThrow() {
     assertDoesNotThrow(() -> sut.sinkBatch().accept(null));
     assertDoesNotThrow(() -> sut.sinkSingle().accept(null));
+    assertDoesNotThrow(() -> sut.sinkRaw().accept(null));
+    assertDoesNotThrow(() -> sut.sinkRawBatch().accept(null));
+    assertDoesNotThrow(() -> sut.sinkKeyed().accept(null));
+  }
+
+  @Test
+  void sinkRaw_withNonBundlePayload_shouldIgnoreIt() {
+    var message = MessageBuilder.withPayload("{\"resourceType\":\"Patient\"}".getBytes()).build();
+
+    assertDoesNotThrow(() -> sut.sinkRaw().accept(message));
+  }
+
+  @Test
+  void sinkRaw_withBundleThatRequiresParsing_shouldRecordConsumerLagOnce() {
+    var processor =
+        createProcessor(mockClientRejecting(Set.of()), BundleType.TRANSACTION, null, 16);
+    var consumer = mock(Consumer.class);
+    when(consumer.assignment()).thenReturn(Set.of());
+    var payload =
+        fhirContext
+            .newJsonParser()
+            .encodeResourceToString(transactionWithPatients(2))
+            .getBytes(StandardCharsets.UTF_8);
+    var message =
+        MessageBuilder.withPayload(payload).setHeader(KafkaHeaders.CONSUMER, consumer).build();
+
+    processor.sinkRaw().accept(message);
+
+    verify(consumer, times(1)).assignment();
+    assertThat(sentRequestUrls()).containsExactly("Patient/p-0", "Patient/p-1");
+  }
+
+  @Test
+  void transmitBundle_whenWaitingForTheRateLimit_shouldNotShrinkPartitions() {
+    var partitionSizer =
+        new AdaptivePartitionSizer(
+            new AdaptivePartitionSizeConfig(true, 1, 100, 1, 0.5, Duration.ofMillis(200)), 4);
+    // the second bundle has to wait a second for the entries budget
+    var rateLimiter = new TransactionRateLimiter(null, 4.0);
+    var processor =
+        createProcessor(
+            mockClientRejecting(Set.of()),
+            null,
+            null,
+            16,
+            partitionSizer,
+            null,
+            rateLimiter,
+            null);
+
+    processor.transmitBundle(transactionWithPatients(4));
+    processor.transmitBundle(transactionWithPatients(4));
+
+    // grown after the first bundle filled the partition, not shrunk after the second one
+    assertThat(partitionSizer.currentSize()).isEqualTo(5);
+  }
+
+  @Test
+  void transmitBundle_whenInterrupted_shouldNotCountAsServerFailure() {
+    var circuitBreaker = new CircuitBreaker(1, Duration.ofMinutes(1));
+    var processor =
+        createProcessor(
+            mockClient(
+                requestUrls -> {
+                  // like a partition cancelled while its request was in flight
+                  Thread.currentThread().interrupt();
+                  return new FhirClientConnectionException(
+                      new InterruptedIOException("interrupted"));
+                }),
+            null,
+            null,
+            16,
+            null,
+            circuitBreaker,
+            null,
+            null);
+
+    try {
+      assertThatThrownBy(() -> processor.transmitBundle(transactionWithPatients(2)))
+          .isInstanceOf(RuntimeException.class);
+    } finally {
+      Thread.interrupted();
+    }
+
+    assertThat(circuitBreaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  private SendToServerProcessor createProcessorWithOpenCircuit() {
+    var circuitBreaker = new CircuitBreaker(1, Duration.ofMinutes(1));
+    circuitBreaker.onFailure();
+    return createProcessor(
+        mockClientRejecting(Set.of()), null, null, 16, null, circuitBreaker, null, null);
+  }
+
+  @Test
+  void sinkSingle_whenCircuitIsOpen_shouldPauseConsumptionInsteadOfSending() {
+    var processor = createProcessorWithOpenCircuit();
+    var acknowledgment = mock(Acknowledgment.class);
+    var message =
+        MessageBuilder.<Resource>withPayload(transactionWithPatients(2))
+            .setHeader(KafkaHeaders.ACKNOWLEDGMENT, acknowledgment)
+            .build();
+
+    processor.sinkSingle().accept(message);
+
+    verify(acknowledgment).nack(any(Duration.class));
+    verify(acknowledgment, never()).acknowledge();
+    assertThat(sentTransactions).isEmpty();
+  }
+
+  @Test
+  void sinkBatch_whenCircuitIsOpen_shouldPauseConsumptionFromTheFirstRecord() {
+    var processor = createProcessorWithOpenCircuit();
+    var acknowledgment = mock(Acknowledgment.class);
+    var message =
+        MessageBuilder.<List<Resource>>withPayload(
+                List.of(transactionWithPatients(2), transactionWithPatients(1)))
+            .setHeader(KafkaHeaders.ACKNOWLEDGMENT, acknowledgment)
+            .build();
+
+    processor.sinkBatch().accept(message);
+
+    verify(acknowledgment).nack(eq(0), any(Duration.class));
+    verify(acknowledgment, never()).acknowledge();
+    assertThat(sentTransactions).isEmpty();
+  }
+
+  @Test
+  void transmitBundle_withSingleRejectedEntry_shouldDeadLetterOnlyThatEntry() {
+    var deadLetterPublisher = mock(DeadLetterPublisher.class);
+    var processor =
+        createProcessor(mockClientRejecting(Set.of("Patient/p-5")), null, deadLetterPublisher, 16);
+    var bundle = transactionWithPatients(8);
+    var rejectedEntry = bundle.getEntry().get(5);
+
+    var rejected = processor.transmitBundle(bundle);
+
+    assertThat(rejected).containsExactly(rejectedEntry);
+    verify(deadLetterPublisher)
+        .publish(
+            eq(rejectedEntry), eq(BundleType.TRANSACTION), any(UnprocessableEntityException.class));
+    var acceptedRequestUrls =
+        requestUrls(bundle.getEntry()).stream().filter(url -> !url.equals("Patient/p-5")).toList();
+    assertThat(sentRequestUrls()).containsExactlyInAnyOrderElementsOf(acceptedRequestUrls);
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void sinkSingle_withSpool_shouldDeadLetterEntriesRejectedWhileDraining() throws Exception {
+    var deadLetterPublisher = mock(DeadLetterPublisher.class);
+    try (var spool = new BundleSpool(tempDir, 64 * 1024, 1024 * 1024)) {
+      var processor =
+          createProcessor(
+              mockClientRejecting(Set.of("Patient/p-1")),
+              null,
+              deadLetterPublisher,
+              16,
+              null,
+              null,
+              null,
+              spool);
+      try {
+        var message = MessageBuilder.<Resource>withPayload(transactionWithPatients(4)).build();
+        processor.sinkSingle().accept(message);
+        while (spool.pendingRecords() > 0) {
+          Thread.sleep(10);
+        }
+      } finally {
+        processor.stop();
+      }
+    }
+
+    verify(deadLetterPublisher)
+        .publish(any(BundleEntryComponent.class), eq(BundleType.TRANSACTION), any());
+    assertThat(sentRequestUrls())
+        .containsExactlyInAnyOrder("Patient/p-0", "Patient/p-2", "Patient/p-3");
+  }
+
+  @Test
+  void transmitBundle_withMultipleRejectedEntries_shouldSplitDownToEachOfThem() {
+    var deadLetterPublisher = mock(DeadLetterPublisher.class);
+    var processor =
+        createProcessor(
+            mockClientRejecting(Set.of("Patient/p-0", "Patient/p-6")),
+            null,
+            deadLetterPublisher,
+            16);
+    var bundle = transactionWithPatients(8);
+
+    var rejected = processor.transmitBundle(bundle);
+
+    assertThat(requestUrls(rejected)).containsExactlyInAnyOrder("Patient/p-0", "Patient/p-6");
+    assertThat(sentRequestUrls()).hasSize(6).doesNotContain("Patient/p-0", "Patient/p-6");
+  }
+
+  @Test
+  void transmitBundle_whenMaxDepthIsReached_shouldDeadLetterAllEntriesOfTheRejectedPart() {
+    var deadLetterPublisher = mock(DeadLetterPublisher.class);
+    var processor =
+        createProcessor(mockClientRejecting(Set.of("Patient/p-1")), null, deadLetterPublisher, 1);
+    var bundle = transactionWithPatients(8);
+
+    var rejected = processor.transmitBundle(bundle);
+
+    // split once into halves of 4 entries, the first one is dead-lettered as a whole
+    assertThat(requestUrls(rejected))
+        .containsExactly("Patient/p-0", "Patient/p-1", "Patient/p-2", "Patient/p-3");
+    assertThat(sentTransactions)
+        .containsExactly(List.of("Patient/p-4", "Patient/p-5", "Patient/p-6", "Patient/p-7"));
+  }
+
+  @Test
+  void transmitBundle_withRejectedEntry_shouldRecordBisectionRounds() {
+    var registry = new SimpleMeterRegistry();
+    Metrics.globalRegistry.add(registry);
+    try {
+      var processor =
+          createProcessor(
+              mockClientRejecting(Set.of("Patient/p-3")),
+              null,
+              mock(DeadLetterPublisher.class),
+              16);
+
+      processor.transmitBundle(transactionWithPatients(8));
+
+      var rounds =
+          registry.get("fhirtoserver.fhir.client.transaction.bisection.rounds").summary();
+      assertThat(rounds.count()).isEqualTo(1);
+      assertThat(rounds.totalAmount()).isEqualTo(3);
+    } finally {
+      Metrics.globalRegistry.remove(registry);
+    }
+  }
+
+  @Test
+  void transmitBundle_withOverloadError_shouldThrowWithoutBisecting() {
+    var deadLetterPublisher = mock(DeadLetterPublisher.class);
+    var processor =
+        createProcessor(
+            mockClient(requestUrls -> new PayloadTooLargeException("Bundle too large")),
+            null,
+            deadLetterPublisher,
+            16);
+    var bundle = transactionWithPatients(8);
+
+    assertThatThrownBy(() -> processor.transmitBundle(bundle))
+        .isInstanceOf(PayloadTooLargeException.class);
+    verify(deadLetterPublisher, never())
+        .publish(any(), any(), any(BaseServerResponseException.class));
+    assertThat(sentTransactions).isEmpty();
   }
 }
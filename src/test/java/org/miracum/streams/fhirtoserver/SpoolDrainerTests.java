@@ -0,0 +1,93 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpoolDrainerTests {
+  private static final int SEGMENT_SIZE = 1024;
+
+  @TempDir Path directory;
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void awaitDrained(BundleSpool spool) throws InterruptedException {
+    while (spool.pendingRecords() > 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void run_withNonRetryableError_shouldQuarantineBundleAndSendTheRest() throws Exception {
+    var sent = new CopyOnWriteArrayList<String>();
+    var onSentCalled = new AtomicBoolean();
+
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 8 * SEGMENT_SIZE)) {
+      spool.append(bytes("rejected"), rejectedEntries -> onSentCalled.set(true));
+      spool.append(bytes("accepted"));
+
+      try (var drainer =
+          new SpoolDrainer(
+              spool,
+              payload -> {
+                var value = new String(payload, StandardCharsets.UTF_8);
+                if (value.equals("rejected")) {
+                  throw new IllegalArgumentException("invalid bundle");
+                }
+                sent.add(value);
+                return List.of();
+              })) {
+        drainer.start();
+        awaitDrained(spool);
+      }
+    }
+
+    assertThat(sent).containsExactly("accepted");
+    assertThat(onSentCalled).isFalse();
+    try (var files = Files.list(directory.resolve("quarantine"))) {
+      assertThat(files.toList())
+          .singleElement()
+          .satisfies(file -> assertThat(file).hasContent("rejected"));
+    }
+  }
+
+  @Test
+  @Timeout(value = 10, unit = TimeUnit.SECONDS)
+  void run_afterSuccessfulSend_shouldRunOnSentCallbackWithRejectedEntries() throws Exception {
+    var sent = new CopyOnWriteArrayList<String>();
+    var rejectedEntry = new BundleEntryComponent();
+    var onSentRejectedEntries = new AtomicReference<List<BundleEntryComponent>>();
+
+    try (var spool = new BundleSpool(directory, SEGMENT_SIZE, 8 * SEGMENT_SIZE)) {
+      spool.append(bytes("first"), onSentRejectedEntries::set);
+
+      try (var drainer =
+          new SpoolDrainer(
+              spool,
+              payload -> {
+                sent.add(new String(payload, StandardCharsets.UTF_8));
+                return List.of(rejectedEntry);
+              })) {
+        drainer.start();
+        awaitDrained(spool);
+      }
+    }
+
+    assertThat(sent).isEqualTo(List.of("first"));
+    assertThat(onSentRejectedEntries.get()).containsExactly(rejectedEntry);
+  }
+}
@@ -0,0 +1,196 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class StreamingBundleMergerTests {
+  private final FhirContext fhirContext = FhirContext.forR4();
+  private final StreamingBundleMerger sut = new StreamingBundleMerger();
+
+  @Test
+  void merge_whenGivenEmptyList_shouldThrowIllegalArgumentException() {
+    var bundles = new ArrayList<byte[]>();
+
+    assertThrows(IllegalArgumentException.class, () -> sut.merge(bundles));
+  }
+
+  @Test
+  void merge_withUnsupportedExpression_shouldThrowIllegalArgumentException() {
+    var bundles = List.of(encode(new Bundle().setType(BundleType.TRANSACTION)));
+
+    assertThrows(
+        IllegalArgumentException.class, () -> sut.merge(bundles, "resource.meta.source"));
+  }
+
+  @ParameterizedTest
+  @ValueSource(
+      strings = {"resource.id.toString()", "resource.type().name+'/'+resource.id.toString()"})
+  void supports_withResourceIdExpression_shouldReturnFalse(String expression) {
+    // the parsed id is derived from the fullUrl, which the raw JSON doesn't reflect
+    assertThat(StreamingBundleMerger.supports(expression)).isFalse();
+  }
+
+  @Test
+  void merge_whenGivenListWithSingleBundle_shouldReturnThatBundle() {
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    bundle.setId("1");
+    bundle.addEntry().getRequest().setUrl("Patient/1");
+
+    var result = decode(sut.merge(List.of(encode(bundle))).bundle());
+
+    assertThat(result.getType()).isEqualTo(BundleType.TRANSACTION);
+    assertThat(result.getEntry()).hasSize(1);
+  }
+
+  @Test
+  void
+      merge_whenGivenListWithTwoBundlesWithAResourceWithTheSameRequestUrl_shouldReturnBundleWithOnlyTheMostRecentResource() {
+    var bundle1 = bundleWithPatient("1", "older", HTTPVerb.PUT);
+    var bundle2 = bundleWithPatient("2", "newer", HTTPVerb.PUT);
+
+    var result = decode(sut.merge(List.of(encode(bundle1), encode(bundle2))).bundle());
+
+    assertThat(result.getEntry()).hasSize(1);
+    var resultBundleEntry = result.getEntry().get(0);
+
+    assertThat(resultBundleEntry.getResource().fhirType()).isEqualTo("Patient");
+    assertThat(((Patient) resultBundleEntry.getResource()).getNameFirstRep().getFamily())
+        .isEqualTo("newer");
+    assertThat(resultBundleEntry.getRequest().getUrl()).isEqualTo("Patient/p");
+    assertThat(resultBundleEntry.getRequest().getMethod()).isEqualTo(HTTPVerb.PUT);
+  }
+
+  @Test
+  void merge_withDeleteEntries_shouldSeparateThemIntoTheDeleteBundle() {
+    var bundle1 = bundleWithPatient("1", "older", HTTPVerb.PUT);
+    var bundle2 = new Bundle().setType(BundleType.TRANSACTION);
+    bundle2.addEntry().getRequest().setUrl("Patient/deleted").setMethod(HTTPVerb.DELETE);
+
+    var result = sut.merge(List.of(encode(bundle1), encode(bundle2)));
+
+    assertThat(decode(result.bundle()).getEntry()).hasSize(1);
+    assertThat(decode(result.deleteBundle()).getEntry())
+        .singleElement()
+        .satisfies(entry -> assertThat(entry.getRequest().getUrl()).isEqualTo("Patient/deleted"));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"request.url.toString()", "fullUrl.toString()"})
+  void merge_shouldReturnTheSameEntriesAsTheFhirBundleMerger(String expression) {
+    var bundles = new ArrayList<Bundle>();
+    for (int i = 0; i < 10; i++) {
+      var bundle = new Bundle().setType(BundleType.TRANSACTION);
+      for (int j = 0; j < 20; j++) {
+        var id = "p-" + ((i * 7 + j) % 25);
+        var patient = new Patient().setName(List.of(new HumanName().setFamily(i + "-" + j)));
+        patient.setId(id);
+        bundle
+            .addEntry()
+            .setResource(patient)
+            .setFullUrl("Patient/" + id)
+            .getRequest()
+            .setUrl("Patient/" + id)
+            .setMethod(j % 5 == 0 ? HTTPVerb.DELETE : HTTPVerb.PUT);
+      }
+      bundles.add(bundle);
+    }
+
+    var fhirPath = new FhirPathExpressionCache(new FhirPathR4(fhirContext));
+    var expected =
+        new FhirBundleMerger(
+                new EntryKeyExtractors(
+                    List.of(new DirectAccessEntryKeyExtractorFactory()), fhirPath))
+            .mergeSeperateDeleteBundles(bundles, expression);
+
+    var result = sut.merge(bundles.stream().map(this::encode).toList(), expression);
+
+    assertThat(describe(decode(result.bundle())))
+        .containsExactlyInAnyOrderElementsOf(describe(expected.bundle()));
+    assertThat(describe(decode(result.deleteBundle())))
+        .containsExactlyInAnyOrderElementsOf(describe(expected.deletBundle()));
+  }
+
+  @ParameterizedTest
+  @CsvSource({"10,5", "60,3", "100,10"})
+  void partition_withBundleExceedingSize_shouldBeSplitIntoMultipleBundles(
+      int inputBundleSize, int partitionSize) {
+
+    var inputBundle = new Bundle();
+    inputBundle.setType(BundleType.TRANSACTION);
+
+    for (int i = 0; i < inputBundleSize; i++) {
+      var patient = new Patient();
+      patient.setId("p-" + i);
+
+      inputBundle
+          .addEntry()
+          .setResource(patient)
+          .setFullUrl("Patient/p-" + i)
+          .getRequest()
+          .setMethod(HTTPVerb.PUT)
+          .setUrl("Patient/p-" + i);
+    }
+
+    var partitioned = sut.merge(List.of(encode(inputBundle))).partition(partitionSize);
+
+    assertThat(partitioned)
+        .hasSize(inputBundleSize / partitionSize)
+        .allSatisfy(
+            partition -> assertThat(decode(partition.bundle()).getEntry()).hasSize(partitionSize));
+  }
+
+  private static Bundle bundleWithPatient(String bundleId, String family, HTTPVerb method) {
+    var patient = new Patient().setName(List.of(new HumanName().setFamily(family))).setId("p");
+    var bundle = new Bundle().setType(BundleType.TRANSACTION);
+    bundle
+        .addEntry()
+        .setResource(patient)
+        .setFullUrl("Patient/p")
+        .getRequest()
+        .setUrl("Patient/p")
+        .setMethod(method);
+    bundle.setId(bundleId);
+    return bundle;
+  }
+
+  private List<String> describe(Bundle bundle) {
+    return bundle.getEntry().stream().map(this::describe).toList();
+  }
+
+  private String describe(BundleEntryComponent entry) {
+    var resource =
+        entry.hasResource()
+            ? ((Patient) entry.getResource()).getNameFirstRep().getFamily()
+            : "no-resource";
+    return entry.getRequest().getMethod() + " " + entry.getRequest().getUrl() + " " + resource;
+  }
+
+  private byte[] encode(Bundle bundle) {
+    return fhirContext
+        .newJsonParser()
+        .encodeResourceToString(bundle)
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  private Bundle decode(byte[] payload) {
+    return fhirContext
+        .newJsonParser()
+        .parseResource(Bundle.class, new String(payload, StandardCharsets.UTF_8));
+  }
+}
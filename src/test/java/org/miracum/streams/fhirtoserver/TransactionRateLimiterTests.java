@@ -0,0 +1,59 @@
+package org.miracum.streams.fhirtoserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class TransactionRateLimiterTests {
+  private final AtomicLong nanoTime = new AtomicLong();
+
+  private void advance(long millis) {
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  @Test
+  void reserve_withinTransactionBudget_shouldNotWait() {
+    var sut = new TransactionRateLimiter(10.0, null, nanoTime::get);
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(sut.reserve(100)).isZero();
+    }
+  }
+
+  @Test
+  void reserve_beyondTransactionBudget_shouldWaitUntilBucketRefilled() {
+    var sut = new TransactionRateLimiter(10.0, null, nanoTime::get);
+    for (int i = 0; i < 10; i++) {
+      sut.reserve(1);
+    }
+
+    assertThat(sut.reserve(1)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+
+    // the previous transaction already took the token that became available meanwhile
+    advance(100);
+    assertThat(sut.reserve(1)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+
+    advance(1_000);
+    assertThat(sut.reserve(1)).isZero();
+  }
+
+  @Test
+  void reserve_withMoreEntriesThanFitIntoBucket_shouldWaitForTheirShare() {
+    var sut = new TransactionRateLimiter(null, 1_000.0, nanoTime::get);
+
+    assertThat(sut.reserve(3_000)).isEqualTo(TimeUnit.SECONDS.toNanos(2));
+    // the next transaction waits until the debt has been paid off, too
+    advance(2_000);
+    assertThat(sut.reserve(500)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(500));
+  }
+
+  @Test
+  void reserve_withUnknownNumberOfEntries_shouldOnlyApplyTransactionBudget() {
+    var sut = new TransactionRateLimiter(100.0, 1.0, nanoTime::get);
+
+    assertThat(sut.reserve(0)).isZero();
+    assertThat(sut.reserve(0)).isZero();
+  }
+}